@@ -52,7 +52,7 @@ public class ANTLRv4ExternalAnnotator extends ExternalAnnotator<PsiFile, List<Gr
 		}
 
 		final ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(file.getProject());
-		if ( controller!=null && !ApplicationManager.getApplication().isUnitTestMode() ) {
+		if ( controller!=null && controller.getPreviewPanel()!=null && !ApplicationManager.getApplication().isUnitTestMode() ) {
 			controller.getPreviewPanel().autoRefreshPreview(file.getVirtualFile());
 		}
 	}
@@ -1,16 +1,21 @@
 package org.antlr.intellij.plugin;
 
-import com.intellij.execution.filters.TextConsoleBuilder;
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.execution.filters.TextConsoleBuilderFactory;
 import com.intellij.execution.ui.ConsoleView;
+import com.intellij.ide.PowerSaveMode;
 import com.intellij.ide.plugins.IdeaPluginDescriptor;
 import com.intellij.ide.plugins.PluginManager;
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.components.ProjectComponent;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
 import com.intellij.openapi.editor.event.EditorFactoryAdapter;
 import com.intellij.openapi.editor.event.EditorFactoryEvent;
 import com.intellij.openapi.editor.event.EditorMouseAdapter;
@@ -20,36 +25,56 @@ import com.intellij.openapi.fileEditor.*;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.progress.impl.BackgroundableProcessIndicator;
 import com.intellij.openapi.progress.util.BackgroundTaskUtil;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
 import com.intellij.openapi.progress.util.ProgressWindow;
+import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileAdapter;
 import com.intellij.openapi.vfs.VirtualFileEvent;
 import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.openapi.wm.ToolWindow;
-import com.intellij.openapi.wm.ToolWindowAnchor;
 import com.intellij.openapi.wm.ToolWindowManager;
-import com.intellij.ui.content.Content;
-import com.intellij.ui.content.ContentFactory;
+import com.intellij.psi.search.FilenameIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.messages.MessageBusConnection;
+import org.antlr.intellij.plugin.configdialogs.ANTLRv4GrammarProperties;
+import org.antlr.intellij.plugin.configdialogs.ANTLRv4GrammarPropertiesStore;
+import org.antlr.intellij.plugin.parsing.GrammarAnalysis;
+import org.antlr.intellij.plugin.parsing.GrammarAnalysisService;
+import org.antlr.intellij.plugin.parsing.GrammarObjectCache;
+import org.antlr.intellij.plugin.parsing.MappedFileCharStream;
+import org.antlr.intellij.plugin.parsing.ParsingOptions;
+import org.antlr.intellij.plugin.parsing.ParsingResult;
+import org.antlr.intellij.plugin.parsing.ParsingResultCache;
 import org.antlr.intellij.plugin.parsing.ParsingUtils;
+import org.antlr.intellij.plugin.parsing.PreviewInterpreterCache;
+import org.antlr.intellij.plugin.parsing.PreviewParsingMode;
 import org.antlr.intellij.plugin.parsing.RunANTLROnGrammarFile;
 import org.antlr.intellij.plugin.preview.PreviewPanel;
+import org.antlr.intellij.plugin.preview.PreviewParsingScheduler;
+import org.antlr.intellij.plugin.preview.PreviewResultRetention;
 import org.antlr.intellij.plugin.preview.PreviewState;
 import org.antlr.intellij.plugin.profiler.ProfilerPanel;
-import org.antlr.v4.parse.ANTLRParser;
 import org.antlr.v4.tool.Grammar;
 import org.antlr.v4.tool.LexerGrammar;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import javax.swing.*;
-import java.io.File;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /** This object is the controller for the ANTLR plug-in. It receives
  *  events and can send them on to its contained components. For example,
@@ -71,25 +96,33 @@ public class ANTLRv4PluginController implements ProjectComponent {
 
 	public static final String PREVIEW_WINDOW_ID = "ANTLR Preview";
 	public static final String CONSOLE_WINDOW_ID = "Tool Output";
+	/** Whether grammars are loaded in the background when a project is opened */
+	public static final String PREWARM_REGISTRY_KEY = "antlr4.preview.prewarm.grammars";
+	public static final int PREWARM_THREADS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors()/2));
+	public static final int PREWARM_MAX_GRAMMARS = GrammarObjectCache.DEFAULT_MAX_ENTRIES/2;
 
 	public boolean projectIsClosed = false;
 
 	public Project project;
-	public ConsoleView console;
-	private ToolWindow consoleWindow;
+	private volatile ConsoleView console;
 
-	public Map<String, PreviewState> grammarToPreviewState =
-		Collections.synchronizedMap(new HashMap<>());
-	private ToolWindow previewWindow;	// same for all grammar editor
-	public PreviewPanel previewPanel;	// same for all grammar editor
+	public Map<String, PreviewState> grammarToPreviewState = new ConcurrentHashMap<>();
+	public PreviewPanel previewPanel;	// same for all grammar editor, null until needed
 
 	public MyVirtualFileAdapter myVirtualFileAdapter = new MyVirtualFileAdapter();
 	public MyFileEditorManagerAdapter myFileEditorManagerAdapter = new MyFileEditorManagerAdapter();
 
 	private ProgressIndicator parsingProgressIndicator;
+	private final PreviewParsingScheduler parsingScheduler;
+	private final ParsingResultCache parsingResultCache = new ParsingResultCache();
+	private final PreviewResultRetention previewResultRetention = new PreviewResultRetention();
+	private ProgressIndicator grammarLoadingIndicator;
+	private long grammarLoadingRequest; // bumped on the EDT for each background load
+	private ProgressIndicator prewarmingIndicator;
 
 	public ANTLRv4PluginController(Project project) {
 		this.project = project;
+		this.parsingScheduler = new PreviewParsingScheduler(project);
 	}
 
 	public static ANTLRv4PluginController getInstance(Project project) {
@@ -110,65 +143,62 @@ public class ANTLRv4PluginController implements ProjectComponent {
 
 	@Override
 	public void projectOpened() {
+		long start = System.nanoTime();
 		IdeaPluginDescriptor plugin = PluginManager.getPlugin(PluginId.getId(PLUGIN_ID));
 		String version = "unknown";
 		if ( plugin!=null ) {
 			version = plugin.getVersion();
 		}
 		LOG.info("ANTLR 4 Plugin version "+version+", Java version "+ SystemInfo.JAVA_VERSION);
-		// make sure the tool windows are created early
-		createToolWindows();
+		// tool windows are registered in plugin.xml; their contents are only
+		// built once a grammar is opened or the window is shown
 		installListeners();
+		DumbService.getInstance(project).runWhenSmart(this::prewarmGrammarsInBackground);
+		LOG.info("projectOpened "+project.getName()+" in "+(System.nanoTime()-start)/1_000_000+" ms");
 	}
 
-	public void createToolWindows() {
-		LOG.info("createToolWindows "+project.getName());
-		ToolWindowManager toolWindowManager = ToolWindowManager.getInstance(project);
-
-		previewPanel = new PreviewPanel(project);
-
-		ContentFactory contentFactory = ContentFactory.SERVICE.getInstance();
-
-		toolWindowManager.invokeLater(() -> {
-			Content content = contentFactory.createContent(previewPanel, "", false);
-			content.setCloseable(false);
-
-			previewWindow = toolWindowManager.registerToolWindow(PREVIEW_WINDOW_ID, true, ToolWindowAnchor.BOTTOM);
-			previewWindow.getContentManager().addContent(content);
-			previewWindow.setIcon(Icons.getToolWindow());
-		});
-
-		TextConsoleBuilderFactory factory = TextConsoleBuilderFactory.getInstance();
-		TextConsoleBuilder consoleBuilder = factory.createBuilder(project);
-		this.console = consoleBuilder.getConsole();
-
-		toolWindowManager.invokeLater(() -> {
-			JComponent consoleComponent = console.getComponent();
-			Content content = contentFactory.createContent(consoleComponent, "", false);
-			content.setCloseable(false);
-
-			consoleWindow = toolWindowManager.registerToolWindow(CONSOLE_WINDOW_ID, true, ToolWindowAnchor.BOTTOM);
-			consoleWindow.getContentManager().addContent(content);
-			consoleWindow.setIcon(Icons.getToolWindow());
-		});
+	/** The preview panel is built for the first grammar opened, or when its
+	 *  tool window is first shown, so projects without grammars don't pay for it.
+	 *  Must be called from the EDT.
+	 */
+	public PreviewPanel getOrCreatePreviewPanel() {
+		if ( previewPanel==null ) {
+			long start = System.nanoTime();
+			previewPanel = new PreviewPanel(project);
+			LOG.info("created preview panel for "+project.getName()+" in "+(System.nanoTime()-start)/1_000_000+" ms");
+		}
+		return previewPanel;
 	}
 
 	@Override
 	public void projectClosed() {
 		LOG.info("projectClosed " + project.getName());
+		LOG.info("preview parsing: "+parsingScheduler);
+		LOG.info("preview parsing results cache: "+parsingResultCache);
+		parsingResultCache.clear();
+		GrammarAnalysisService.getInstance(project).clear();
+		previewResultRetention.clear();
+		if ( grammarLoadingIndicator!=null ) {
+			grammarLoadingIndicator.cancel();
+		}
+		if ( prewarmingIndicator!=null ) {
+			prewarmingIndicator.cancel();
+		}
 		//synchronized ( shutdownLock ) { // They should be called from EDT only so no lock
 		projectIsClosed = true;
 		uninstallListeners();
 
-		console.dispose();
+		if ( console!=null ) {
+			console.dispose();
+		}
 
-		for (PreviewState it : grammarToPreviewState.values()) {
-			previewPanel.inputPanel.releaseEditor(it);
+		if ( previewPanel!=null ) {
+			for (PreviewState it : grammarToPreviewState.values()) {
+				previewPanel.inputPanel.releaseEditor(it);
+			}
 		}
 
 		previewPanel = null;
-		previewWindow = null;
-		consoleWindow = null;
 		project = null;
 		grammarToPreviewState = null;
 	}
@@ -249,25 +279,22 @@ public class ANTLRv4PluginController implements ProjectComponent {
 	public void setStartRuleNameEvent(VirtualFile grammarFile, String startRuleName) {
 		LOG.info("setStartRuleNameEvent " + startRuleName+" "+project.getName());
 		PreviewState previewState = getPreviewState(grammarFile);
-		previewState.startRuleName = startRuleName;
-		if ( previewPanel!=null ) {
-			previewPanel.getInputPanel().setStartRuleName(grammarFile, startRuleName); // notify the view
-			previewPanel.updateParseTreeFromDoc(grammarFile);
-		}
-		else {
-			LOG.error("setStartRuleNameEvent called before preview panel created");
-		}
+		previewState.updateSnapshot(s -> s.withStartRuleName(startRuleName));
+		PreviewPanel previewPanel = getOrCreatePreviewPanel();
+		previewPanel.getInputPanel().setStartRuleName(grammarFile, startRuleName); // notify the view
+		previewPanel.updateParseTreeFromDoc(grammarFile);
 	}
 
 	public void grammarFileSavedEvent(VirtualFile grammarFile) {
 		LOG.info("grammarFileSavedEvent "+grammarFile.getPath()+" "+project.getName());
 		updateGrammarObjectsFromFile(grammarFile, true); // force reload
-		if ( previewPanel!=null ) {
-			previewPanel.grammarFileSaved(grammarFile);
-		}
-		else {
-			LOG.error("grammarFileSavedEvent called before preview panel created");
+		if ( previewPanel==null ) {
+			// tool windows are created when the first grammar is shown; a
+			// grammar changed on disk before that has no preview to refresh
+			LOG.debug("grammarFileSavedEvent before the preview panel was created");
+			return;
 		}
+		previewPanel.grammarFileSaved(grammarFile);
 	}
 
 	public void currentEditorFileChangedEvent(VirtualFile oldFile, VirtualFile newFile) {
@@ -285,18 +312,20 @@ public class ANTLRv4PluginController implements ProjectComponent {
 			hidePreview();
 			return;
 		}
+		getOrCreatePreviewPanel();
 
 		// When switching from a lexer grammar, update its objects in case the grammar was modified.
 		// The updated objects might be needed later by another dependant grammar.
-		if ( oldFile != null && oldFile.getName().endsWith(".g4")) {
-			updateGrammarObjectsFromFile(oldFile, true);
-		}
+		// Nothing is loaded or generated again if none of its files changed.
+		boolean previousGrammarChanged = oldFile != null && oldFile.getName().endsWith(".g4") && !isGrammarUpToDate(oldFile);
 
 		PreviewState previewState = getPreviewState(newFile);
-		if ( previewState.g==null && previewState.lg==null ) { // only load grammars if none is there
-			updateGrammarObjectsFromFile(newFile, false);
+		PreviewState.Snapshot snapshot = previewState.getSnapshot();
+		boolean loadGrammarFile = snapshot.g==null && snapshot.lg==null; // only load grammars if none is there
+		if ( previousGrammarChanged || loadGrammarFile ) {
+			loadGrammarsInBackground(previousGrammarChanged ? oldFile : null, newFile, loadGrammarFile);
 		}
-		if ( previewPanel!=null ) {
+		else if ( previewPanel!=null ) {
 			previewPanel.grammarFileChanged(newFile);
 		}
 	}
@@ -325,12 +354,16 @@ public class ANTLRv4PluginController implements ProjectComponent {
 			return;
 		}
 
-		previewState.g = null; // wack old ref to the Grammar for text in editor
-		previewState.lg = null;
+		// wack old ref to the Grammar for text in editor
+		previewState.updateSnapshot(s -> s.withGrammars(null, null, null));
 
-		previewPanel.closeGrammar(vfile);
+		if ( previewPanel!=null ) {
+			previewPanel.closeGrammar(vfile);
+		}
 
 		grammarToPreviewState.remove(grammarFileName);
+		GrammarAnalysisService.getInstance(project).forget(grammarFileName);
+		previewResultRetention.remove(previewState);
 
 		// close tool window
 		hidePreview();
@@ -340,6 +373,7 @@ public class ANTLRv4PluginController implements ProjectComponent {
 		if (previewPanel != null) {
 			previewPanel.setEnabled(false);
 		}
+		ToolWindow previewWindow = getPreviewWindow();
 		if (previewWindow != null) {
 			previewWindow.hide(null);
 		}
@@ -365,88 +399,347 @@ public class ANTLRv4PluginController implements ProjectComponent {
 	 *  this grammar or we will have seen a grammar file changed event.
 	 *  (I hope!)
 	 */
-	private void updateGrammarObjectsFromFile(VirtualFile grammarFile, boolean generateTokensFile) {
-		updateGrammarObjectsFromFile_(grammarFile);
+	private void updateGrammarObjectsFromFile(VirtualFile grammarFile, boolean autoGenerate) {
+		if ( updateGrammarAndDependents(grammarFile) && autoGenerate ) {
+			autoGenerateParser(grammarFile);
+		}
+	}
+
+	/** Update the objects of grammarFile and of the grammars using it. Returns
+	 *  true if it changed and other grammars depend on it. Can be called from
+	 *  any thread.
+	 */
+	private boolean updateGrammarAndDependents(VirtualFile grammarFile) {
+		boolean changed = updateGrammarObjectsFromFile_(grammarFile);
 
-		// if grammarFileName is a separate lexer, we need to look for
-		// its matching parser, if any, that is loaded in an editor
+		// if grammarFileName is a separate lexer or an imported grammar, we need
+		// to look for the grammars using it, if any, that are loaded in an editor
 		// (don't go looking on disk).
-		PreviewState s = getAssociatedParserIfLexer(grammarFile.getPath());
-		if ( s!=null ) {
-			if (generateTokensFile) {
-				// Run the tool to regenerate the .tokens file, which will be
-				// needed in the parser grammar
-				runANTLRTool(grammarFile);
-			}
+		List<PreviewState> dependents = getDependentGrammars(grammarFile.getPath());
+		if ( dependents.isEmpty() || !changed ) {
+			return false;
+		}
 
-			// try to load lexer again and associate with this parser grammar.
-			// must update parser too as tokens have changed
+		// try to load lexer again and associate with these parser grammars.
+		// must update parsers too as tokens have changed. They are loaded
+		// independently of each other so do them all at once.
+		JobLauncher.getInstance().invokeConcurrentlyUnderProgress(dependents, null, s -> {
 			updateGrammarObjectsFromFile_(s.grammarFile);
+			return true;
+		});
+		return true;
+	}
+
+	/** Regenerate code for a changed lexer or imported grammar if the user
+	 *  asked for it; the parsers using it don't need the .tokens file, they
+	 *  get the lexer's vocabulary in memory.
+	 */
+	private void autoGenerateParser(VirtualFile grammarFile) {
+		if ( ANTLRv4GrammarPropertiesStore.getGrammarProperties(project, grammarFile).shouldAutoGenerateParser() ) {
+			runANTLRTool(grammarFile);
+		}
+	}
+
+	/** Returns false if the grammar objects were already up to date, i.e.
+	 *  none of the files they were loaded from changed since.
+	 */
+	private boolean updateGrammarObjectsFromFile_(VirtualFile grammarFile) {
+		return updateGrammarObjects(grammarFile, loadGrammarObjects(grammarFile));
+	}
+
+	/** The grammar objects for grammarFile, from the analysis shared with
+	 *  the annotator if none of its files changed, null if it can't be
+	 *  loaded. Can be called from any thread.
+	 */
+	@Nullable
+	private Grammar[] loadGrammarObjects(VirtualFile grammarFile) {
+		return ParsingUtils.loadGrammars(grammarFile, project);
+	}
+
+	/** Analyze every grammar in the project, so that neither the first
+	 *  preview nor the first annotation pass of any of them waits for ANTLR
+	 *  to process it. Runs in the background on at most {@link #PREWARM_THREADS}
+	 *  threads, once indexing is done; not at all in power save mode or if
+	 *  disabled by the {@link #PREWARM_REGISTRY_KEY} registry key. Stops as
+	 *  soon as a document is edited, since the user is busy then.
+	 *
+	 *  No more grammars are analyzed than half what the analysis cache keeps,
+	 *  so that the ones opened already aren't evicted by the others.
+	 *
+	 *  Errors aren't reported here, but when a grammar with errors is opened.
+	 */
+	private void prewarmGrammarsInBackground() {
+		if ( projectIsClosed || !Registry.is(PREWARM_REGISTRY_KEY) || PowerSaveMode.isEnabled() ) {
+			return;
 		}
+		Collection<VirtualFile> grammarFiles = ReadAction.compute(
+			() -> FilenameIndex.getAllFilesByExt(project, "g4", GlobalSearchScope.projectScope(project))
+		);
+		if ( grammarFiles.isEmpty() ) {
+			return;
+		}
+		List<VirtualFile> toPrewarm = new ArrayList<>(grammarFiles);
+		if ( toPrewarm.size()>PREWARM_MAX_GRAMMARS ) {
+			toPrewarm = toPrewarm.subList(0, PREWARM_MAX_GRAMMARS);
+		}
+		List<VirtualFile> prewarmed = toPrewarm;
+		LOG.info("prewarming "+prewarmed.size()+" of "+grammarFiles.size()+" grammars of "+project.getName());
+
+		Disposable whileRunning = Disposer.newDisposable();
+		Task.Backgroundable task = new Task.Backgroundable(project, "Loading ANTLR grammars", true) {
+			@Override
+			public void run(@NotNull ProgressIndicator indicator) {
+				long start = System.nanoTime();
+				ExecutorService executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("ANTLR Grammar Prewarming", PREWARM_THREADS);
+				List<Future<?>> futures = new ArrayList<>();
+				try {
+					for (VirtualFile grammarFile : prewarmed) {
+						futures.add(executor.submit(() -> ProgressManager.getInstance().runProcess(() -> {
+							if ( PowerSaveMode.isEnabled() ) {
+								indicator.cancel();
+							}
+							indicator.checkCanceled();
+							prewarmGrammar(grammarFile);
+						}, indicator)));
+					}
+					for (int i = 0; i<futures.size(); i++) {
+						ProgressIndicatorUtils.awaitWithCheckCanceled(futures.get(i), indicator);
+						indicator.setFraction((i+1)/(double)futures.size());
+					}
+				}
+				finally {
+					executor.shutdownNow(); // drops the grammars not started yet if cancelled
+				}
+				LOG.info("prewarmed "+GrammarAnalysisService.getInstance(project).size()+" grammars of "+project.getName()+" in "+(System.nanoTime()-start)/1_000_000+" ms");
+			}
+
+			@Override
+			public void onFinished() {
+				Disposer.dispose(whileRunning);
+				prewarmingIndicator = null;
+			}
+		};
+		prewarmingIndicator = new BackgroundableProcessIndicator(task);
+		ProgressIndicator indicator = prewarmingIndicator;
+		EditorFactory.getInstance().getEventMulticaster().addDocumentListener(new DocumentListener() {
+			@Override
+			public void documentChanged(@NotNull DocumentEvent event) {
+				indicator.cancel();
+			}
+		}, whileRunning);
+		ProgressManager.getInstance().runProcessWithProgressAsynchronously(task, indicator);
 	}
 
-	private String updateGrammarObjectsFromFile_(VirtualFile grammarFile) {
-		String grammarFileName = grammarFile.getPath();
+	private void prewarmGrammar(VirtualFile grammarFile) {
+		if ( !grammarFile.isValid() ) {
+			return;
+		}
+		GrammarAnalysisService.getInstance(project).analyze(grammarFile); // cached if opened meanwhile
+	}
+
+	/** Returns false if previewState already had these grammars */
+	private boolean updateGrammarObjects(VirtualFile grammarFile, @Nullable Grammar[] grammars) {
 		PreviewState previewState = getPreviewState(grammarFile);
-		Grammar[] grammars = ParsingUtils.loadGrammars(grammarFile, project);
 		if (grammars != null) {
-			synchronized (previewState) { // build atomically
-				previewState.lg = (LexerGrammar)grammars[0];
-				previewState.g = grammars[1];
-			}
+			LexerGrammar lg = (LexerGrammar)grammars[0];
+			Grammar g = grammars[1];
+			PreviewState.Snapshot previous = previewState.updateSnapshot(s -> {
+				if ( s.lg==lg && s.g==g ) {
+					return s; // keep the interpreter and its warmed up DFA too
+				}
+				return s.withGrammars(g, lg, new PreviewInterpreterCache(g, lg));
+			});
+			return previous.lg!=lg || previous.g!=g;
 		}
-		return grammarFileName;
+		return true;
 	}
 
-	// TODO there could be multiple grammars importing/tokenVocab'ing this lexer grammar
-	public PreviewState getAssociatedParserIfLexer(String grammarFileName) {
-		for (PreviewState s : grammarToPreviewState.values()) {
-			if ( s!=null && s.lg!=null &&
-					(sameFile(grammarFileName, s.lg.fileName)||s.lg==ParsingUtils.BAD_LEXER_GRAMMAR) )
-			{
-				// s has a lexer with same filename, see if there is a parser grammar
-				// (not a combined grammar)
-				if ( s.g!=null && s.g.getType()==ANTLRParser.PARSER ) {
-					return s;
+	/** True if none of the files the grammar objects of grammarFile were
+	 *  loaded from changed since, so there's nothing to update.
+	 */
+	private boolean isGrammarUpToDate(VirtualFile grammarFile) {
+		PreviewState previewState = grammarToPreviewState.get(grammarFile.getPath());
+		if ( previewState==null ) {
+			return false;
+		}
+		GrammarAnalysis analysis = GrammarAnalysisService.getInstance(project).getCachedAnalysis(grammarFile);
+		Grammar[] grammars = analysis!=null ? analysis.getGrammars() : null;
+		PreviewState.Snapshot snapshot = previewState.getSnapshot();
+		return grammars!=null && snapshot.lg==grammars[0] && snapshot.g==grammars[1];
+	}
+
+	/** Update the objects of previousGrammarFile and its dependents, and load
+	 *  those of grammarFile if needed, in a background task so that the IDE
+	 *  stays responsive while a big grammar is processed. The preview shows
+	 *  grammarFile once they are ready. If the user switched to another grammar
+	 *  in the meantime the result is dropped; if grammarFile was edited it is
+	 *  loaded again.
+	 */
+	private void loadGrammarsInBackground(@Nullable VirtualFile previousGrammarFile,
+										  VirtualFile grammarFile,
+										  boolean loadGrammarFile)
+	{
+		if ( grammarLoadingIndicator!=null ) {
+			grammarLoadingIndicator.cancel();
+		}
+		final long request = ++grammarLoadingRequest;
+		final Document grammarDocument = FileDocumentManager.getInstance().getDocument(grammarFile);
+		final long grammarStamp = grammarDocument!=null ? grammarDocument.getModificationStamp() : 0;
+		if ( previewPanel!=null ) {
+			previewPanel.grammarLoading(grammarFile);
+		}
+
+		Task.Backgroundable task = new Task.Backgroundable(project, "Loading "+grammarFile.getName(), true) {
+			private boolean previousGrammarHasDependents;
+			private Grammar[] grammars;
+
+			@Override
+			public void run(@NotNull ProgressIndicator indicator) {
+				if ( previousGrammarFile!=null ) {
+					previousGrammarHasDependents = updateGrammarAndDependents(previousGrammarFile);
+				}
+				indicator.checkCanceled();
+				if ( loadGrammarFile ) {
+					grammars = loadGrammarObjects(grammarFile);
 				}
 			}
 
-			if ( s!=null && s.g!=null && s.g.importedGrammars!=null ) {
-				for ( Grammar importedGrammar : s.g.importedGrammars ) {
-					if (grammarFileName.equals(importedGrammar.fileName)) {
-						return s;
-					}
+			@Override
+			public void onSuccess() {
+				if ( projectIsClosed ) {
+					return;
+				}
+				if ( previousGrammarHasDependents ) {
+					autoGenerateParser(previousGrammarFile);
+				}
+				if ( request!=grammarLoadingRequest || !grammarToPreviewState.containsKey(grammarFile.getPath()) ) {
+					return; // switched to another grammar, or closed this one, since
+				}
+				grammarLoadingIndicator = null;
+				if ( loadGrammarFile && grammarDocument!=null && grammarDocument.getModificationStamp()!=grammarStamp ) {
+					loadGrammarsInBackground(null, grammarFile, true); // grammars are stale already
+					return;
+				}
+				if ( loadGrammarFile ) {
+					updateGrammarObjects(grammarFile, grammars);
+				}
+				if ( previewPanel!=null ) {
+					previewPanel.grammarFileChanged(grammarFile);
 				}
 			}
-		}
-		return null;
+
+			@Override
+			public void onCancel() {
+				loadingStopped();
+			}
+
+			@Override
+			public void onThrowable(@NotNull Throwable error) {
+				super.onThrowable(error);
+				loadingStopped();
+			}
+
+			/** Show what was there before loading started, unless this load
+			 *  was superseded by another one, which then updates the panel.
+			 */
+			private void loadingStopped() {
+				if ( projectIsClosed || request!=grammarLoadingRequest ) {
+					return;
+				}
+				grammarLoadingIndicator = null;
+				if ( previewPanel!=null && grammarToPreviewState.containsKey(grammarFile.getPath()) ) {
+					previewPanel.grammarFileChanged(grammarFile);
+				}
+			}
+		};
+		grammarLoadingIndicator = new BackgroundableProcessIndicator(task);
+		ProgressManager.getInstance().runProcessWithProgressAsynchronously(task, grammarLoadingIndicator);
 	}
 
-	private boolean sameFile(String pathOne, String pathTwo) {
-		// use new File() to support both / and \ in paths
-		return new File(pathOne).equals(new File(pathTwo));
+	/** The grammars loaded in an editor that use grammarFileName through
+	 *  tokenVocab or import, according to the files their grammar objects
+	 *  were loaded from.
+	 */
+	public List<PreviewState> getDependentGrammars(String grammarFileName) {
+		List<PreviewState> dependents = new ArrayList<>();
+		for (String dependent : GrammarAnalysisService.getInstance(project).getDependents(grammarFileName)) {
+			PreviewState s = grammarToPreviewState.get(dependent);
+			if ( s!=null ) {
+				dependents.add(s);
+			}
+		}
+		return dependents;
 	}
 
-	public void parseText(final VirtualFile grammarFile, String inputText) {
+	public void parseText(final VirtualFile grammarFile, Document inputDocument) {
 		// Wipes out the console and also any error annotations
 		previewPanel.inputPanel.clearParseErrors();
 
 		final PreviewState previewState = getPreviewState(grammarFile);
+		// grammars, start rule and interpreter to parse with, whatever happens to previewState meanwhile
+		final PreviewState.Snapshot snapshot = previewState.getSnapshot();
+		previewResultRetention.previewed(previewState);
 
 		abortCurrentParsing();
 
+		// we're on the EDT so no edit can sneak in between inputText and this count
+		final MappedFileCharStream largeInput = previewState.largeInput!=null ? previewState.largeInput.copy() : null;
+		final CharSequence inputChars = largeInput==null ? inputDocument.getImmutableCharSequence() : null;
+		final int inputEditCount = previewState.incrementalLexer.getEditCount();
+		final ParsingOptions parsingOptions = parsingOptions(previewState, snapshot, inputEditCount);
+		final String parsingSettings = parsingSettings(previewState, parsingOptions);
+		final PreviewParsingScheduler.Ticket ticket = parsingScheduler.parseStarted(inputDocument);
+
 		// Parse text in a background thread to avoid freezing the UI if the grammar is badly written
-		// an takes ages to interpret the input.
+		// an takes ages to interpret the input. Copying and digesting the input is done there too.
 		parsingProgressIndicator = BackgroundTaskUtil.executeAndTryWait(
 				(indicator) -> {
+					String inputText = inputChars!=null ? inputChars.toString() : null;
+					ParsingResultCache.Key cacheKey = inputText!=null ? parsingResultKey(previewState, snapshot, parsingSettings, inputText) : null;
+					ParsingResultCache.Entry cached = cacheKey!=null ? parsingResultCache.get(cacheKey) : null;
+					if ( cached!=null ) {
+						return () -> {
+							if ( parsingScheduler.parseCompleted(ticket) && previewState.setParsingResult(snapshot, cached.result) ) {
+								previewPanel.onParsingCompleted(previewState, cached.parseDuration);
+							}
+							showPreviewStats();
+						};
+					}
+
 					long start = System.nanoTime();
 
-					previewState.parsingResult = ParsingUtils.parseText(
-							previewState.g, previewState.lg, previewState.startRuleName,
-							grammarFile, inputText, project
-					);
+					ParsingResult parsingResult;
+					if ( largeInput!=null ) {
+						parsingResult = ParsingUtils.parseText(
+								snapshot.g, snapshot.lg, snapshot.startRuleName,
+								grammarFile, largeInput, project, parsingOptions
+						);
+					}
+					else {
+						parsingResult = ParsingUtils.parseText(
+								snapshot.g, snapshot.lg, snapshot.startRuleName,
+								grammarFile, inputText, project, parsingOptions
+						);
+					}
+					long duration = System.nanoTime() - start;
+
+					if ( parsingResult!=null && parsingResult.parser!=null ) {
+						// walks the whole tree, once, so that showPreviewStats() doesn't on the EDT
+						long size = inputText!=null ? ParsingResultCache.estimateSize(parsingResult, inputText.length())
+							: ParsingResultCache.estimateSize(parsingResult);
+						if ( cacheKey!=null ) {
+							parsingResultCache.put(cacheKey, parsingResult, duration, size);
+						}
+					}
 
-					return () -> previewPanel.onParsingCompleted(previewState, System.nanoTime() - start);
+					return () -> {
+						// a parse started after this one may have already been shown, and
+						// the result is dropped if the grammars or start rule changed meanwhile
+						if ( parsingScheduler.parseCompleted(ticket) && previewState.setParsingResult(snapshot, parsingResult) ) {
+							previewPanel.onParsingCompleted(previewState, duration);
+						}
+						showPreviewStats();
+					};
 				},
 				() -> previewPanel.notifySlowParsing(),
 				ProgressWindow.DEFAULT_PROGRESS_DIALOG_POSTPONE_TIME_MILLIS,
@@ -454,24 +747,98 @@ public class ANTLRv4PluginController implements ProjectComponent {
 		);
 	}
 
+	/** Tell how much of the preview results is kept in memory, see {@link PreviewResultRetention},
+	 *  how often the cache of recent results spared a parse and how many
+	 *  parses were shown or superseded, see {@link PreviewParsingScheduler}.
+	 */
+	private void showPreviewStats() {
+		ProfilerPanel profilerPanel = previewPanel.getProfilerPanel();
+		profilerPanel.setRetainedResults(previewResultRetention.getRetainedCount(),
+										 grammarToPreviewState.size(),
+										 previewResultRetention.getRetainedBytes(),
+										 parsingResultCache.getSizeInBytes());
+		profilerPanel.setResultCacheStats(parsingResultCache.getHitCount(), parsingResultCache.getMissCount(),
+										  parsingResultCache.size());
+		profilerPanel.setPreviewParses(parsingScheduler.getCompletedCount(), parsingScheduler.getCancelledCount(),
+									   parsingScheduler.getCoalescedCount());
+	}
+
+	/** The grammar properties and options that change how the input is parsed, read on
+	 *  the EDT so that the key of a result can be computed in the background.
+	 */
+	private String parsingSettings(PreviewState previewState, ParsingOptions parsingOptions) {
+		ANTLRv4GrammarProperties grammarProperties = ANTLRv4GrammarPropertiesStore.getGrammarProperties(project, previewState.grammarFile);
+		return grammarProperties.getCaseChangingStrategy().name()+"/"+parsingOptions.isDiagnostic()+"/"+parsingOptions.lexingBudget;
+	}
+
+	/** How to parse the input of previewState: as set in the grammar's
+	 *  properties, reusing the interpreters of snapshot and the incremental
+	 *  lexer and parser of previewState, but with profiling whenever the
+	 *  Profiler tab is shown.
+	 */
+	private ParsingOptions parsingOptions(PreviewState previewState, PreviewState.Snapshot snapshot, int inputEditCount) {
+		ParsingOptions parsingOptions = ParsingOptions.forGrammar(project, previewState.grammarFile)
+			.withInterpreterCache(snapshot.interpreterCache)
+			.withIncrementalLexer(previewState.incrementalLexer, inputEditCount)
+			.withIncrementalParser(previewState.incrementalParser);
+		if ( previewPanel.isProfilerTabSelected() ) {
+			parsingOptions = parsingOptions.withMode(PreviewParsingMode.DIAGNOSTIC);
+		}
+		return parsingOptions;
+	}
+
+	/** A digest of everything the result of parsing inputText depends on,
+	 *  or null if it can't be parsed. Digests the whole input, so it's
+	 *  computed by the background parse task rather than on the EDT.
+	 */
+	@Nullable
+	private ParsingResultCache.Key parsingResultKey(PreviewState previewState, PreviewState.Snapshot snapshot,
+													String parsingSettings, String inputText) {
+		Grammar g = snapshot.g;
+		LexerGrammar lg = snapshot.lg;
+		if ( g==null || lg==null || snapshot.startRuleName==null ) {
+			return null;
+		}
+		List<CharSequence> parts = new ArrayList<>();
+		parts.add(previewState.grammarFile.getPath());
+		parts.addAll(ParsingResultCache.grammarTexts(g, lg));
+		parts.add(snapshot.startRuleName);
+		parts.add(parsingSettings);
+		parts.add(inputText);
+		return ParsingResultCache.key(parts.toArray(new CharSequence[0]));
+	}
+
 	public void abortCurrentParsing() {
 		if ( parsingProgressIndicator!=null ) {
 			parsingProgressIndicator.cancel();
 			parsingProgressIndicator = null;
+			parsingScheduler.parseCancelled();
 			previewPanel.onParsingCancelled();
 		}
 	}
 
+	public PreviewParsingScheduler getParsingScheduler() {
+		return parsingScheduler;
+	}
+
 	public PreviewPanel getPreviewPanel() {
 		return previewPanel;
 	}
 
+	/** Created on first use, from any thread, as grammars may be loaded in the background */
 	public ConsoleView getConsole() {
+		if ( console==null ) {
+			synchronized (this) {
+				if ( console==null ) {
+					console = TextConsoleBuilderFactory.getInstance().createBuilder(project).getConsole();
+				}
+			}
+		}
 		return console;
 	}
 
 	public ToolWindow getConsoleWindow() {
-		return consoleWindow;
+		return ToolWindowManager.getInstance(project).getToolWindow(CONSOLE_WINDOW_ID);
 	}
 
 	public static void showConsoleWindow(final Project project) {
@@ -481,23 +848,12 @@ public class ANTLRv4PluginController implements ProjectComponent {
 	}
 
 	public ToolWindow getPreviewWindow() {
-		return previewWindow;
+		return ToolWindowManager.getInstance(project).getToolWindow(PREVIEW_WINDOW_ID);
 	}
 
 	public @NotNull PreviewState getPreviewState(VirtualFile grammarFile) {
-		// make sure only one thread tries to add a preview state object for a given file
-		String grammarFileName = grammarFile.getPath();
-		// Have we seen this grammar before?
-		PreviewState stateForCurrentGrammar = grammarToPreviewState.get(grammarFileName);
-		if ( stateForCurrentGrammar!=null ) {
-			return stateForCurrentGrammar; // seen this before
-		}
-
-		// not seen, must create state
-		stateForCurrentGrammar = new PreviewState(project, grammarFile);
-		grammarToPreviewState.put(grammarFileName, stateForCurrentGrammar);
-
-		return stateForCurrentGrammar;
+		// only one preview state object is ever added for a given file, without locking readers
+		return grammarToPreviewState.computeIfAbsent(grammarFile.getPath(), k -> new PreviewState(project, grammarFile));
 	}
 
 	public Editor getEditor(VirtualFile vfile) {
@@ -506,7 +862,7 @@ public class ANTLRv4PluginController implements ProjectComponent {
 		if (doc == null) return null;
 
 		EditorFactory factory = EditorFactory.getInstance();
-		final Editor[] editors = factory.getEditors(doc, previewPanel.project);
+		final Editor[] editors = factory.getEditors(doc, project);
 		if ( editors.length==0 ) {
 			// no editor found for this file. likely an out-of-sequence issue
 			// where Intellij is opening a project and doesn't fire events
@@ -578,6 +934,10 @@ public class ANTLRv4PluginController implements ProjectComponent {
 		@Override
 		public void contentsChanged(VirtualFileEvent event) {
 			final VirtualFile vfile = event.getFile();
+			if ( vfile.getName().endsWith(".tokens") ) {
+				if ( !projectIsClosed ) GrammarAnalysisService.getInstance(project).forgetTokensFile(vfile.getPath());
+				return;
+			}
 			if ( !vfile.getName().endsWith(".g4") ) return;
 			if ( !projectIsClosed && !ApplicationManager.getApplication().isUnitTestMode()) grammarFileSavedEvent(vfile);
 		}
@@ -0,0 +1,28 @@
+package org.antlr.intellij.plugin;
+
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowFactory;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentFactory;
+import org.jetbrains.annotations.NotNull;
+
+/** Fills the preview tool window when it's first shown. The panel itself is
+ *  built by the controller, on the first grammar opened or here, whichever
+ *  comes first.
+ */
+public class ANTLRv4PreviewToolWindowFactory implements ToolWindowFactory, DumbAware {
+	@Override
+	public void init(@NotNull ToolWindow toolWindow) {
+		toolWindow.setIcon(Icons.getToolWindow());
+	}
+
+	@Override
+	public void createToolWindowContent(@NotNull Project project, @NotNull ToolWindow toolWindow) {
+		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
+		Content content = ContentFactory.SERVICE.getInstance().createContent(controller.getOrCreatePreviewPanel(), "", false);
+		content.setCloseable(false);
+		toolWindow.getContentManager().addContent(content);
+	}
+}
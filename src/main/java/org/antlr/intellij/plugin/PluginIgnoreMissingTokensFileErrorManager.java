@@ -5,6 +5,11 @@ import org.antlr.v4.tool.ANTLRMessage;
 import org.antlr.v4.tool.ErrorManager;
 import org.antlr.v4.tool.ErrorType;
 
+/** Doesn't count a missing .tokens file as an error: parser grammars get the
+ *  token types of their lexer grammar in memory, and the file is only written
+ *  by code generation. Listeners still hear about it, as a warning, so that
+ *  the annotator can show it.
+ */
 public class PluginIgnoreMissingTokensFileErrorManager extends ErrorManager {
 	public PluginIgnoreMissingTokensFileErrorManager(Tool tool) {
 		super(tool);
@@ -15,7 +20,8 @@ public class PluginIgnoreMissingTokensFileErrorManager extends ErrorManager {
 		if ( etype==ErrorType.CANNOT_FIND_TOKENS_FILE_REFD_IN_GRAMMAR ||
 			 etype==ErrorType.CANNOT_FIND_TOKENS_FILE_GIVEN_ON_CMDLINE )
 		{
-			return; // ignore these
+			tool.warning(msg); // don't count these
+			return;
 		}
 		super.emit(etype, msg);
 	}
@@ -7,6 +7,8 @@ import com.intellij.util.xmlb.annotations.OptionTag;
 import com.intellij.util.xmlb.annotations.Property;
 import com.intellij.util.xmlb.annotations.Tag;
 import org.antlr.intellij.plugin.parsing.CaseChangingStrategy;
+import org.antlr.intellij.plugin.parsing.LexingBudget;
+import org.antlr.intellij.plugin.parsing.PreviewParsingMode;
 import org.antlr.intellij.plugin.parsing.RunANTLROnGrammarFile;
 
 import java.io.File;
@@ -57,6 +59,20 @@ public class ANTLRv4GrammarProperties implements Cloneable {
     @OptionTag(converter = CaseChangingStrategyConverter.class)
     CaseChangingStrategy caseChangingStrategy = CaseChangingStrategy.LEAVE_AS_IS;
 
+    @Property
+    @OptionTag(converter = PreviewParsingModeConverter.class)
+    PreviewParsingMode previewParsingMode = PreviewParsingMode.DIAGNOSTIC;
+
+    /** Limits on lexing the preview input, 0 for no limit; see {@link LexingBudget} */
+    @Property
+    int previewMaxTokens = 5_000_000;
+
+    @Property
+    int previewMaxLexingMillis = 10_000;
+
+    @Property
+    int previewMaxTokenMemoryMB = 256;
+
     public ANTLRv4GrammarProperties() {
     }
 
@@ -71,6 +87,10 @@ public class ANTLRv4GrammarProperties implements Cloneable {
         this.generateListener = source.generateListener;
         this.generateVisitor = source.generateVisitor;
         this.caseChangingStrategy = source.caseChangingStrategy;
+        this.previewParsingMode = source.previewParsingMode;
+        this.previewMaxTokens = source.previewMaxTokens;
+        this.previewMaxLexingMillis = source.previewMaxLexingMillis;
+        this.previewMaxTokenMemoryMB = source.previewMaxTokenMemoryMB;
     }
 
     public boolean shouldAutoGenerateParser() {
@@ -109,6 +129,26 @@ public class ANTLRv4GrammarProperties implements Cloneable {
         return caseChangingStrategy;
     }
 
+    public PreviewParsingMode getPreviewParsingMode() {
+        return previewParsingMode;
+    }
+
+    public int getPreviewMaxTokens() {
+        return previewMaxTokens;
+    }
+
+    public int getPreviewMaxLexingMillis() {
+        return previewMaxLexingMillis;
+    }
+
+    public int getPreviewMaxTokenMemoryMB() {
+        return previewMaxTokenMemoryMB;
+    }
+
+    public LexingBudget getPreviewLexingBudget() {
+        return new LexingBudget(previewMaxTokens, previewMaxLexingMillis, previewMaxTokenMemoryMB*1024L*1024L);
+    }
+
     public String resolveOutputDirName(Project project, VirtualFile contentRoot, String package_) {
         String outputDirName = outputDir.isEmpty() ? RunANTLROnGrammarFile.OUTPUT_DIR_NAME : outputDir;
 
@@ -6,11 +6,15 @@ import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.xmlb.annotations.Property;
 import org.antlr.intellij.plugin.parsing.CaseChangingStrategy;
+import org.antlr.intellij.plugin.parsing.PreviewParsingMode;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Stores settings related to code generation per grammar file.
@@ -24,15 +28,33 @@ public class ANTLRv4GrammarPropertiesStore {
 	@Property
 	private final List<ANTLRv4GrammarProperties> perGrammarGenerationSettings = new ArrayList<>();
 
-	public void add(ANTLRv4GrammarProperties properties) {
+	/** The settings compiled for lookups, rebuilt after they change; see {@link #getIndex()} */
+	private volatile SettingsIndex index;
+
+	public synchronized void add(ANTLRv4GrammarProperties properties) {
 		perGrammarGenerationSettings.add(properties);
+		index = null;
 	}
 
+	/** Memoized per file name until the settings change, since this is
+	 *  called for every preview parse, annotation pass, grammar load and
+	 *  code generation.
+	 */
 	public ANTLRv4GrammarProperties getGrammarProperties(String grammarFile) {
-		ANTLRv4GrammarProperties grammarSettings = findSettingsForFile(grammarFile);
+		SettingsIndex index = getIndex();
+		ANTLRv4GrammarProperties properties = index.resolved.get(grammarFile);
+		if ( properties==null ) {
+			properties = resolveGrammarProperties(index, grammarFile);
+			index.resolved.put(grammarFile, properties);
+		}
+		return properties;
+	}
+
+	private ANTLRv4GrammarProperties resolveGrammarProperties(SettingsIndex index, String grammarFile) {
+		ANTLRv4GrammarProperties grammarSettings = index.findSettingsForFile(grammarFile);
 
 		if ( grammarSettings==null ) {
-			ANTLRv4GrammarProperties projectSettings = findSettingsForFile("*");
+			ANTLRv4GrammarProperties projectSettings = index.findSettingsForFile("*");
 
 			if ( projectSettings==null ) {
 				return ANTLRv4GrammarPropertiesStore.DEFAULT_GRAMMAR_PROPERTIES;
@@ -60,33 +82,70 @@ public class ANTLRv4GrammarPropertiesStore {
 		return newProperties;
 	}
 
-	@Nullable
-	private ANTLRv4GrammarProperties findSettingsForFile(String fileName) {
-		for (ANTLRv4GrammarProperties settings : perGrammarGenerationSettings) {
-			if (settings.fileName.equals(fileName)) {
-				return settings;
+	/** The settings may also be filled in by deserialization, without {@link #add} */
+	private SettingsIndex getIndex() {
+		SettingsIndex index = this.index;
+		if ( index==null || index.size!=perGrammarGenerationSettings.size() ) {
+			synchronized (this) {
+				index = this.index;
+				if ( index==null || index.size!=perGrammarGenerationSettings.size() ) {
+					index = new SettingsIndex(perGrammarGenerationSettings);
+					this.index = index;
+				}
 			}
 		}
+		return index;
+	}
 
-		for (ANTLRv4GrammarProperties settings : perGrammarGenerationSettings) {
-			if (matchesWildcardPattern(fileName, settings)) {
-				return settings;
+	/** Settings by exact file name, and the wildcard matchers of all
+	 *  settings in order, compiled once instead of for each lookup.
+	 */
+	private static class SettingsIndex {
+		final int size;
+		final Map<String, ANTLRv4GrammarProperties> byFileName = new HashMap<>();
+		final List<ANTLRv4GrammarProperties> settings;
+		final WildcardFileNameMatcher[] matchers;
+		final Map<String, ANTLRv4GrammarProperties> resolved = new ConcurrentHashMap<>();
+
+		SettingsIndex(List<ANTLRv4GrammarProperties> settings) {
+			this.size = settings.size();
+			this.settings = new ArrayList<>(settings);
+			this.matchers = new WildcardFileNameMatcher[size];
+			for (int i = 0; i<size; i++) {
+				ANTLRv4GrammarProperties s = this.settings.get(i);
+				byFileName.putIfAbsent(s.fileName, s); // the first one wins
+				try {
+					matchers[i] = new WildcardFileNameMatcher(s.fileName);
+				} catch (Exception e){
+					logger.warn("Unable to compile wildcard for file name: "+s.fileName, e);
+				}
 			}
 		}
 
-		return null;
-	}
+		@Nullable
+		ANTLRv4GrammarProperties findSettingsForFile(String fileName) {
+			ANTLRv4GrammarProperties exact = byFileName.get(fileName);
+			if ( exact!=null ) {
+				return exact;
+			}
+
+			for (int i = 0; i<size; i++) {
+				if ( matchesWildcardPattern(fileName, i) ) {
+					return settings.get(i);
+				}
+			}
+
+			return null;
+		}
 
-	private boolean matchesWildcardPattern(String fileName, ANTLRv4GrammarProperties settings) {
-		try {
-			WildcardFileNameMatcher wildcardFileNameMatcher = new WildcardFileNameMatcher(settings.fileName);
-			if (wildcardFileNameMatcher.acceptsCharSequence(fileName)) {
-				return true;
+		private boolean matchesWildcardPattern(String fileName, int i) {
+			try {
+				return matchers[i]!=null && matchers[i].acceptsCharSequence(fileName);
+			} catch (Exception e){
+				logger.warn("Unable to check if wildcard matches file name: "+fileName, e);
 			}
-		} catch (Exception e){
-			logger.warn("Unable to check if wildcard matches file name: "+fileName, e);
+			return false;
 		}
-		return false;
 	}
 
 	public static ANTLRv4GrammarProperties getGrammarProperties(Project project, VirtualFile grammarFile) {
@@ -123,6 +182,10 @@ public class ANTLRv4GrammarPropertiesStore {
 		defaultSettings.generateListener = true;
 		defaultSettings.generateVisitor = true;
 		defaultSettings.caseChangingStrategy = CaseChangingStrategy.LEAVE_AS_IS;
+		defaultSettings.previewParsingMode = PreviewParsingMode.DIAGNOSTIC;
+		defaultSettings.previewMaxTokens = 5_000_000;
+		defaultSettings.previewMaxLexingMillis = 10_000;
+		defaultSettings.previewMaxTokenMemoryMB = 256;
 
 		return defaultSettings;
 	}
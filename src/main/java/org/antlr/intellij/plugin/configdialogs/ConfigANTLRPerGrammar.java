@@ -7,6 +7,7 @@ import com.intellij.openapi.ui.ComboBox;
 import com.intellij.openapi.ui.DialogWrapper;
 import com.intellij.openapi.ui.TextFieldWithBrowseButton;
 import org.antlr.intellij.plugin.parsing.CaseChangingStrategy;
+import org.antlr.intellij.plugin.parsing.PreviewParsingMode;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
@@ -32,6 +33,10 @@ public class ConfigANTLRPerGrammar extends DialogWrapper {
 	protected JCheckBox autoGenerateParsersCheckBox;
 	protected JTextField languageField;
 	private JComboBox<CaseChangingStrategy> caseTransformation;
+	private JComboBox<PreviewParsingMode> previewParsingMode;
+	private JTextField previewMaxTokensField;
+	private JTextField previewMaxLexingMillisField;
+	private JTextField previewMaxTokenMemoryField;
 
 	private ConfigANTLRPerGrammar(final Project project) {
 		super(project, false);
@@ -77,6 +82,10 @@ public class ConfigANTLRPerGrammar extends DialogWrapper {
 		packageField.setText(grammarProperties.getPackage());
 		languageField.setText(grammarProperties.getLanguage());
 		caseTransformation.setSelectedItem(grammarProperties.getCaseChangingStrategy());
+		previewParsingMode.setSelectedItem(grammarProperties.getPreviewParsingMode());
+		previewMaxTokensField.setText(String.valueOf(grammarProperties.getPreviewMaxTokens()));
+		previewMaxLexingMillisField.setText(String.valueOf(grammarProperties.getPreviewMaxLexingMillis()));
+		previewMaxTokenMemoryField.setText(String.valueOf(grammarProperties.getPreviewMaxTokenMemoryMB()));
 		generateParseTreeListenerCheckBox.setSelected(grammarProperties.shouldGenerateParseTreeListener());
 		generateParseTreeVisitorCheckBox.setSelected(grammarProperties.shouldGenerateParseTreeVisitor());
 	}
@@ -91,6 +100,10 @@ public class ConfigANTLRPerGrammar extends DialogWrapper {
 		grammarProperties.pkg = getPackageFieldText();
 		grammarProperties.language = getLanguageText();
 		grammarProperties.caseChangingStrategy = getCaseChangingStrategy();
+		grammarProperties.previewParsingMode = getPreviewParsingMode();
+		grammarProperties.previewMaxTokens = parseLimit(getPreviewMaxTokensText(), grammarProperties.previewMaxTokens);
+		grammarProperties.previewMaxLexingMillis = parseLimit(getPreviewMaxLexingMillisText(), grammarProperties.previewMaxLexingMillis);
+		grammarProperties.previewMaxTokenMemoryMB = parseLimit(getPreviewMaxTokenMemoryText(), grammarProperties.previewMaxTokenMemoryMB);
 		grammarProperties.generateListener = generateParseTreeListenerCheckBox.isSelected();
 		grammarProperties.generateVisitor = generateParseTreeVisitorCheckBox.isSelected();
 	}
@@ -101,7 +114,21 @@ public class ConfigANTLRPerGrammar extends DialogWrapper {
 				|| !Objects.equals(originalProperties.getEncoding(), getFileEncodingText())
 				|| !Objects.equals(originalProperties.getPackage(), getPackageFieldText())
 				|| !Objects.equals(originalProperties.getLanguage(), getLanguageText())
-				|| !Objects.equals(originalProperties.caseChangingStrategy, getCaseChangingStrategy());
+				|| !Objects.equals(originalProperties.caseChangingStrategy, getCaseChangingStrategy())
+				|| !Objects.equals(originalProperties.previewParsingMode, getPreviewParsingMode())
+				|| originalProperties.previewMaxTokens!=parseLimit(getPreviewMaxTokensText(), originalProperties.previewMaxTokens)
+				|| originalProperties.previewMaxLexingMillis!=parseLimit(getPreviewMaxLexingMillisText(), originalProperties.previewMaxLexingMillis)
+				|| originalProperties.previewMaxTokenMemoryMB!=parseLimit(getPreviewMaxTokenMemoryText(), originalProperties.previewMaxTokenMemoryMB);
+	}
+
+	/** Returns currentValue if text is not a number; negative numbers mean no limit like 0 */
+	static int parseLimit(String text, int currentValue) {
+		try {
+			return Math.max(0, Integer.parseInt(text.trim()));
+		}
+		catch (NumberFormatException e) {
+			return currentValue;
+		}
 	}
 
 	String getLanguageText() {
@@ -124,10 +151,26 @@ public class ConfigANTLRPerGrammar extends DialogWrapper {
 		return outputDirField.getText();
 	}
 
+	String getPreviewMaxTokensText() {
+		return previewMaxTokensField.getText();
+	}
+
+	String getPreviewMaxLexingMillisText() {
+		return previewMaxLexingMillisField.getText();
+	}
+
+	String getPreviewMaxTokenMemoryText() {
+		return previewMaxTokenMemoryField.getText();
+	}
+
 	private CaseChangingStrategy getCaseChangingStrategy() {
 		return (CaseChangingStrategy) caseTransformation.getSelectedItem();
 	}
 
+	private PreviewParsingMode getPreviewParsingMode() {
+		return (PreviewParsingMode) previewParsingMode.getSelectedItem();
+	}
+
 	@Nullable
 	@Override
 	protected JComponent createCenterPanel() {
@@ -147,5 +190,6 @@ public class ConfigANTLRPerGrammar extends DialogWrapper {
 
 	private void createUIComponents() {
 		caseTransformation = new ComboBox<>(CaseChangingStrategy.values());
+		previewParsingMode = new ComboBox<>(PreviewParsingMode.values());
 	}
 }
@@ -0,0 +1,28 @@
+package org.antlr.intellij.plugin.configdialogs;
+
+import com.intellij.util.xmlb.Converter;
+import org.antlr.intellij.plugin.parsing.PreviewParsingMode;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A converter used to serialize/deserialize a {@code PreviewParsingMode} to/from
+ * a String contained in {@code .idea/misc.xml} using the enum's {@code name()}.
+ */
+public class PreviewParsingModeConverter extends Converter<PreviewParsingMode> {
+	@Nullable
+	@Override
+	public PreviewParsingMode fromString(@NotNull String value) {
+		try {
+			return PreviewParsingMode.valueOf(value);
+		} catch ( IllegalArgumentException e ) {
+			return null;
+		}
+	}
+
+	@Nullable
+	@Override
+	public String toString(@NotNull PreviewParsingMode value) {
+		return value.name();
+	}
+}
@@ -0,0 +1,54 @@
+package org.antlr.intellij.plugin.parsing;
+
+import com.intellij.openapi.progress.ProgressManager;
+
+/** Time limit on the analysis of a grammar by the external annotator, see
+ *  {@link GrammarAnalysisService#analyze(com.intellij.openapi.vfs.VirtualFile, AnalysisBudget)}.
+ *  A limit <= 0 means no limit.
+ *
+ *  A {@link Meter} follows one analysis, including that of the lexer of a
+ *  parser grammar. It is checked between the phases of the ANTLR tool and
+ *  for every issue reported, and also checks whether the analysis was
+ *  cancelled, so that an annotation pass for a text that was edited since
+ *  stops instead of competing with the next one. When the limit is hit it
+ *  throws {@link ExceededException}; the issues found so far are reported.
+ */
+public class AnalysisBudget {
+	public static final AnalysisBudget UNLIMITED = new AnalysisBudget(0);
+
+	private final long maxMillis;
+
+	public AnalysisBudget(long maxMillis) {
+		this.maxMillis = maxMillis;
+	}
+
+	public Meter start() {
+		return new Meter();
+	}
+
+	@Override
+	public String toString() {
+		return "maxMillis="+maxMillis;
+	}
+
+	public class Meter {
+		private final long startNanos = System.nanoTime();
+
+		/** Throws ProcessCanceledException if the analysis was cancelled,
+		 *  ExceededException if it's taking too long.
+		 */
+		public void check() {
+			ProgressManager.checkCanceled();
+			if ( maxMillis>0 && System.nanoTime()-startNanos>maxMillis*1_000_000 ) {
+				throw new ExceededException("time limit of "+maxMillis+"ms");
+			}
+		}
+	}
+
+	/** Thrown by a {@link Meter} when the limit is hit; the message says which */
+	public static class ExceededException extends RuntimeException {
+		ExceededException(String limit) {
+			super(limit, null, false, false);
+		}
+	}
+}
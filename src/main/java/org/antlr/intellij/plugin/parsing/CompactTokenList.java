@@ -0,0 +1,329 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/** A list of tokens stored as parallel int arrays (type, channel, start,
+ *  stop, line and column) instead of one {@link CommonToken} per token.
+ *  {@link #get(int)} creates a new CommonToken each time; its text comes from
+ *  the char stream unless the token had a text of its own. As a consequence,
+ *  tokens from this list must be compared by token index, not identity.
+ *
+ *  Tokens added through {@link #add(Token)} are copied so that the list
+ *  doesn't keep them alive.
+ */
+public class CompactTokenList extends AbstractList<Token> implements RandomAccess {
+	private static final int INITIAL_CAPACITY = 256;
+
+	private Pair<TokenSource, CharStream> source;
+
+	private int size;
+	private int[] types = new int[INITIAL_CAPACITY];
+	private int[] channels = new int[INITIAL_CAPACITY];
+	private int[] starts = new int[INITIAL_CAPACITY];
+	private int[] stops = new int[INITIAL_CAPACITY];
+	private int[] lines = new int[INITIAL_CAPACITY];
+	private int[] columns = new int[INITIAL_CAPACITY];
+
+	/** Shared by the tokens returned by {@link #getDetached} */
+	private Pair<TokenSource, CharStream> detachedSource;
+
+	/** Texts of the few tokens whose text isn't the one in the char stream */
+	private Map<Integer, String> texts;
+
+	/** The token source and char stream are taken from the first token added */
+	public CompactTokenList() {
+	}
+
+	public CompactTokenList(Pair<TokenSource, CharStream> source) {
+		this.source = source;
+	}
+
+	/** A list of tokens lexed from input by a lexer that won't be around
+	 *  anymore; the tokens still get a token source giving access to input,
+	 *  which error recovery needs to conjure up missing tokens.
+	 */
+	public CompactTokenList(CharStream input) {
+		this.source = new Pair<>(new InputTokenSource(input), input);
+	}
+
+	@Override
+	public Token get(int i) {
+		if ( i<0 || i>=size ) {
+			throw new IndexOutOfBoundsException("token index "+i+" out of range 0.."+(size-1));
+		}
+		CommonToken t = new CommonToken(source, types[i], channels[i], starts[i], stops[i]);
+		t.setLine(lines[i]);
+		t.setCharPositionInLine(columns[i]);
+		t.setTokenIndex(i);
+		if ( texts!=null ) {
+			String text = texts.get(i);
+			if ( text!=null ) {
+				t.setText(text);
+			}
+		}
+		return t;
+	}
+
+	/** Like {@link #get(int)} but the token holds its own text and refers to
+	 *  neither the char stream nor the lexer, so that trees shared by the
+	 *  parses of successive versions of the input, see {@link IncrementalParser},
+	 *  don't keep every version alive.
+	 */
+	public Token getDetached(int i) {
+		if ( i<0 || i>=size ) {
+			throw new IndexOutOfBoundsException("token index "+i+" out of range 0.."+(size-1));
+		}
+		if ( detachedSource==null ) {
+			detachedSource = new Pair<>(new DetachedTokenSource(source.a.getSourceName()), null);
+		}
+		CommonToken t = new CommonToken(detachedSource, types[i], channels[i], starts[i], stops[i]);
+		t.setLine(lines[i]);
+		t.setCharPositionInLine(columns[i]);
+		t.setTokenIndex(i);
+		String text = texts!=null ? texts.get(i) : null;
+		CharStream input = source.b;
+		if ( text==null && input!=null ) {
+			// what CommonToken.getText() would read
+			int n = input.size();
+			text = starts[i]<n && stops[i]<n ? input.getText(Interval.of(starts[i], stops[i])) : "<EOF>";
+		}
+		t.setText(text);
+		return t;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean add(Token t) {
+		if ( source==null ) {
+			source = new Pair<>(t.getTokenSource(), t.getInputStream());
+		}
+		add(t.getType(), t.getChannel(), t.getStartIndex(), t.getStopIndex(),
+			t.getLine(), t.getCharPositionInLine(), ownText(t));
+		return true;
+	}
+
+	/** Append a token; text is null if it's the one in the char stream */
+	public void add(int type, int channel, int start, int stop, int line, int charPositionInLine,
+					@Nullable String text) {
+		ensureCapacity(size+1);
+		set(size, type, channel, start, stop, line, charPositionInLine, text);
+		size++;
+	}
+
+	/** Append tokens [from, to) of other, moving them by delta chars and
+	 *  lineDelta lines; tokens on line onLine are also moved by columnDelta.
+	 */
+	public void addRange(CompactTokenList other, int from, int to, int delta, int lineDelta,
+						 int onLine, int columnDelta) {
+		ensureCapacity(size+to-from);
+		for (int i = from; i<to; i++, size++) {
+			types[size] = other.types[i];
+			channels[size] = other.channels[i];
+			starts[size] = other.starts[i]+delta;
+			stops[size] = other.stops[i]+delta;
+			lines[size] = other.lines[i]+lineDelta;
+			columns[size] = other.lines[i]==onLine ? other.columns[i]+columnDelta : other.columns[i];
+		}
+		if ( other.texts!=null ) {
+			for (Map.Entry<Integer, String> e : other.texts.entrySet()) {
+				int i = e.getKey();
+				if ( i>=from && i<to ) {
+					setText(size-(to-i), e.getValue());
+				}
+			}
+		}
+	}
+
+	@Override
+	public Token set(int i, Token t) {
+		Token old = get(i);
+		set(i, t.getType(), t.getChannel(), t.getStartIndex(), t.getStopIndex(),
+			t.getLine(), t.getCharPositionInLine(), ownText(t));
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		size = 0;
+		texts = null;
+	}
+
+	/** Rough size of the arrays and texts holding the tokens */
+	public long estimatedBytes() {
+		return (long) types.length*6*Integer.BYTES + (texts!=null ? texts.size()*64L : 0);
+	}
+
+	public int getType(int i) {
+		return types[i];
+	}
+
+	public int getChannel(int i) {
+		return channels[i];
+	}
+
+	public int getStartIndex(int i) {
+		return starts[i];
+	}
+
+	public int getStopIndex(int i) {
+		return stops[i];
+	}
+
+	private void set(int i, int type, int channel, int start, int stop, int line, int charPositionInLine,
+					 @Nullable String text) {
+		types[i] = type;
+		channels[i] = channel;
+		starts[i] = start;
+		stops[i] = stop;
+		lines[i] = line;
+		columns[i] = charPositionInLine;
+		setText(i, text);
+	}
+
+	private void setText(int i, @Nullable String text) {
+		if ( text!=null ) {
+			if ( texts==null ) {
+				texts = new HashMap<>();
+			}
+			texts.put(i, text);
+		}
+		else if ( texts!=null ) {
+			texts.remove(i);
+		}
+	}
+
+	/** Returns t's text if it can't be read back from the char stream */
+	@Nullable
+	private String ownText(Token t) {
+		String text = t.getText();
+		if ( t.getType()==Token.EOF || text==null ) {
+			return null; // CommonToken will come up with the same text
+		}
+		CharStream input = source.b;
+		int start = t.getStartIndex(), stop = t.getStopIndex();
+		if ( input==null || input!=t.getInputStream() || start<0 || stop>=input.size() ||
+			 stop-start+1!=text.length() || !text.equals(input.getText(Interval.of(start, stop))) )
+		{
+			return text;
+		}
+		return null;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if ( capacity>types.length ) {
+			int newCapacity = Math.max(capacity, types.length*2);
+			types = Arrays.copyOf(types, newCapacity);
+			channels = Arrays.copyOf(channels, newCapacity);
+			starts = Arrays.copyOf(starts, newCapacity);
+			stops = Arrays.copyOf(stops, newCapacity);
+			lines = Arrays.copyOf(lines, newCapacity);
+			columns = Arrays.copyOf(columns, newCapacity);
+		}
+	}
+
+	/** Source of detached tokens, which only knows the name of the input */
+	private static class DetachedTokenSource implements TokenSource {
+		private final String sourceName;
+
+		DetachedTokenSource(String sourceName) {
+			this.sourceName = sourceName;
+		}
+
+		@Override
+		public Token nextToken() {
+			throw new UnsupportedOperationException("detached token");
+		}
+
+		@Override
+		public int getLine() {
+			return 0;
+		}
+
+		@Override
+		public int getCharPositionInLine() {
+			return -1;
+		}
+
+		@Override
+		public CharStream getInputStream() {
+			return null;
+		}
+
+		@Override
+		public String getSourceName() {
+			return sourceName;
+		}
+
+		@Override
+		public void setTokenFactory(TokenFactory<?> factory) {
+			throw new UnsupportedOperationException("detached token");
+		}
+
+		@Override
+		public TokenFactory<?> getTokenFactory() {
+			return CommonTokenFactory.DEFAULT;
+		}
+	}
+
+	/** Stands for a lexer that's gone */
+	private static class InputTokenSource implements TokenSource {
+		private final CharStream input;
+
+		InputTokenSource(CharStream input) {
+			this.input = input;
+		}
+
+		@Override
+		public Token nextToken() {
+			throw new UnsupportedOperationException("tokens were already lexed");
+		}
+
+		@Override
+		public int getLine() {
+			return 0;
+		}
+
+		@Override
+		public int getCharPositionInLine() {
+			return -1;
+		}
+
+		@Override
+		public CharStream getInputStream() {
+			return input;
+		}
+
+		@Override
+		public String getSourceName() {
+			return input.getSourceName();
+		}
+
+		@Override
+		public void setTokenFactory(TokenFactory<?> factory) {
+			throw new UnsupportedOperationException("tokens were already lexed");
+		}
+
+		@Override
+		public TokenFactory<?> getTokenFactory() {
+			return CommonTokenFactory.DEFAULT;
+		}
+	}
+}
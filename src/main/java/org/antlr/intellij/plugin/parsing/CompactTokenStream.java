@@ -0,0 +1,169 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.LexerNoViableAltException;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Pair;
+
+/** A {@link TokenStreamSubset} that buffers its tokens in a
+ *  {@link CompactTokenList}, so large inputs don't cost one object per
+ *  token. Tokens are created on demand by {@link #get(int)}, {@link #LT(int)}
+ *  etc. and must be compared by token index rather than identity.
+ *
+ *  {@link #LA(int)} and the channel skipping it relies on read the token
+ *  types and channels straight from the list, so that adaptive prediction,
+ *  which looks ahead a token at a time, doesn't create any token.
+ */
+public class CompactTokenStream extends TokenStreamSubset {
+	private final LexingBudget.Meter meter;
+	private final ANTLRErrorListener errorListener;
+
+	public CompactTokenStream(TokenSource tokenSource) {
+		this(tokenSource, null, null);
+	}
+
+	/** A stream that stops with an EOF token, reported to errorListener,
+	 *  once meter says lexing went over budget. The char stream of
+	 *  tokenSource should be tracked by meter too.
+	 */
+	public CompactTokenStream(TokenSource tokenSource, LexingBudget.Meter meter, ANTLRErrorListener errorListener) {
+		super(tokenSource);
+		this.tokens = new CompactTokenList(new Pair<>(tokenSource, tokenSource.getInputStream()));
+		this.meter = meter;
+		this.errorListener = errorListener;
+	}
+
+	/** A stream over tokens that were already lexed, up to and including EOF */
+	public CompactTokenStream(CompactTokenList tokens) {
+		super(new ListTokenSource(tokens));
+		this.tokens = tokens;
+		this.meter = null;
+		this.errorListener = null;
+		fetchedEOF = true;
+	}
+
+	public CompactTokenList getTokenList() {
+		return (CompactTokenList) tokens;
+	}
+
+	@Override
+	protected int fetch(int n) {
+		if ( meter==null ) {
+			return super.fetch(n);
+		}
+		for (int i = 0; i<n; i++) {
+			if ( fetchedEOF ) {
+				return i;
+			}
+			try {
+				super.fetch(1);
+				if ( !fetchedEOF ) {
+					meter.tokenAdded(tokens.size(), ((CompactTokenList) tokens).estimatedBytes());
+				}
+			}
+			catch (LexingBudget.ExceededException e) {
+				stopLexing(e);
+				return i+1;
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public int LA(int i) {
+		int index = lookAhead(i);
+		return index>=0 ? getTokenList().getType(index) : Token.INVALID_TYPE;
+	}
+
+	@Override
+	public Token LT(int k) {
+		int index = lookAhead(k);
+		return index>=0 ? createToken(index) : null;
+	}
+
+	/** The token at index for {@link #LT}, by default from {@link CompactTokenList#get} */
+	protected Token createToken(int index) {
+		return tokens.get(index);
+	}
+
+	@Override
+	protected Token LB(int k) {
+		return LT(-k);
+	}
+
+	/** Index of the k-th token on our channel from the current position,
+	 *  as {@link CommonTokenStream#LT} finds it, or -1 if there's none.
+	 *  Both {@link #LA} and {@link #LT} look ahead through here.
+	 */
+	protected int lookAhead(int k) {
+		lazyInit();
+		if ( k==0 ) {
+			return -1;
+		}
+		int i = p;
+		if ( k<0 ) {
+			if ( p+k<0 ) {
+				return -1;
+			}
+			for (int n = 1; n<=-k && i>0; n++) {
+				i = previousTokenOnChannel(i-1, channel);
+			}
+			return i;
+		}
+		for (int n = 1; n<k; n++) {
+			if ( sync(i+1) ) {
+				i = nextTokenOnChannel(i+1, channel);
+			}
+		}
+		return i;
+	}
+
+	@Override
+	protected int nextTokenOnChannel(int i, int channel) {
+		sync(i);
+		if ( i>=size() ) {
+			return size()-1;
+		}
+		CompactTokenList list = getTokenList();
+		while ( list.getChannel(i)!=channel ) {
+			if ( list.getType(i)==Token.EOF ) {
+				return i;
+			}
+			i++;
+			sync(i);
+		}
+		return i;
+	}
+
+	@Override
+	protected int previousTokenOnChannel(int i, int channel) {
+		sync(i);
+		if ( i>=size() ) {
+			return size()-1; // EOF is on every channel
+		}
+		CompactTokenList list = getTokenList();
+		while ( i>=0 ) {
+			if ( list.getType(i)==Token.EOF || list.getChannel(i)==channel ) {
+				return i;
+			}
+			i--;
+		}
+		return i;
+	}
+
+	/** End the stream with an EOF where the lexer stopped and report it */
+	private void stopLexing(LexingBudget.ExceededException e) {
+		CharStream input = tokenSource.getInputStream();
+		int index = input.index();
+		int line = tokenSource.getLine();
+		int charPositionInLine = tokenSource.getCharPositionInLine();
+		((CompactTokenList) tokens).add(Token.EOF, Token.DEFAULT_CHANNEL, index, index-1, line, charPositionInLine, "<EOF>");
+		fetchedEOF = true;
+		errorListener.syntaxError(null, null, line, charPositionInLine, e.getErrorMessage(),
+								  new LexerNoViableAltException(null, input, index, null));
+	}
+}
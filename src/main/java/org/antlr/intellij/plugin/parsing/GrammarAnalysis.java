@@ -0,0 +1,393 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.intellij.plugin.validation.GrammarInfoMessage;
+import org.antlr.intellij.plugin.validation.GrammarIssue;
+import org.antlr.intellij.plugin.validation.IssueMessageRenderer;
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+import org.antlr.runtime.TokenStream;
+import org.antlr.v4.tool.ANTLRMessage;
+import org.antlr.v4.tool.ErrorType;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.LexerGrammar;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/** What processing one revision of a grammar file with ANTLR produced, see
+ *  {@link GrammarAnalysisService}: the issues the external annotator shows
+ *  and the grammar objects the preview, profiler and code generation use.
+ *  Shared by all of them, so never modified: moving it to another revision
+ *  makes a new one, see {@link #movedTo}.
+ */
+public class GrammarAnalysis {
+	/** Issues about more than the rule they're found in: other rules, how
+	 *  rules use each other, the tokens the whole grammar defines...
+	 */
+	private static final Set<ErrorType> WHOLE_GRAMMAR_ERRORS = EnumSet.of(
+		ErrorType.RULE_REDEFINITION, ErrorType.ACTION_REDEFINITION, ErrorType.NO_RULES,
+		ErrorType.LEFT_RECURSION_CYCLES, ErrorType.EPSILON_LR_FOLLOW,
+		ErrorType.EPSILON_TOKEN, ErrorType.EPSILON_CLOSURE, ErrorType.EPSILON_OPTIONAL, ErrorType.EOF_CLOSURE,
+		ErrorType.IMPLICIT_TOKEN_DEFINITION, ErrorType.IMPLICIT_STRING_DEFINITION, ErrorType.TOKEN_NAME_REASSIGNMENT,
+		ErrorType.TOKEN_UNREACHABLE, ErrorType.ALT_LABEL_REDEF, ErrorType.ALT_LABEL_CONFLICTS_WITH_RULE,
+		ErrorType.MODE_WITHOUT_RULES, ErrorType.CHANNEL_CONFLICTS_WITH_TOKEN, ErrorType.CHANNEL_CONFLICTS_WITH_MODE,
+		ErrorType.MODE_CONFLICTS_WITH_TOKEN, ErrorType.TOKEN_CONFLICTS_WITH_COMMON_CONSTANTS,
+		ErrorType.CHANNEL_CONFLICTS_WITH_COMMON_CONSTANTS, ErrorType.MODE_CONFLICTS_WITH_COMMON_CONSTANTS,
+		ErrorType.CONSTANT_VALUE_IS_NOT_A_RECOGNIZED_TOKEN_NAME, ErrorType.CONSTANT_VALUE_IS_NOT_A_RECOGNIZED_MODE_NAME,
+		ErrorType.CONSTANT_VALUE_IS_NOT_A_RECOGNIZED_CHANNEL_NAME
+	);
+
+	/** {lexer, parser} as processed, even if they have errors; null if the
+	 *  grammar file couldn't be parsed at all.
+	 */
+	private final Grammar[] grammars;
+	private final boolean loaded;
+	private final boolean partial;
+	private final boolean provisional;
+	private final List<GrammarIssue> issues;
+	private final List<String> errorMessages;
+	/** Tokens of the grammar file's revision if {@link #movedTo moved} there, null otherwise */
+	@Nullable
+	private final TokenStream tokens;
+	/** Index of each token of the main grammar's token stream in tokens, -1 for hidden ones; null if not moved */
+	@Nullable
+	private final int[] grammarTokenIndexes;
+	/** Rules of the grammar file's revision, null for lexer grammars and if it couldn't be parsed */
+	@Nullable
+	private final GrammarRules rules;
+
+	public GrammarAnalysis(@Nullable Grammar[] grammars,
+						   boolean loaded,
+						   List<GrammarIssue> issues,
+						   List<String> errorMessages)
+	{
+		this(grammars, loaded, false, issues, errorMessages);
+	}
+
+	public GrammarAnalysis(@Nullable Grammar[] grammars,
+						   boolean loaded,
+						   boolean partial,
+						   List<GrammarIssue> issues,
+						   List<String> errorMessages)
+	{
+		this(grammars, loaded, partial, issues, errorMessages, null);
+	}
+
+	GrammarAnalysis(@Nullable Grammar[] grammars,
+					boolean loaded,
+					boolean partial,
+					List<GrammarIssue> issues,
+					List<String> errorMessages,
+					@Nullable GrammarRules rules)
+	{
+		this(grammars, grammars!=null && loaded && !partial, partial, false, issues, errorMessages, null, null, rules);
+	}
+
+	private GrammarAnalysis(@Nullable Grammar[] grammars,
+							boolean loaded,
+							boolean partial,
+							boolean provisional,
+							List<GrammarIssue> issues,
+							List<String> errorMessages,
+							@Nullable TokenStream tokens,
+							@Nullable int[] grammarTokenIndexes,
+							@Nullable GrammarRules rules)
+	{
+		this.grammars = grammars;
+		this.loaded = loaded;
+		this.partial = partial;
+		this.provisional = provisional;
+		this.issues = Collections.unmodifiableList(issues);
+		this.errorMessages = Collections.unmodifiableList(errorMessages);
+		this.tokens = tokens;
+		this.grammarTokenIndexes = grammarTokenIndexes;
+		this.rules = rules;
+	}
+
+	/** An analysis with issues only, for a revision whose rules are rules,
+	 *  see {@link #isProvisional}.
+	 */
+	static GrammarAnalysis provisional(List<GrammarIssue> issues, List<String> errorMessages, GrammarRules rules) {
+		return new GrammarAnalysis(null, false, false, true, issues, errorMessages, null, null, rules);
+	}
+
+	/** This analysis for the revision whose rules are rules, which it's
+	 *  already right for, e.g. once {@link #movedTo moved} there.
+	 */
+	GrammarAnalysis withRules(@Nullable GrammarRules rules) {
+		return new GrammarAnalysis(grammars, loaded, partial, provisional, issues, errorMessages, tokens, grammarTokenIndexes, rules);
+	}
+
+	/** {lexer, parser} like {@link ParsingUtils#loadGrammars} returns them,
+	 *  null if the grammar has errors.
+	 */
+	@Nullable
+	public Grammar[] getGrammars() {
+		return loaded ? grammars : null;
+	}
+
+	/** {lexer, parser} whether they have errors or not, null if the grammar
+	 *  file couldn't be parsed. Tells which files the analysis depends on.
+	 */
+	@Nullable
+	public Grammar[] getProcessedGrammars() {
+		return grammars;
+	}
+
+	/** The parser grammar, or the lexer grammar if there's no parser, even if
+	 *  it has errors.
+	 */
+	@Nullable
+	public Grammar getMainGrammar() {
+		if ( grammars==null ) {
+			return null;
+		}
+		return grammars[1]!=null ? grammars[1] : grammars[0];
+	}
+
+	/** Whether the analysis was stopped by its {@link AnalysisBudget}: the
+	 *  issues are those found until then and there are no grammars. Never
+	 *  cached.
+	 */
+	public boolean isPartial() {
+		return partial;
+	}
+
+	/** Whether only the rules that changed since the previous analysis were
+	 *  checked, see {@link GrammarAnalysisService}: the issues of the other
+	 *  rules are those of the previous analysis, moved, and whole-grammar
+	 *  issues may be out of date. There are no grammars. Never cached.
+	 */
+	public boolean isProvisional() {
+		return provisional;
+	}
+
+	@Nullable
+	GrammarRules getRules() {
+		return rules;
+	}
+
+	public boolean isLexerGrammar() {
+		return grammars!=null && grammars[0] instanceof LexerGrammar && grammars[1]==null;
+	}
+
+	/** This analysis moved to a new revision of its grammar file, given the
+	 *  tokens of the new text, if no rule nor any other significant token
+	 *  changed: ANTLR would report the same issues and build the same
+	 *  grammars for it, only at other offsets. Edits to whitespace and
+	 *  comments don't need to process the whole grammar again that way.
+	 *
+	 *  The new analysis shares the grammars and has copies of the issues
+	 *  pointing at the tokens of the new text, rendered again with their new
+	 *  lines, so the annotator highlights the right places; see
+	 *  {@link #getGrammarToken} for the grammars' tokens. This analysis is
+	 *  left as is. Returns null if any significant token differs or an
+	 *  issue refers to something that can't be moved, e.g. a place within
+	 *  an action.
+	 */
+	@Nullable
+	GrammarAnalysis movedTo(TokenStream tokens) {
+		Grammar g = getMainGrammar();
+		if ( g==null || g.tokenStream==null ) {
+			return null;
+		}
+		TokenStream current = getTokenStream();
+		List<CommonToken> from = significantTokens(current);
+		List<CommonToken> to = significantTokens(tokens);
+		if ( from==null || to==null || from.size()!=to.size() ) {
+			return null;
+		}
+		int[] currentToNew = new int[current.size()];
+		Arrays.fill(currentToNew, -1);
+		for (int i = 0; i<from.size(); i++) {
+			if ( from.get(i).getType()!=to.get(i).getType() ||
+				 !Objects.equals(from.get(i).getText(), to.get(i).getText()) )
+			{
+				return null;
+			}
+			currentToNew[from.get(i).getTokenIndex()] = to.get(i).getTokenIndex();
+		}
+		for (GrammarIssue issue : issues) {
+			ANTLRMessage msg = issue.getMsg();
+			if ( msg!=null && msg.getErrorType()==ErrorType.RULE_REDEFINITION ) {
+				return null; // mentions the line of the other definition
+			}
+			for (Token t : issue.getOffendingTokens()) {
+				if ( t!=null && !isMovable(t, current, currentToNew) ) {
+					return null;
+				}
+			}
+			if ( issue.getAnnotation()!=null && msg!=null && msg.offendingToken!=null &&
+				 !isMovable(msg.offendingToken, current, currentToNew) )
+			{
+				return null;
+			}
+		}
+
+		int[] grammarTokenIndexes = new int[g.tokenStream.size()];
+		for (int i = 0; i<grammarTokenIndexes.length; i++) {
+			int index = this.grammarTokenIndexes!=null ? this.grammarTokenIndexes[i] : i;
+			grammarTokenIndexes[i] = index>=0 ? currentToNew[index] : -1;
+		}
+		List<GrammarIssue> movedIssues = new ArrayList<>(issues.size());
+		for (GrammarIssue issue : issues) {
+			movedIssues.add(move(issue, tokens, currentToNew));
+		}
+		return new GrammarAnalysis(grammars, loaded, partial, provisional, movedIssues, errorMessages, tokens, grammarTokenIndexes, rules);
+	}
+
+	/** The issues of this analysis that still hold for a revision of its
+	 *  grammar file whose rules are rules, if only the bodies of the changed
+	 *  rules differ, see {@link GrammarRules#changedSince}: those outside of
+	 *  the changed rules, moved to the new tokens like {@link #movedTo} does.
+	 *  The changed rules are to be checked again. Infos about unused rules
+	 *  and issues not reported by ANTLR are left out too, since they're
+	 *  found again for the whole file anyway. Whole-grammar issues outside
+	 *  of the changed rules are kept, although the changes may affect them,
+	 *  until the next full analysis.
+	 *
+	 *  Returns null if there are no rules to compare with or an issue
+	 *  outside of the changed rules can't be moved.
+	 */
+	@Nullable
+	List<GrammarIssue> issuesOutside(GrammarRules rules, BitSet changed) {
+		TokenStream current = getTokenStream();
+		if ( this.rules==null || current==null || this.rules.getTokenStream()!=current ) {
+			return null;
+		}
+		int[] currentToNew = rules.tokenIndexesFrom(this.rules, changed);
+		List<GrammarIssue> outside = new ArrayList<>();
+		for (GrammarIssue issue : issues) {
+			ANTLRMessage msg = issue.getMsg();
+			if ( msg==null || msg instanceof GrammarInfoMessage ) {
+				continue;
+			}
+			List<Token> offendingTokens = new ArrayList<>(issue.getOffendingTokens());
+			if ( issue.getAnnotation()!=null && msg.offendingToken!=null ) {
+				offendingTokens.add(msg.offendingToken);
+			}
+			boolean inChangedRules = false;
+			boolean movable = true;
+			for (Token t : offendingTokens) {
+				if ( t!=null ) {
+					inChangedRules |= this.rules.isInRules(t, changed);
+					movable &= isMovable(t, current, currentToNew);
+				}
+			}
+			if ( inChangedRules ) {
+				continue;
+			}
+			if ( !movable ) {
+				return null;
+			}
+			outside.add(move(issue, rules.getTokenStream(), currentToNew));
+		}
+		return outside;
+	}
+
+	/** Whether msg is about the rule it's found in alone, given the
+	 *  declarations of the others; false for whole-grammar issues, whose
+	 *  checks need every rule as it is.
+	 */
+	static boolean isRuleLocal(@Nullable ANTLRMessage msg) {
+		return msg!=null && !(msg instanceof GrammarInfoMessage) && msg.getErrorType()!=null &&
+			   !WHOLE_GRAMMAR_ERRORS.contains(msg.getErrorType());
+	}
+
+	/** A copy of issue pointing at the moved tokens */
+	private static GrammarIssue move(GrammarIssue issue, TokenStream tokens, int[] currentToNew) {
+		ANTLRMessage msg = issue.getMsg();
+		ANTLRMessage movedMsg = msg;
+		String annotation = issue.getAnnotation();
+		if ( annotation!=null && msg!=null && msg.offendingToken!=null ) {
+			Token t = tokens.get(currentToNew[msg.offendingToken.getTokenIndex()]);
+			if ( msg instanceof GrammarInfoMessage ) { // "unused parser rule" shows no position
+				movedMsg = new GrammarInfoMessage(msg.fileName, t, msg.getArgs());
+			}
+			else {
+				movedMsg = new ANTLRMessage(msg.getErrorType(), msg.getCause(), t, msg.getArgs());
+				movedMsg.fileName = msg.fileName;
+				movedMsg.line = t.getLine();
+				movedMsg.charPosition = t.getCharPositionInLine();
+				annotation = IssueMessageRenderer.render(movedMsg);
+			}
+		}
+		GrammarIssue moved = new GrammarIssue(movedMsg);
+		moved.setAnnotation(annotation);
+		for (Token t : issue.getOffendingTokens()) {
+			moved.getOffendingTokens().add(t!=null ? tokens.get(currentToNew[t.getTokenIndex()]) : null);
+		}
+		return moved;
+	}
+
+	/** The token at tokenIndex in the main grammar's token stream, e.g. from
+	 *  the AST of a rule or {@link Grammar#getStateToGrammarRegion}, as it is
+	 *  in the revision of the grammar file this analysis is for. The
+	 *  grammar's own tokens are those of the revision it was built from,
+	 *  which differs once the analysis was {@link #movedTo moved}. Null if
+	 *  there's no such token.
+	 */
+	@Nullable
+	public Token getGrammarToken(int tokenIndex) {
+		Grammar g = getMainGrammar();
+		if ( g==null || g.tokenStream==null || tokenIndex<0 || tokenIndex>=g.tokenStream.size() ) {
+			return null;
+		}
+		if ( grammarTokenIndexes==null ) {
+			return g.tokenStream.get(tokenIndex);
+		}
+		int index = grammarTokenIndexes[tokenIndex];
+		return index>=0 ? tokens.get(index) : null;
+	}
+
+	/** Tokens of the revision of the grammar file this analysis is for, null without grammars */
+	@Nullable
+	private TokenStream getTokenStream() {
+		if ( tokens!=null ) {
+			return tokens;
+		}
+		Grammar g = getMainGrammar();
+		return g!=null ? g.tokenStream : null;
+	}
+
+	/** Tokens on the default channel, null if some aren't CommonTokens */
+	@Nullable
+	private static List<CommonToken> significantTokens(TokenStream tokens) {
+		List<CommonToken> significant = new ArrayList<>();
+		for (int i = 0; i<tokens.size(); i++) {
+			Token t = tokens.get(i);
+			if ( !(t instanceof CommonToken) ) {
+				return null;
+			}
+			if ( t.getChannel()==Token.DEFAULT_CHANNEL ) {
+				significant.add((CommonToken) t);
+			}
+		}
+		return significant;
+	}
+
+	/** Whether t is a significant token of tokens, thus has a counterpart in the moved text */
+	private static boolean isMovable(Token t, TokenStream tokens, int[] currentToNew) {
+		int i = t.getTokenIndex();
+		return i>=0 && i<tokens.size() && tokens.get(i)==t && currentToNew[i]>=0;
+	}
+
+	/** Errors, warnings and infos about the grammar file, ready to annotate */
+	public List<GrammarIssue> getIssues() {
+		return issues;
+	}
+
+	/** Why the grammars couldn't be loaded, or why their lexer couldn't,
+	 *  formatted for the tool output console.
+	 */
+	public List<String> getErrorMessages() {
+		return errorMessages;
+	}
+}
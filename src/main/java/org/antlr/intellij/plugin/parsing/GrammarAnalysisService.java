@@ -0,0 +1,601 @@
+package org.antlr.intellij.plugin.parsing;
+
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.antlr.intellij.plugin.PluginIgnoreMissingTokensFileErrorManager;
+import org.antlr.intellij.plugin.configdialogs.ANTLRv4GrammarProperties;
+import org.antlr.intellij.plugin.validation.GrammarInfoMessage;
+import org.antlr.intellij.plugin.validation.GrammarIssue;
+import org.antlr.intellij.plugin.validation.GrammarIssuesCollector;
+import org.antlr.intellij.plugin.validation.GrammarIssuesCollectorToolListener;
+import org.antlr.intellij.plugin.validation.IssueMessageRenderer;
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CharStream;
+import org.antlr.runtime.Token;
+import org.antlr.v4.Tool;
+import org.antlr.v4.parse.ANTLRParser;
+import org.antlr.v4.parse.TokenVocabParser;
+import org.antlr.v4.tool.ANTLRMessage;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.LexerGrammar;
+import org.antlr.v4.tool.ast.GrammarAST;
+import org.antlr.v4.tool.ast.GrammarRootAST;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import static org.antlr.intellij.plugin.configdialogs.ANTLRv4GrammarPropertiesStore.getGrammarProperties;
+import static org.apache.commons.lang.StringUtils.isNotBlank;
+
+/** Processes grammar files with ANTLR for the whole plugin: the external
+ *  annotator shows the issues of an analysis, the preview and profiler use
+ *  its grammar objects and code generation checks them to tell whether the
+ *  generated parser is stale. A revision of a grammar is processed once,
+ *  however many of them ask for it.
+ *
+ *  Analyses are kept in a {@link GrammarObjectCache} for as long as none of
+ *  the files they were loaded from changes and the settings they were
+ *  processed with stay the same.
+ *
+ *  While the grammar is edited, the annotator gets issues quicker than a
+ *  full analysis would: if only whitespace and comments changed, those of
+ *  the previous analysis are moved, see {@link GrammarAnalysis#movedTo};
+ *  if only the bodies of some rules changed, ANTLR checks these rules alone
+ *  and the issues of the others are reused, see
+ *  {@link GrammarAnalysis#isProvisional}. A full analysis follows in the
+ *  background then, for the grammar objects and the whole-grammar issues.
+ */
+public class GrammarAnalysisService {
+	private static final Logger LOG = Logger.getInstance(GrammarAnalysisService.class);
+	private static final String LANGUAGE_ARG_PREFIX = "-Dlanguage=";
+
+	private final Project project;
+	private final GrammarObjectCache cache = new GrammarObjectCache();
+	private final TokensFileCache tokensFiles = new TokensFileCache();
+	/** Full analyses following provisional ones, one at a time */
+	private final ExecutorService backgroundAnalyses =
+		AppExecutorUtil.createBoundedApplicationPoolExecutor("ANTLR Grammar Analysis", 1);
+	/** The background analysis of each grammar file still to be done, by file name */
+	private final Map<String, ProgressIndicator> pendingAnalyses = new ConcurrentHashMap<>();
+
+	public GrammarAnalysisService(Project project) {
+		this.project = project;
+	}
+
+	public static GrammarAnalysisService getInstance(Project project) {
+		return ServiceManager.getService(project, GrammarAnalysisService.class);
+	}
+
+	/** The analysis of the current text of grammarFile and of the files it
+	 *  uses, from the cache if none of them changed. Can be called from any
+	 *  thread, without holding the read lock.
+	 */
+	@NotNull
+	public GrammarAnalysis analyze(VirtualFile grammarFile) {
+		return analyze(grammarFile, false, false, AnalysisBudget.UNLIMITED.start());
+	}
+
+	/** Like {@link #analyze(VirtualFile)}, for the annotator: stops once
+	 *  budget is spent, and only checks the rules that changed since the
+	 *  previous analysis if it can.
+	 *
+	 *  A stopped analysis is {@link GrammarAnalysis#isPartial partial}, with
+	 *  the issues found so far and one saying the analysis was stopped; it
+	 *  isn't cached, so the preview or a later pass analyzes the grammar
+	 *  again. A {@link GrammarAnalysis#isProvisional provisional} analysis
+	 *  isn't cached either: the full analysis is started in the background
+	 *  and the file annotated again once it's done. Throws
+	 *  ProcessCanceledException as soon as it's cancelled.
+	 */
+	@NotNull
+	public GrammarAnalysis analyze(VirtualFile grammarFile, AnalysisBudget budget) {
+		GrammarAnalysis analysis = analyze(grammarFile, false, true, budget.start());
+		if ( analysis.isProvisional() ) {
+			analyzeInBackground(grammarFile);
+		}
+		return analysis;
+	}
+
+	/** The analysis of grammarFile if it's cached and still current, null otherwise */
+	@Nullable
+	public GrammarAnalysis getCachedAnalysis(VirtualFile grammarFile) {
+		return cache.get(grammarFile.getPath(), getSettings(getAnalysisArgs(grammarFile)));
+	}
+
+	/** Identifies the contents of grammarFile and of the files its cached
+	 *  analysis depends on, see {@link GrammarObjectCache#getRevision}; null
+	 *  if it isn't cached or no longer current.
+	 */
+	@Nullable
+	public ParsingResultCache.Key getRevision(VirtualFile grammarFile) {
+		return cache.getRevision(grammarFile.getPath(), getSettings(getAnalysisArgs(grammarFile)));
+	}
+
+	/** The token at tokenIndex in the token stream of g, loaded from
+	 *  grammarFile, where it is in the current text of grammarFile; see
+	 *  {@link GrammarAnalysis#getGrammarToken}. Null if there's no such token.
+	 */
+	@Nullable
+	public Token getGrammarToken(VirtualFile grammarFile, Grammar g, int tokenIndex) {
+		GrammarAnalysis analysis = getCachedAnalysis(grammarFile);
+		if ( analysis!=null && analysis.getMainGrammar()==g ) {
+			return analysis.getGrammarToken(tokenIndex);
+		}
+		return tokenIndex>=0 && tokenIndex<g.tokenStream.size() ? g.tokenStream.get(tokenIndex) : null;
+	}
+
+	/** Grammar files, other than fileName itself, whose cached analyses
+	 *  depend on fileName, see {@link GrammarObjectCache#getDependents}.
+	 */
+	public List<String> getDependents(String fileName) {
+		return cache.getDependents(fileName);
+	}
+
+	public void forget(String grammarFileName) {
+		cache.remove(grammarFileName);
+	}
+
+	/** Drop the vocabulary read from a .tokens file that changed on disk */
+	public void forgetTokensFile(String tokensFileName) {
+		tokensFiles.remove(tokensFileName);
+	}
+
+	public void clear() {
+		cache.clear();
+		tokensFiles.clear();
+	}
+
+	/** Number of grammar files analyzed */
+	public int size() {
+		return cache.size();
+	}
+
+	/** Analyze grammarFile fully, off the annotator's pass, then have it
+	 *  annotated again. Replaces the analysis still pending for it, if any,
+	 *  which was for an older text.
+	 */
+	private void analyzeInBackground(VirtualFile grammarFile) {
+		ProgressIndicator indicator = new EmptyProgressIndicator();
+		ProgressIndicator pending = pendingAnalyses.put(grammarFile.getPath(), indicator);
+		if ( pending!=null ) {
+			pending.cancel();
+		}
+		backgroundAnalyses.execute(() -> {
+			try {
+				if ( project.isDisposed() || indicator.isCanceled() ) {
+					return;
+				}
+				ProgressManager.getInstance().runProcess(() -> analyze(grammarFile), indicator);
+			}
+			catch (ProcessCanceledException e) {
+				return; // edited again
+			}
+			finally {
+				pendingAnalyses.remove(grammarFile.getPath(), indicator);
+			}
+			ApplicationManager.getApplication().invokeLater(() -> {
+				PsiFile file = grammarFile.isValid() ? PsiManager.getInstance(project).findFile(grammarFile) : null;
+				if ( file!=null ) {
+					DaemonCodeAnalyzer.getInstance(project).restart(file);
+				}
+			}, project.getDisposed());
+		});
+	}
+
+	/** If lexerOnly, null unless grammarFile is a lexer grammar; other
+	 *  grammars aren't cached then, so that a tokenVocab pointing at a parser
+	 *  grammar doesn't load that grammar's own lexer, and so on. If
+	 *  provisional, the analysis may be provisional, see
+	 *  {@link #checkChangedRules}.
+	 */
+	private GrammarAnalysis analyze(VirtualFile grammarFile, boolean lexerOnly, boolean provisional, AnalysisBudget.Meter meter) {
+		List<String> args = getAnalysisArgs(grammarFile);
+		String settings = getSettings(args);
+		GrammarAnalysis analysis = cache.get(grammarFile.getPath(), settings);
+		if ( analysis==null ) {
+			GrammarAnalysis previous = cache.getPrevious(grammarFile.getPath(), settings);
+			// digests of what the analysis is built from, taken before or while reading it
+			Map<String, ParsingResultCache.Key> read = new LinkedHashMap<>();
+			if ( previous!=null ) {
+				read.putAll(cache.getDigests(grammarFile.getPath())); // just checked by getPrevious
+			}
+			analysis = load(grammarFile, args, lexerOnly, provisional, previous, read, meter);
+			if ( analysis==null ) {
+				return null;
+			}
+			if ( !analysis.isPartial() && !analysis.isProvisional() ) {
+				cache.put(grammarFile.getPath(), analysis, settings, read);
+			}
+		}
+		if ( lexerOnly && analysis.getProcessedGrammars()!=null && !analysis.isLexerGrammar() ) {
+			return null;
+		}
+		return analysis;
+	}
+
+	/** The arguments that matter to analyze grammarFile, i.e. not those
+	 *  about generating code.
+	 */
+	private List<String> getAnalysisArgs(VirtualFile grammarFile) {
+		ANTLRv4GrammarProperties grammarProperties = getGrammarProperties(project, grammarFile);
+		List<String> args = new ArrayList<>();
+		args.add("-lib");
+		args.add(RunANTLROnGrammarFile.resolveLibDir(project, grammarFile, grammarProperties));
+		String language = grammarProperties.getLanguage();
+		if ( isNotBlank(language) ) {
+			args.add(LANGUAGE_ARG_PREFIX+language);
+		}
+		String encoding = grammarProperties.getEncoding();
+		if ( isNotBlank(encoding) ) {
+			args.add("-encoding");
+			args.add(encoding);
+		}
+		return args;
+	}
+
+	private static String getSettings(List<String> args) {
+		return String.join(" ", args);
+	}
+
+	/** Analyze grammarFile, unless only whitespace and comments changed since
+	 *  previous, the last analysis of it, see {@link GrammarAnalysis#movedTo},
+	 *  or, if provisional, only the bodies of some rules changed, see
+	 *  {@link #checkChangedRules}. meter is checked between the phases of the
+	 *  analysis and for every issue ANTLR reports. The digest of every file
+	 *  read is added to read.
+	 */
+	@Nullable
+	private GrammarAnalysis load(VirtualFile grammarFile,
+								 List<String> args,
+								 boolean lexerOnly,
+								 boolean provisional,
+								 @Nullable GrammarAnalysis previous,
+								 Map<String, ParsingResultCache.Key> read,
+								 AnalysisBudget.Meter meter)
+	{
+		LOG.info("analyze "+grammarFile.getPath()+" "+project.getName());
+		GrammarIssuesCollectorToolListener listener = newListener(meter);
+		List<GrammarIssue> issues = new ArrayList<>();
+		List<String> errorMessages = new ArrayList<>();
+
+		args = new ArrayList<>(args);
+		String languageArg = findLanguageArg(args);
+		if ( languageArg!=null ) {
+			String language = languageArg.substring(LANGUAGE_ARG_PREFIX.length());
+			if ( !GrammarIssuesCollector.targetExists(language) ) {
+				GrammarIssue issue = new GrammarIssue(null);
+				issue.setAnnotation("Unknown target language '" + language + "', analysis will be done using the default target language 'Java'");
+				issues.add(issue);
+				args.remove(languageArg);
+			}
+		}
+
+		Tool antlr = newTool(args, listener, read, meter);
+		try {
+			return load(grammarFile, args, antlr, listener, issues, errorMessages, lexerOnly, provisional, previous, read, meter);
+		}
+		catch (AnalysisBudget.ExceededException e) {
+			LOG.info("analyze "+grammarFile.getPath()+": stopped, "+e.getMessage()+" reached");
+			GrammarIssue issue = new GrammarIssue(null);
+			issue.setAnnotation("Analysis of "+grammarFile.getName()+" stopped, "+e.getMessage()+" reached; issues may be missing");
+			issues.add(issue);
+			return analysis(grammarFile, null, false, true, listener, issues, errorMessages, null);
+		}
+	}
+
+	/** A listener collecting the issues ANTLR reports, checking meter for each */
+	private static GrammarIssuesCollectorToolListener newListener(AnalysisBudget.Meter meter) {
+		return new GrammarIssuesCollectorToolListener() {
+			@Override
+			public void error(ANTLRMessage msg) {
+				super.error(msg);
+				meter.check();
+			}
+
+			@Override
+			public void warning(ANTLRMessage msg) {
+				super.warning(msg);
+				meter.check();
+			}
+		};
+	}
+
+	/** ANTLR reporting to listener, adding the digest of every grammar it parses to read */
+	private static Tool newTool(List<String> args,
+								GrammarIssuesCollectorToolListener listener,
+								Map<String, ParsingResultCache.Key> read,
+								AnalysisBudget.Meter meter)
+	{
+		Tool antlr = new Tool(args.toArray(new String[0])) {
+			@Override
+			public void processNonCombinedGrammar(Grammar g, boolean gencode) {
+				meter.check(); // before the implicit lexer and before the grammar itself
+				super.processNonCombinedGrammar(g, gencode);
+			}
+
+			@Override
+			public GrammarRootAST parse(String fileName, CharStream in) {
+				// the grammar itself and the grammars it imports; fileName is the importing grammar's
+				read.put(in.getSourceName(), GrammarObjectCache.digest(in.getSourceName(), in.substring(0, in.size()-1)));
+				return super.parse(fileName, in);
+			}
+		};
+		antlr.errMgr = new PluginIgnoreMissingTokensFileErrorManager(antlr);
+		antlr.errMgr.setFormat("antlr");
+		antlr.removeListeners();
+		antlr.addListener(listener);
+		return antlr;
+	}
+
+	@Nullable
+	private GrammarAnalysis load(VirtualFile grammarFile,
+								 List<String> args,
+								 Tool antlr,
+								 GrammarIssuesCollectorToolListener listener,
+								 List<GrammarIssue> issues,
+								 List<String> errorMessages,
+								 boolean lexerOnly,
+								 boolean provisional,
+								 @Nullable GrammarAnalysis previous,
+								 Map<String, ParsingResultCache.Key> read,
+								 AnalysisBudget.Meter meter)
+	{
+		GrammarRootAST ast = ParsingUtils.parseGrammar(antlr, grammarFile);
+		if ( ast==null ) {
+			errorMessages.add("Empty or bad grammar in file "+grammarFile.getName());
+			return analysis(grammarFile, null, false, false, listener, issues, errorMessages, null);
+		}
+		meter.check();
+		if ( lexerOnly && ast.grammarType!=ANTLRParser.LEXER ) {
+			return null;
+		}
+		GrammarRules rules = GrammarRules.of(ast);
+		GrammarAnalysis moved = previous!=null ? previous.movedTo(ast.tokenStream) : null;
+		if ( moved!=null ) {
+			LOG.info("analyze "+grammarFile.getPath()+": no significant token changed");
+			return moved.withRules(previous.getRules()!=null ? rules : null); // only if fully processed
+		}
+		if ( provisional && previous!=null && rules!=null && !ast.hasErrors ) {
+			GrammarAnalysis checked = checkChangedRules(grammarFile, args, ast, rules, previous, issues, errorMessages, meter);
+			if ( checked!=null ) {
+				return checked;
+			}
+		}
+
+		// Create a grammar from the AST so we can figure out what type it is
+		Grammar g = PreviewParserGrammar.create(antlr, ast, tokensFiles);
+		g.fileName = grammarFile.getPath();
+		if ( ast.hasErrors ) {
+			return analysis(grammarFile, grammarsOf(g, null), false, false, listener, issues, errorMessages, null);
+		}
+
+		LexerGrammar lg = importLexer(g, errorMessages, read, meter);
+
+		String vocabName = g.getOptionString("tokenVocab");
+		if ( lg==null && vocabName!=null && g.getType()==ANTLRParser.PARSER ) {
+			// read by PreviewParserGrammar while processing
+			String tokensFileName = new TokenVocabParser(g).getImportedVocabFile().getPath();
+			read.put(tokensFileName, cache.digest(tokensFileName));
+		}
+
+		try {
+			antlr.process(g, false);
+		}
+		catch (ProcessCanceledException | AnalysisBudget.ExceededException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			LOG.error("antlr can't process "+grammarFile.getName(), e);
+			return analysis(grammarFile, grammarsOf(g, lg), false, false, listener, issues, errorMessages, null);
+		}
+
+		meter.check();
+		addUnusedRules(listener.getIssues(), g.fileName, GrammarIssuesCollector.getUnusedParserRules(g));
+		return analysis(grammarFile, grammarsOf(g, lg), true, false, listener, issues, errorMessages, rules);
+	}
+
+	/** The analysis of grammarFile, parsed into ast, if only the bodies of
+	 *  some of its rules changed since previous, its last analysis: the issues
+	 *  of previous outside of the changed rules, see
+	 *  {@link GrammarAnalysis#issuesOutside}, plus those ANTLR finds in the
+	 *  changed rules once the others are reduced to their declarations, see
+	 *  {@link GrammarRules#checkText}. That's a small grammar to process,
+	 *  even for a large one with left-recursive rules, whose rewriting takes
+	 *  most of a full analysis. Only rule-local issues are taken from it, see
+	 *  {@link GrammarAnalysis#isRuleLocal}; whole-grammar ones come with the
+	 *  full analysis. Null if the changes can't be checked this way.
+	 */
+	@Nullable
+	private GrammarAnalysis checkChangedRules(VirtualFile grammarFile,
+											  List<String> args,
+											  GrammarRootAST ast,
+											  GrammarRules rules,
+											  GrammarAnalysis previous,
+											  List<GrammarIssue> issues,
+											  List<String> errorMessages,
+											  AnalysisBudget.Meter meter)
+	{
+		BitSet changed = previous.getRules()!=null ? rules.changedSince(previous.getRules()) : null;
+		List<GrammarIssue> unchanged = changed!=null ? previous.issuesOutside(rules, changed) : null;
+		if ( unchanged==null ) {
+			return null;
+		}
+
+		GrammarIssuesCollectorToolListener listener = newListener(meter);
+		Tool antlr = newTool(args, listener, new HashMap<>(), meter); // the full analysis records what's read
+		ANTLRStringStream in = new ANTLRStringStream(rules.checkText(changed));
+		in.name = grammarFile.getPath();
+		GrammarRootAST checkAst = antlr.parse(grammarFile.getPath(), in);
+		if ( checkAst==null || checkAst.hasErrors ) {
+			return null;
+		}
+		Grammar g = PreviewParserGrammar.create(antlr, checkAst, tokensFiles);
+		g.fileName = grammarFile.getPath();
+		importLexer(g, new ArrayList<>(), new HashMap<>(), meter);
+		try {
+			antlr.process(g, false);
+		}
+		catch (ProcessCanceledException | AnalysisBudget.ExceededException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			LOG.info("antlr can't check the changed rules of "+grammarFile.getName(), e);
+			return null;
+		}
+
+		List<GrammarIssue> checked = new ArrayList<>();
+		for (GrammarIssue issue : listener.getIssues()) {
+			ANTLRMessage msg = issue.getMsg();
+			if ( GrammarAnalysis.isRuleLocal(msg) && msg.offendingToken!=null && rules.isInRules(msg.offendingToken, changed) ) {
+				checked.add(issue);
+			}
+		}
+		addUnusedRules(checked, grammarFile.getPath(), GrammarIssuesCollector.getUnusedParserRules(ast));
+		for (GrammarIssue issue : checked) {
+			ProgressManager.checkCanceled();
+			GrammarIssuesCollector.processIssue(grammarFile, issue);
+		}
+		LOG.info("analyze "+grammarFile.getPath()+": checked "+changed.cardinality()+" changed rules of "+rules.size());
+		issues.addAll(unchanged);
+		issues.addAll(checked);
+		return GrammarAnalysis.provisional(issues, errorMessages, rules);
+	}
+
+	private static void addUnusedRules(List<GrammarIssue> issues, String fileName, @Nullable Map<String, GrammarAST> unusedRules) {
+		if ( unusedRules!=null ) {
+			for (String r : unusedRules.keySet()) {
+				Token ruleDefToken = unusedRules.get(r).getToken();
+				issues.add(new GrammarIssue(new GrammarInfoMessage(fileName, ruleDefToken, r)));
+			}
+		}
+	}
+
+	/** The lexer of g, if it's a parser grammar, whose vocabulary g imports.
+	 *  Its error messages are added to errorMessages.
+	 */
+	@Nullable
+	private LexerGrammar importLexer(Grammar g,
+									 List<String> errorMessages,
+									 Map<String, ParsingResultCache.Key> read,
+									 AnalysisBudget.Meter meter)
+	{
+		// see if a lexer is hanging around somewhere; don't want implicit token defs to make us bail
+		if ( g.getType()!=ANTLRParser.PARSER ) {
+			return null;
+		}
+		GrammarAnalysis lexerAnalysis = analyzeLexerFor(g, read, meter);
+		if ( lexerAnalysis==null ) {
+			return null;
+		}
+		errorMessages.addAll(lexerAnalysis.getErrorMessages());
+		if ( lexerAnalysis.getGrammars()==null ) {
+			return null;
+		}
+		LexerGrammar lg = (LexerGrammar) lexerAnalysis.getGrammars()[0];
+		g.importVocab(lg); // no need for the .tokens file then
+		return lg;
+	}
+
+	private GrammarAnalysis analysis(VirtualFile grammarFile,
+									 @Nullable Grammar[] grammars,
+									 boolean processed,
+									 boolean partial,
+									 GrammarIssuesCollectorToolListener listener,
+									 List<GrammarIssue> issues,
+									 List<String> errorMessages,
+									 @Nullable GrammarRules rules)
+	{
+		issues.addAll(listener.getIssues());
+		for (GrammarIssue issue : issues) {
+			ProgressManager.checkCanceled();
+			GrammarIssuesCollector.processIssue(grammarFile, issue);
+		}
+		for (ANTLRMessage msg : listener.getErrors()) {
+			errorMessages.add(IssueMessageRenderer.render(msg));
+		}
+		boolean loaded = processed && listener.getErrors().isEmpty();
+		return new GrammarAnalysis(grammars, loaded, partial, issues, errorMessages, rules);
+	}
+
+	/** {lexer, parser} the way the preview wants them */
+	@Nullable
+	private static Grammar[] grammarsOf(Grammar g, @Nullable LexerGrammar lg) {
+		// Examine's Grammar AST constructed by v3 for a v4 grammar.
+		// Use ANTLR v3's ANTLRParser not ANTLRv4Parser from this plugin
+		switch ( g.getType() ) {
+			case ANTLRParser.PARSER :
+				return new Grammar[] {lg!=null ? lg : ParsingUtils.getBadLexerGrammar(), g};
+			case ANTLRParser.LEXER :
+				return new Grammar[] {g, null};
+			case ANTLRParser.COMBINED :
+				lg = g.getImplicitLexer();
+				return new Grammar[] {lg!=null ? lg : ParsingUtils.getBadLexerGrammar(), g};
+		}
+		LOG.info("invalid grammar type "+g.getTypeString()+" for "+g.name);
+		return null;
+	}
+
+	/** Analyze the lexer grammar of parser grammar g. Derive lexer name as:
+	 *  	V given tokenVocab=V in grammar or
+	 *   	XLexer given XParser.g4 filename or
+	 *     	XLexer given grammar name X
+	 */
+	@Nullable
+	private GrammarAnalysis analyzeLexerFor(Grammar g, Map<String, ParsingResultCache.Key> read, AnalysisBudget.Meter meter) {
+		VirtualFile lexerGrammarFile;
+		String lexerGrammarFileName; // as GrammarObjectCache.dependenciesOf names it
+		String vocabName = g.getOptionString("tokenVocab");
+		if ( vocabName!=null ) {
+			VirtualFile grammarFile = LocalFileSystem.getInstance().findFileByIoFile(new File(g.fileName));
+			lexerGrammarFile = VfsUtil.findRelativeFile(grammarFile == null ? null : grammarFile.getParent(), vocabName + ".g4");
+			lexerGrammarFileName = new File(new File(g.fileName).getParentFile(), vocabName+".g4").getPath();
+		}
+		else {
+			lexerGrammarFileName = ParsingUtils.getLexerNameFromParserFileName(g.fileName);
+			lexerGrammarFile = LocalFileSystem.getInstance().findFileByIoFile(new File(lexerGrammarFileName));
+		}
+		// before the lexer is read, or found missing
+		read.put(lexerGrammarFileName, cache.digest(lexerGrammarFileName));
+		if ( lexerGrammarFile==null || !lexerGrammarFile.exists() ) {
+			return null;
+		}
+		GrammarAnalysis lexerAnalysis = analyze(lexerGrammarFile, true, false, meter);
+		if ( lexerAnalysis==null ) {
+			LOG.info("File "+lexerGrammarFile+" isn't a lexer grammar");
+		}
+		return lexerAnalysis;
+	}
+
+	@Nullable
+	private static String findLanguageArg(List<String> args) {
+		for ( String arg : args ) {
+			if ( arg.startsWith(LANGUAGE_ARG_PREFIX) ) {
+				return arg;
+			}
+		}
+
+		return null;
+	}
+}
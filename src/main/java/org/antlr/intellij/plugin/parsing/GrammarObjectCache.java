@@ -0,0 +1,319 @@
+package org.antlr.intellij.plugin.parsing;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.antlr.v4.parse.ANTLRParser;
+import org.antlr.v4.parse.TokenVocabParser;
+import org.antlr.v4.tool.Grammar;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/** Grammar analyses, so that flipping between editor tabs or annotating a
+ *  grammar again doesn't parse and process grammars whose files did not
+ *  change, see {@link GrammarAnalysisService}.
+ *
+ *  An entry remembers every file its grammars were loaded from (the grammar,
+ *  its lexer, imported grammars and .tokens file, see {@link #dependenciesOf})
+ *  with a digest of their contents when loaded. It is only returned while all
+ *  of those digests and the loading settings still match, so it behaves as if
+ *  keyed by the contents of all its inputs.
+ *
+ *  The reverse edges are indexed too: {@link #getDependents} tells which
+ *  cached grammars must be loaded again when a lexer or imported grammar
+ *  changes.
+ *
+ *  At most maxEntries analyses are kept, the least recently used ones are
+ *  dropped first, so that prewarming a project with many grammars doesn't
+ *  hold the grammar objects of all of them.
+ */
+public class GrammarObjectCache {
+	public static final int DEFAULT_MAX_ENTRIES = 200;
+
+	/** Text of a file as the grammar loader sees it, null if it doesn't exist */
+	private final Function<String, CharSequence> contents;
+	private final int maxEntries;
+
+	/** In access order, the least recently used first */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	/** Dependency (normalized by {@link #normalize}) -> grammars loaded from it */
+	private final Map<String, Set<String>> dependents = new HashMap<>();
+
+	public GrammarObjectCache() {
+		this(GrammarObjectCache::getFileText);
+	}
+
+	public GrammarObjectCache(Function<String, CharSequence> contents) {
+		this(contents, DEFAULT_MAX_ENTRIES);
+	}
+
+	public GrammarObjectCache(Function<String, CharSequence> contents, int maxEntries) {
+		this.contents = contents;
+		this.maxEntries = maxEntries;
+	}
+
+	/** The analysis last done of grammarFileName with settings (lib
+	 *  directory etc...), or null if it was never analyzed or any of the
+	 *  files its grammars depend on changed since.
+	 */
+	public GrammarAnalysis get(String grammarFileName, CharSequence settings) {
+		return get(grammarFileName, settings, false);
+	}
+
+	/** Like {@link #get} but whether grammarFileName itself changed or not:
+	 *  the analysis last done of grammarFileName with settings, or null if
+	 *  any of the other files its grammars depend on changed since.
+	 */
+	public GrammarAnalysis getPrevious(String grammarFileName, CharSequence settings) {
+		return get(grammarFileName, settings, true);
+	}
+
+	/** A digest of settings and of the contents of every file the cached
+	 *  analysis of grammarFileName depends on, or null if {@link #get} would
+	 *  return null. Equal revisions mean nothing the grammar objects were
+	 *  built from changed in between.
+	 */
+	public ParsingResultCache.Key getRevision(String grammarFileName, CharSequence settings) {
+		Entry entry = getEntry(grammarFileName, settings, false);
+		return entry!=null ? entry.revision : null;
+	}
+
+	private GrammarAnalysis get(String grammarFileName, CharSequence settings, boolean previous) {
+		Entry entry = getEntry(grammarFileName, settings, previous);
+		return entry!=null ? entry.analysis : null;
+	}
+
+	private Entry getEntry(String grammarFileName, CharSequence settings, boolean previous) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(grammarFileName);
+		}
+		if ( entry==null || !entry.settings.equals(ParsingResultCache.key(settings)) ) {
+			return null;
+		}
+		for (int i = 0; i<entry.dependencies.length; i++) {
+			if ( previous && normalize(entry.dependencies[i]).equals(normalize(grammarFileName)) ) {
+				continue;
+			}
+			if ( !entry.digests[i].equals(digest(entry.dependencies[i])) ) {
+				return null;
+			}
+		}
+		return entry;
+	}
+
+	/** Remember analysis as done of grammarFileName with settings, taking
+	 *  the digests of the files it was loaded from now. Only right if none
+	 *  of them changed during the analysis, see {@link #put(String, GrammarAnalysis, CharSequence, Map)}.
+	 */
+	public void put(String grammarFileName, GrammarAnalysis analysis, CharSequence settings) {
+		put(grammarFileName, analysis, settings, Collections.emptyMap());
+	}
+
+	/** Remember analysis as done of grammarFileName with settings. read
+	 *  maps files to the {@link #digest digests} of the text the analysis
+	 *  was built from, taken before or while loading them, so that a file
+	 *  edited during the analysis makes the entry stale instead of passing
+	 *  for the new text. Files missing from read are digested now.
+	 */
+	public void put(String grammarFileName, GrammarAnalysis analysis, CharSequence settings,
+					Map<String, ParsingResultCache.Key> read) {
+		Map<String, ParsingResultCache.Key> readDigests = new HashMap<>();
+		for (Map.Entry<String, ParsingResultCache.Key> e : read.entrySet()) {
+			readDigests.put(normalize(e.getKey()), e.getValue());
+		}
+		Grammar[] grammars = analysis.getProcessedGrammars();
+		List<String> dependencies = new ArrayList<>(grammars!=null ?
+			dependenciesOf(grammarFileName, grammars) :
+			Collections.singleton(grammarFileName));
+		ParsingResultCache.Key[] digests = new ParsingResultCache.Key[dependencies.size()];
+		for (int i = 0; i<digests.length; i++) {
+			ParsingResultCache.Key digest = readDigests.get(normalize(dependencies.get(i)));
+			digests[i] = digest!=null ? digest : digest(dependencies.get(i));
+		}
+		Entry entry = new Entry(analysis, dependencies.toArray(new String[0]), digests,
+								ParsingResultCache.key(settings));
+		synchronized (this) {
+			removeDependents(grammarFileName, entries.put(grammarFileName, entry));
+			for (String dependency : entry.dependencies) {
+				dependents.computeIfAbsent(normalize(dependency), k -> new LinkedHashSet<>()).add(grammarFileName);
+			}
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while ( entries.size()>maxEntries && it.hasNext() ) {
+				Map.Entry<String, Entry> eldest = it.next();
+				it.remove();
+				removeDependents(eldest.getKey(), eldest.getValue());
+			}
+		}
+	}
+
+	/** File -> digest of the files the analysis cached for grammarFileName
+	 *  was loaded from, as they were then; empty if none is cached.
+	 */
+	public synchronized Map<String, ParsingResultCache.Key> getDigests(String grammarFileName) {
+		Entry entry = entries.get(grammarFileName);
+		if ( entry==null ) {
+			return Collections.emptyMap();
+		}
+		Map<String, ParsingResultCache.Key> digests = new LinkedHashMap<>();
+		for (int i = 0; i<entry.dependencies.length; i++) {
+			digests.put(entry.dependencies[i], entry.digests[i]);
+		}
+		return digests;
+	}
+
+	/** Files the analysis cached for grammarFileName was loaded from, empty if none is cached */
+	public synchronized List<String> getDependencies(String grammarFileName) {
+		Entry entry = entries.get(grammarFileName);
+		if ( entry==null ) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(Arrays.asList(entry.dependencies));
+	}
+
+	/** Grammar files, other than fileName itself, whose cached analyses
+	 *  were loaded from fileName, e.g. the parsers using a lexer through
+	 *  tokenVocab or the grammars importing it.
+	 */
+	public synchronized List<String> getDependents(String fileName) {
+		Set<String> grammarFileNames = dependents.get(normalize(fileName));
+		if ( grammarFileNames==null ) {
+			return Collections.emptyList();
+		}
+		List<String> result = new ArrayList<>(grammarFileNames);
+		result.removeIf(grammarFileName -> normalize(grammarFileName).equals(normalize(fileName)));
+		return result;
+	}
+
+	public synchronized void remove(String grammarFileName) {
+		removeDependents(grammarFileName, entries.remove(grammarFileName));
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		dependents.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private void removeDependents(String grammarFileName, Entry entry) {
+		if ( entry==null ) {
+			return;
+		}
+		for (String dependency : entry.dependencies) {
+			Set<String> grammarFileNames = dependents.get(normalize(dependency));
+			if ( grammarFileNames!=null ) {
+				grammarFileNames.remove(grammarFileName);
+				if ( grammarFileNames.isEmpty() ) {
+					dependents.remove(normalize(dependency));
+				}
+			}
+		}
+	}
+
+	/** Tool and VFS paths may use different separators */
+	private static String normalize(String fileName) {
+		return new File(fileName).getPath();
+	}
+
+	/** Files that {@link GrammarAnalysisService} read, or would read if
+	 *  they existed, to produce grammars: {lexer, parser} loaded from
+	 *  grammarFileName.
+	 */
+	public static Set<String> dependenciesOf(String grammarFileName, Grammar[] grammars) {
+		Set<String> files = new LinkedHashSet<>();
+		files.add(grammarFileName);
+		for (Grammar g : grammars) {
+			if ( g==null || ParsingUtils.isBadGrammar(g) ) {
+				continue;
+			}
+			files.add(g.fileName);
+			List<Grammar> imports = g.getAllImportedGrammars();
+			if ( imports!=null ) {
+				for (Grammar imported : imports) {
+					files.add(imported.fileName);
+				}
+			}
+			if ( g.getType()==ANTLRParser.PARSER ) {
+				// the lexer is looked up even if it's not there (yet)
+				String vocabName = g.getOptionString("tokenVocab");
+				if ( vocabName!=null ) {
+					files.add(new File(new File(g.fileName).getParentFile(), vocabName+".g4").getPath());
+					boolean lexerLoaded = grammars[0]!=null && !ParsingUtils.isBadGrammar(grammars[0]);
+					if ( !lexerLoaded && g.tool!=null ) { // see PreviewParserGrammar
+						files.add(new TokenVocabParser(g).getImportedVocabFile().getPath());
+					}
+				}
+				else {
+					files.add(ParsingUtils.getLexerNameFromParserFileName(g.fileName));
+				}
+			}
+		}
+		return files;
+	}
+
+	/** A digest of the current text of fileName, null if it doesn't exist */
+	public ParsingResultCache.Key digest(String fileName) {
+		return digest(fileName, contents.apply(fileName));
+	}
+
+	/** A digest of text read from fileName, comparable to {@link #digest(String)} */
+	public static ParsingResultCache.Key digest(String fileName, @Nullable CharSequence text) {
+		return ParsingResultCache.key(normalize(fileName), text);
+	}
+
+	/** Unsaved editor text if the file is open, what's on disk otherwise,
+	 *  like {@link ParsingUtils#parseGrammar}.
+	 */
+	private static CharSequence getFileText(String fileName) {
+		VirtualFile file = LocalFileSystem.getInstance().findFileByIoFile(new File(fileName));
+		if ( file==null || !file.exists() ) {
+			return null;
+		}
+		Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+		if ( document!=null ) {
+			return document.getImmutableCharSequence();
+		}
+		try {
+			return VfsUtilCore.loadText(file);
+		}
+		catch (IOException ioe) {
+			return null;
+		}
+	}
+
+	private static class Entry {
+		final GrammarAnalysis analysis;
+		final String[] dependencies;
+		final ParsingResultCache.Key[] digests;
+		final ParsingResultCache.Key settings;
+		final ParsingResultCache.Key revision;
+
+		Entry(GrammarAnalysis analysis, String[] dependencies, ParsingResultCache.Key[] digests, ParsingResultCache.Key settings) {
+			this.analysis = analysis;
+			this.dependencies = dependencies;
+			this.digests = digests;
+			this.settings = settings;
+			ParsingResultCache.Key[] parts = Arrays.copyOf(digests, digests.length+1);
+			parts[digests.length] = settings;
+			this.revision = ParsingResultCache.combine(parts);
+		}
+	}
+}
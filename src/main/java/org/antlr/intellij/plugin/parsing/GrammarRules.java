@@ -0,0 +1,266 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.runtime.CharStream;
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+import org.antlr.runtime.TokenStream;
+import org.antlr.runtime.tree.Tree;
+import org.antlr.v4.parse.ANTLRParser;
+import org.antlr.v4.tool.ast.GrammarRootAST;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/** Where the rules of one revision of a parser or combined grammar file
+ *  are, as ANTLR parsed it, with digests of their significant tokens, i.e.
+ *  not whitespace nor comments. Comparing them with those of the previous
+ *  revision tells which rules changed, so that only those are checked again,
+ *  see {@link GrammarAnalysis#issuesOutside}.
+ */
+final class GrammarRules {
+	private final TokenStream tokens;
+	/** Grammar name, options, imports, named actions... before the first rule */
+	private final ParsingResultCache.Key header;
+	/** Per rule, the index of its first and of its last token */
+	private final int[] starts;
+	private final int[] stops;
+	/** Per rule, its tokens up to its colon: modifiers, name, arguments, return values, named actions... */
+	private final ParsingResultCache.Key[] declarations;
+	/** Per rule, all its tokens */
+	private final ParsingResultCache.Key[] bodies;
+
+	private GrammarRules(TokenStream tokens, ParsingResultCache.Key header, int[] starts, int[] stops,
+						 ParsingResultCache.Key[] declarations, ParsingResultCache.Key[] bodies)
+	{
+		this.tokens = tokens;
+		this.header = header;
+		this.starts = starts;
+		this.stops = stops;
+		this.declarations = declarations;
+		this.bodies = bodies;
+	}
+
+	/** The rules of ast, freshly parsed, before ANTLR processes it; null for
+	 *  lexer grammars, whose rules may be in modes, and if anything but
+	 *  whitespace and comments is found between the rules.
+	 */
+	@Nullable
+	static GrammarRules of(GrammarRootAST ast) {
+		TokenStream tokens = ast.tokenStream;
+		Tree rulesNode = ast.getFirstChildWithType(ANTLRParser.RULES);
+		if ( ast.grammarType==ANTLRParser.LEXER || tokens==null || tokens.size()==0 ||
+			 rulesNode==null || rulesNode.getChildCount()==0 )
+		{
+			return null;
+		}
+		int n = rulesNode.getChildCount();
+		int[] starts = new int[n];
+		int[] stops = new int[n];
+		ParsingResultCache.Key[] declarations = new ParsingResultCache.Key[n];
+		ParsingResultCache.Key[] bodies = new ParsingResultCache.Key[n];
+		int end = 0; // just after the previous rule
+		for (int r = 0; r<n; r++) {
+			Tree rule = rulesNode.getChild(r);
+			int start = rule.getTokenStartIndex();
+			int stop = rule.getTokenStopIndex();
+			if ( rule.getType()!=ANTLRParser.RULE || start<end || stop<start || stop>=tokens.size() ||
+				 (r>0 && !isHidden(tokens, end, start)) )
+			{
+				return null;
+			}
+			int colon = start;
+			while ( colon<=stop && tokens.get(colon).getType()!=ANTLRParser.COLON ) {
+				colon++;
+			}
+			if ( colon>stop ) {
+				return null;
+			}
+			starts[r] = start;
+			stops[r] = stop;
+			declarations[r] = digest(tokens, start, colon+1);
+			bodies[r] = digest(tokens, start, stop+1);
+			end = stop+1;
+		}
+		if ( !isHidden(tokens, end, tokens.size()) ) {
+			return null; // modes in a combined grammar, say
+		}
+		return new GrammarRules(tokens, digest(tokens, 0, starts[0]), starts, stops, declarations, bodies);
+	}
+
+	TokenStream getTokenStream() {
+		return tokens;
+	}
+
+	int size() {
+		return starts.length;
+	}
+
+	/** The rules that changed since previous, the rules of the previous
+	 *  revision, null if more than the bodies of some rules changed: their
+	 *  declarations, what comes before the rules or the rules themselves,
+	 *  added, removed or renamed.
+	 */
+	@Nullable
+	BitSet changedSince(GrammarRules previous) {
+		if ( !header.equals(previous.header) || starts.length!=previous.starts.length ) {
+			return null;
+		}
+		BitSet changed = new BitSet(starts.length);
+		for (int r = 0; r<starts.length; r++) {
+			if ( !declarations[r].equals(previous.declarations[r]) ) {
+				return null;
+			}
+			if ( !bodies[r].equals(previous.bodies[r]) ) {
+				changed.set(r);
+			}
+		}
+		return changed;
+	}
+
+	/** For each token of previous, a revision whose rules other than the
+	 *  changed ones are the same as these, the index of the same token here;
+	 *  -1 for hidden tokens and those of the changed rules.
+	 */
+	int[] tokenIndexesFrom(GrammarRules previous, BitSet changed) {
+		int[] previousToNew = new int[previous.tokens.size()];
+		Arrays.fill(previousToNew, -1);
+		map(previous.tokens, 0, previous.starts[0], tokens, 0, previousToNew);
+		for (int r = 0; r<starts.length; r++) {
+			if ( !changed.get(r) ) {
+				map(previous.tokens, previous.starts[r], previous.stops[r]+1, tokens, starts[r], previousToNew);
+			}
+		}
+		int last = starts.length-1;
+		map(previous.tokens, previous.stops[last]+1, previous.tokens.size(), tokens, stops[last]+1, previousToNew);
+		return previousToNew;
+	}
+
+	/** Whether t, a token of this revision or one with the same lines and
+	 *  columns, is within one of the rules, from its first token to the next
+	 *  rule.
+	 */
+	boolean isInRules(Token t, BitSet rules) {
+		for (int r = rules.nextSetBit(0); r>=0; r = rules.nextSetBit(r+1)) {
+			Token next = r+1<starts.length ? tokens.get(starts[r+1]) : null;
+			if ( !isBefore(t, tokens.get(starts[r])) && (next==null || isBefore(t, next)) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** The text of the grammar with the rules but the changed ones reduced to
+	 *  what the changed ones may use: their declarations without named
+	 *  actions, and the bars and labels of their outermost alternatives.
+	 *  Everything else is blanked, keeping line breaks, so the tokens kept
+	 *  have the same positions as in the grammar.
+	 */
+	String checkText(BitSet changed) {
+		CharStream in = tokens.get(0).getInputStream();
+		char[] text = in.substring(0, in.size()-1).toCharArray();
+		for (int r = 0; r<starts.length; r++) {
+			if ( changed.get(r) ) {
+				continue;
+			}
+			boolean declaration = true;
+			boolean namedAction = false;
+			boolean altLabel = false;
+			boolean handlers = false;
+			int depth = 0;
+			for (int i = starts[r]; i<=stops[r]; i++) {
+				Token t = tokens.get(i);
+				boolean keep = false;
+				if ( t.getChannel()==Token.DEFAULT_CHANNEL ) {
+					int type = t.getType();
+					if ( declaration ) {
+						if ( type==ANTLRParser.AT ) {
+							namedAction = true;
+						}
+						keep = !namedAction;
+						if ( type==ANTLRParser.ACTION ) {
+							namedAction = false;
+						}
+						declaration = type!=ANTLRParser.COLON;
+					}
+					else if ( altLabel ) {
+						keep = true;
+						altLabel = false;
+					}
+					else if ( type==ANTLRParser.LPAREN ) {
+						depth++;
+					}
+					else if ( type==ANTLRParser.RPAREN ) {
+						depth--;
+					}
+					else if ( depth==0 && !handlers ) {
+						keep = type==ANTLRParser.OR || type==ANTLRParser.POUND || type==ANTLRParser.SEMI;
+						altLabel = type==ANTLRParser.POUND;
+						handlers = type==ANTLRParser.SEMI; // exceptions and finally follow
+					}
+				}
+				if ( !keep ) {
+					blank(text, t);
+				}
+			}
+		}
+		return new String(text);
+	}
+
+	private static void blank(char[] text, Token t) {
+		if ( !(t instanceof CommonToken) ) {
+			return;
+		}
+		int start = ((CommonToken) t).getStartIndex();
+		int stop = Math.min(((CommonToken) t).getStopIndex(), text.length-1);
+		for (int i = Math.max(start, 0); i<=stop; i++) {
+			if ( text[i]!='\n' && text[i]!='\r' ) {
+				text[i] = ' ';
+			}
+		}
+	}
+
+	/** Map the significant tokens of from, from start to stop (exclusive), to those of to from toStart on */
+	private static void map(TokenStream from, int start, int stop, TokenStream to, int toStart, int[] fromToTo) {
+		int j = toStart;
+		for (int i = start; i<stop; i++) {
+			if ( from.get(i).getChannel()!=Token.DEFAULT_CHANNEL ) {
+				continue;
+			}
+			while ( to.get(j).getChannel()!=Token.DEFAULT_CHANNEL ) {
+				j++;
+			}
+			fromToTo[i] = j++;
+		}
+	}
+
+	private static boolean isBefore(Token a, Token b) {
+		return a.getLine()<b.getLine() ||
+			   (a.getLine()==b.getLine() && a.getCharPositionInLine()<b.getCharPositionInLine());
+	}
+
+	/** Whether only hidden tokens, or EOF, are from start to stop (exclusive) */
+	private static boolean isHidden(TokenStream tokens, int start, int stop) {
+		for (int i = start; i<stop; i++) {
+			Token t = tokens.get(i);
+			if ( t.getChannel()==Token.DEFAULT_CHANNEL && t.getType()!=Token.EOF ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Digest of the types and texts of the significant tokens from start to stop (exclusive) */
+	private static ParsingResultCache.Key digest(TokenStream tokens, int start, int stop) {
+		StringBuilder significant = new StringBuilder();
+		for (int i = start; i<stop; i++) {
+			Token t = tokens.get(i);
+			if ( t.getChannel()==Token.DEFAULT_CHANNEL ) {
+				String text = t.getText();
+				// the length keeps the texts apart
+				significant.append(t.getType()).append(' ').append(text.length()).append(' ').append(text);
+			}
+		}
+		return ParsingResultCache.key(significant);
+	}
+}
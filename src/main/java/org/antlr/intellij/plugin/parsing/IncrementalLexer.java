@@ -0,0 +1,580 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.ATNConfigSet;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Keeps the tokens of the preview input between two parses so that an edit
+ *  only re-lexes the region around it instead of the whole input.
+ *
+ *  For every call to {@link Lexer#nextToken()} we remember where it started,
+ *  the lexer state at that point (mode, mode stack, line and column) and the
+ *  furthest character the lexer looked at. Upon an edit, lexing restarts from
+ *  the first token whose lookahead reached the edit, and stops as soon as
+ *  the lexer is back in the same state at the same (shifted) position as
+ *  before the edit. Tokens after that point are reused, shifted by the size
+ *  of the edit. Tokens and lexer states are kept in int arrays
+ *  ({@link CompactTokenList}) so that large inputs stay cheap.
+ *
+ *  Edits are recorded from the preview editor's document listener via
+ *  {@link #inputChanged}; {@link #tokenize} gets the number of edits that
+ *  were applied to the text it is given, so edits made while a parse is
+ *  running are kept for the next one. Edits have a lock of their own, held
+ *  only briefly by tokenize, so that recording an edit on the EDT never waits
+ *  for a lex running in the background. Anything unexpected (different grammar,
+ *  case strategy, text length, supplementary characters...) falls back to
+ *  lexing the whole input.
+ */
+public class IncrementalLexer {
+	/** Number of calls to nextToken() at the same input index after which we
+	 *  consider that the lexer is stuck matching an empty string.
+	 */
+	private static final int MAX_EMPTY_TOKENS = 50;
+
+	private final String sourceName;
+
+	/** Text of the last call to tokenize; each token list references its own
+	 *  text, so results of earlier calls stay valid.
+	 */
+	private CharStream input = CharStreams.fromString("");
+
+	private PreviewInterpreterCache interpreterCache;
+	private CaseChangingStrategy caseChangingStrategy;
+
+	/** Tokens of the last call to tokenize, null if we have to start over.
+	 *  Never modified, streams returned earlier may still be in use.
+	 */
+	private CompactTokenList tokens;
+	/** Lexer state before the nextToken() call that returned each token */
+	private LexerStates states;
+
+	/** How the last call to tokenize changed the tokens, null if it lexed
+	 *  everything or ran out of budget.
+	 */
+	private TokenChange lastChange;
+
+	/** Edits received after the last commit, as {offset, oldLength, newLength}.
+	 *  Also the lock of the edit fields below, not of the tokens.
+	 */
+	private final List<int[]> pendingEdits = new ArrayList<>();
+	/** Number of edits already reflected in {@link #tokens}. */
+	private int baseEditCount = 0;
+	/** Whether the next call to tokenize must start over */
+	private boolean resetRequested;
+
+	public IncrementalLexer(String sourceName) {
+		this.sourceName = sourceName;
+	}
+
+	/** Record an edit of the input text, typically from a DocumentEvent */
+	public void inputChanged(int offset, int oldLength, int newLength) {
+		synchronized (pendingEdits) {
+			pendingEdits.add(new int[] {offset, oldLength, newLength});
+		}
+	}
+
+	/** The number of edits seen so far. Must be read at the same time as
+	 *  the text that will be passed to {@link #tokenize}.
+	 */
+	public int getEditCount() {
+		synchronized (pendingEdits) {
+			return baseEditCount + pendingEdits.size();
+		}
+	}
+
+	/** Make the next call to {@link #tokenize} lex the whole input */
+	public void reset() {
+		synchronized (pendingEdits) {
+			resetRequested = true;
+		}
+	}
+
+	/** How to get from token list from to token list to, if the latter was
+	 *  made by the last call to {@link #tokenize} from the former; null
+	 *  otherwise, then everything must be considered changed.
+	 */
+	public synchronized TokenChange getChange(CompactTokenList from, CompactTokenList to) {
+		return lastChange!=null && lastChange.oldTokens==from && lastChange.newTokens==to ? lastChange : null;
+	}
+
+	/** Tokenize text, which is the preview input after the first editCount
+	 *  edits. Lexer errors, including those of reused tokens, are reported
+	 *  to errorListener. If budget is exceeded, the stream ends where lexing
+	 *  stopped, which is reported as an error too, and the next call starts
+	 *  over from scratch.
+	 */
+	public synchronized CompactTokenStream tokenize(PreviewInterpreterCache interpreterCache,
+												    CaseChangingStrategy caseChangingStrategy,
+												    String text,
+												    int editCount,
+												    LexingBudget budget,
+												    ANTLRErrorListener errorListener) {
+		CodePointCharStream newInput = CharStreams.fromString(text, sourceName);
+
+		// edits keep coming while we lex, work on those text already reflects
+		List<int[]> edits = null;
+		synchronized (pendingEdits) {
+			if ( resetRequested ) {
+				resetRequested = false;
+				tokens = null;
+				states = null;
+				lastChange = null;
+			}
+			if ( editCount>=baseEditCount && editCount-baseEditCount<=pendingEdits.size() ) {
+				edits = new ArrayList<>(pendingEdits.subList(0, editCount-baseEditCount));
+			}
+		}
+
+		int[] edit = null;
+		if ( tokens!=null &&
+			 interpreterCache==this.interpreterCache &&
+			 caseChangingStrategy==this.caseChangingStrategy &&
+			 edits!=null &&
+			 newInput.size()==text.length() ) // offsets in DocumentEvents are not code points
+		{
+			edit = mergeEdits(edits);
+			if ( edit!=null && input.size()-(edit[1]-edit[0])+(edit[2]-edit[0])!=newInput.size() ) {
+				edit = null; // missed an edit somehow
+			}
+		}
+
+		LexerSession session = new LexerSession(interpreterCache, caseChangingStrategy, newInput, budget.start());
+		CompactTokenList newTokens = new CompactTokenList(newInput);
+		LexerStates newStates = new LexerStates();
+		TokenChange change = null;
+		LexingBudget.ExceededException exceeded = null;
+		try {
+			if ( edit!=null ) {
+				change = relex(session, newTokens, newStates, edit);
+			}
+			else {
+				lexAll(session, newTokens, newStates);
+			}
+		}
+		catch (LexingBudget.ExceededException e) {
+			exceeded = e;
+			session.stop(newTokens);
+		}
+
+		// nothing above modifies our state, so a cancelled parse
+		// leaves us ready for the next one
+		newInput.seek(0);
+		input = newInput;
+		this.interpreterCache = interpreterCache;
+		this.caseChangingStrategy = caseChangingStrategy;
+		this.tokens = exceeded==null ? newTokens : null;
+		this.states = exceeded==null ? newStates : null;
+		this.lastChange = exceeded==null ? change : null;
+		synchronized (pendingEdits) {
+			pendingEdits.subList(0, Math.min(Math.max(editCount-baseEditCount, 0), pendingEdits.size())).clear();
+			baseEditCount = editCount;
+		}
+
+		for (List<LexerError> errors : newStates.errors.values()) {
+			for (LexerError error : errors) {
+				LexerNoViableAltException ex =
+					new LexerNoViableAltException(null, input, error.startIndex, error.deadEndConfigs);
+				errorListener.syntaxError(null, null, error.line, error.charPositionInLine, error.msg, ex);
+			}
+		}
+		if ( exceeded!=null ) {
+			Token eof = newTokens.get(newTokens.size()-1);
+			errorListener.syntaxError(null, null, eof.getLine(), eof.getCharPositionInLine(), exceeded.getErrorMessage(),
+									  new LexerNoViableAltException(null, input, eof.getStartIndex(), null));
+		}
+		return new CompactTokenStream(newTokens);
+	}
+
+	/** Merge edits into a single {start, oldEnd, newEnd} edit; oldEnd is
+	 *  relative to the text of the current tokens and newEnd to the text
+	 *  after the edits.
+	 */
+	private int[] mergeEdits(List<int[]> edits) {
+		int n = edits.size();
+		if ( n==0 ) {
+			return new int[] {input.size(), input.size(), input.size()};
+		}
+		int start = Integer.MAX_VALUE, oldEnd = 0, newEnd = 0;
+		for (int i = 0; i<n; i++) {
+			int[] e = edits.get(i);
+			int offset = e[0], removedEnd = e[0]+e[1];
+			if ( i==0 ) {
+				start = offset;
+				oldEnd = removedEnd;
+				newEnd = offset+e[2];
+				continue;
+			}
+			if ( offset<start ) {
+				start = offset;
+			}
+			if ( removedEnd>newEnd ) { // edit reaches past what we have changed so far
+				oldEnd += removedEnd-newEnd;
+				newEnd = removedEnd;
+			}
+			newEnd += e[2]-e[1];
+		}
+		return new int[] {start, oldEnd, newEnd};
+	}
+
+	private void lexAll(LexerSession session, CompactTokenList newTokens, LexerStates newStates) {
+		while ( session.next(newTokens, newStates)!=Token.EOF ) {
+		}
+	}
+
+	private TokenChange relex(LexerSession session, CompactTokenList newTokens, LexerStates newStates, int[] edit) {
+		int start = edit[0], oldEnd = edit[1], newEnd = edit[2];
+		int delta = newEnd-oldEnd;
+
+		// restart from the first token whose lexing looked at the edited region;
+		// all tokens before it can't have changed
+		int k = states.firstReaching(start);
+		k = Math.min(k, states.size-1); // always re-lex at least EOF
+
+		newTokens.addRange(tokens, 0, k, 0, 0, 0, 0);
+		newStates.addRange(states, 0, k, 0, 0, 0, 0);
+		session.restore(states, k);
+
+		int j = k; // candidate old token to resynchronize with
+		int sync = -1;
+		while ( session.next(newTokens, newStates)!=Token.EOF ) {
+			int pos = session.tracker.index();
+			if ( pos<newEnd ) {
+				continue;
+			}
+			int oldPos = pos-delta;
+			while ( j<states.size && states.startIndex[j]<oldPos ) {
+				j++;
+			}
+			if ( j<states.size && states.startIndex[j]==oldPos && oldPos>=oldEnd && session.isInState(states, j) ) {
+				sync = j;
+				break;
+			}
+		}
+
+		if ( sync<0 ) {
+			return new TokenChange(tokens, newTokens, k, tokens.size(), newTokens.size());
+		}
+		int newSync = newTokens.size();
+		int lineDelta = session.lexer.getLine()-states.line[sync];
+		int columnDelta = session.lexer.getCharPositionInLine()-states.charPositionInLine[sync];
+		int syncLine = states.line[sync];
+		newTokens.addRange(tokens, sync, tokens.size(), delta, lineDelta, syncLine, columnDelta);
+		newStates.addRange(states, sync, states.size, delta, lineDelta, syncLine, columnDelta);
+		return new TokenChange(tokens, newTokens, k, sync, newSync);
+	}
+
+	/** The difference between two token lists made by consecutive calls to
+	 *  {@link #tokenize}: tokens before {@link #start} are the same in both
+	 *  lists; old tokens from {@link #oldEnd} on are the same as new tokens
+	 *  from {@link #newEnd} on, except they were moved by the edit.
+	 */
+	public static class TokenChange {
+		public final CompactTokenList oldTokens;
+		public final CompactTokenList newTokens;
+		public final int start;
+		public final int oldEnd;
+		public final int newEnd;
+
+		TokenChange(CompactTokenList oldTokens, CompactTokenList newTokens, int start, int oldEnd, int newEnd) {
+			this.oldTokens = oldTokens;
+			this.newTokens = newTokens;
+			this.start = start;
+			this.oldEnd = oldEnd;
+			this.newEnd = newEnd;
+		}
+	}
+
+	/** For each token, the lexer state before the call to nextToken() that
+	 *  returned it, in parallel arrays.
+	 */
+	private static class LexerStates {
+		int size;
+		int[] startIndex = new int[256];
+		int[] line = new int[256];
+		int[] charPositionInLine = new int[256];
+		int[] mode = new int[256];
+		/** null when the mode stack is empty */
+		int[][] modeStack = new int[256][];
+		/** Furthest char index looked at while lexing the token */
+		int[] maxLookahead = new int[256];
+		/** Max of maxLookahead for this token and all the ones before it */
+		int[] reach = new int[256];
+		/** Lexer errors reported while lexing each token, by token index */
+		final TreeMap<Integer, List<LexerError>> errors = new TreeMap<>();
+
+		void add(int startIndex, int line, int charPositionInLine, int mode, int[] modeStack,
+				 int maxLookahead, List<LexerError> errors) {
+			ensureCapacity(size+1);
+			this.startIndex[size] = startIndex;
+			this.line[size] = line;
+			this.charPositionInLine[size] = charPositionInLine;
+			this.mode[size] = mode;
+			this.modeStack[size] = modeStack;
+			this.maxLookahead[size] = maxLookahead;
+			this.reach[size] = size>0 ? Math.max(reach[size-1], maxLookahead) : maxLookahead;
+			if ( errors!=null ) {
+				this.errors.put(size, errors);
+			}
+			size++;
+		}
+
+		/** Append states [from, to) of other shifted like
+		 *  {@link CompactTokenList#addRange} does for tokens.
+		 */
+		void addRange(LexerStates other, int from, int to, int delta, int lineDelta, int onLine, int columnDelta) {
+			int offset = size-from;
+			ensureCapacity(size+to-from);
+			for (int i = from; i<to; i++) {
+				int col = other.line[i]==onLine ? other.charPositionInLine[i]+columnDelta : other.charPositionInLine[i];
+				add(other.startIndex[i]+delta, other.line[i]+lineDelta, col, other.mode[i], other.modeStack[i],
+					other.maxLookahead[i]+delta, null);
+			}
+			for (Map.Entry<Integer, List<LexerError>> e : other.errors.subMap(from, to).entrySet()) {
+				List<LexerError> shifted = new ArrayList<>(e.getValue().size());
+				for (LexerError error : e.getValue()) {
+					shifted.add(error.shift(delta, lineDelta, onLine, columnDelta));
+				}
+				errors.put(e.getKey()+offset, shifted);
+			}
+		}
+
+		long estimatedBytes() {
+			return (long) startIndex.length*(7*Integer.BYTES+8);
+		}
+
+		int firstReaching(int index) {
+			int lo = 0, hi = size;
+			while ( lo<hi ) {
+				int mid = (lo+hi) >>> 1;
+				if ( reach[mid]<index ) {
+					lo = mid+1;
+				}
+				else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if ( capacity>startIndex.length ) {
+				int newCapacity = Math.max(capacity, startIndex.length*2);
+				startIndex = Arrays.copyOf(startIndex, newCapacity);
+				line = Arrays.copyOf(line, newCapacity);
+				charPositionInLine = Arrays.copyOf(charPositionInLine, newCapacity);
+				mode = Arrays.copyOf(mode, newCapacity);
+				modeStack = Arrays.copyOf(modeStack, newCapacity);
+				maxLookahead = Arrays.copyOf(maxLookahead, newCapacity);
+				reach = Arrays.copyOf(reach, newCapacity);
+			}
+		}
+	}
+
+	private static class LexerError {
+		final int line;
+		final int charPositionInLine;
+		final int startIndex;
+		final String msg;
+		final ATNConfigSet deadEndConfigs;
+
+		LexerError(int line, int charPositionInLine, int startIndex, String msg, ATNConfigSet deadEndConfigs) {
+			this.line = line;
+			this.charPositionInLine = charPositionInLine;
+			this.startIndex = startIndex;
+			this.msg = msg;
+			this.deadEndConfigs = deadEndConfigs;
+		}
+
+		LexerError shift(int delta, int lineDelta, int onLine, int columnDelta) {
+			return new LexerError(line+lineDelta,
+								  line==onLine ? charPositionInLine+columnDelta : charPositionInLine,
+								  startIndex>=0 ? startIndex+delta : startIndex,
+								  msg, deadEndConfigs);
+		}
+	}
+
+	/** A lexer interpreter over the new text that appends each token
+	 *  and the state it was lexed from to a CompactTokenList/LexerStates.
+	 */
+	private class LexerSession extends BaseErrorListener implements TokenFactory<CommonToken> {
+		final LookaheadTrackingCharStream tracker;
+		final LexerInterpreter lexer;
+		final LexingBudget.Meter meter;
+		int emptyTokens = 0;
+
+		/** Errors and explicit text of the token being lexed */
+		List<LexerError> errors;
+		String text;
+
+		LexerSession(PreviewInterpreterCache interpreterCache,
+					 CaseChangingStrategy caseChangingStrategy,
+					 CodePointCharStream newInput,
+					 LexingBudget.Meter meter) {
+			this.meter = meter;
+			tracker = new LookaheadTrackingCharStream(meter.track(caseChangingStrategy.applyTo(newInput)));
+			lexer = interpreterCache.createLexerInterpreter(tracker);
+			lexer.setTokenFactory(this);
+			lexer.removeErrorListeners();
+			lexer.addErrorListener(this);
+		}
+
+		void restore(LexerStates states, int i) {
+			lexer.reset();
+			tracker.seek(states.startIndex[i]);
+			lexer.setLine(states.line[i]);
+			lexer.setCharPositionInLine(states.charPositionInLine[i]);
+			lexer._mode = states.mode[i];
+			if ( states.modeStack[i]!=null ) {
+				for (int m : states.modeStack[i]) {
+					lexer._modeStack.push(m);
+				}
+			}
+		}
+
+		boolean isInState(LexerStates states, int i) {
+			if ( lexer._mode!=states.mode[i] ) {
+				return false;
+			}
+			int[] modeStack = states.modeStack[i];
+			return modeStack==null ?
+				lexer._modeStack.isEmpty() :
+				Arrays.equals(lexer._modeStack.toArray(), modeStack);
+		}
+
+		/** Call nextToken() once and append the result; pretends we reached
+		 *  EOF if the lexer is stuck. Returns the token type. Throws
+		 *  {@link LexingBudget.ExceededException} when over budget.
+		 */
+		int next(CompactTokenList tokens, LexerStates states) {
+			int startIndex = tracker.index();
+			int line = lexer.getLine();
+			int charPositionInLine = lexer.getCharPositionInLine();
+			int mode = lexer._mode;
+			int[] modeStack = lexer._modeStack.isEmpty() ? null : lexer._modeStack.toArray();
+			tracker.maxLookahead = startIndex;
+			errors = null;
+			text = null;
+
+			Token t = lexer.nextToken();
+			int maxLookahead = tracker.maxLookahead;
+			int type = t.getType();
+
+			emptyTokens = tracker.index()==startIndex ? emptyTokens+1 : 0;
+			if ( emptyTokens>MAX_EMPTY_TOKENS ) {
+				// lexer matches the empty string forever, give up
+				type = Token.EOF;
+				maxLookahead = tracker.size();
+				tokens.add(Token.EOF, Token.DEFAULT_CHANNEL, tracker.size(), tracker.size()-1,
+						   line, charPositionInLine, null);
+			}
+			else {
+				tokens.add(type, t.getChannel(), t.getStartIndex(), t.getStopIndex(),
+						   t.getLine(), t.getCharPositionInLine(), text);
+			}
+			states.add(startIndex, line, charPositionInLine, mode, modeStack, maxLookahead, errors);
+			if ( type!=Token.EOF ) {
+				meter.tokenAdded(tokens.size(), tokens.estimatedBytes()+states.estimatedBytes());
+			}
+			return type;
+		}
+
+		/** End tokens with an EOF where lexing stopped */
+		void stop(CompactTokenList tokens) {
+			int index = tracker.index();
+			tokens.add(Token.EOF, Token.DEFAULT_CHANNEL, index, index-1,
+					   lexer.getLine(), lexer.getCharPositionInLine(), "<EOF>");
+		}
+
+		@Override
+		public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine,
+								String msg, RecognitionException e) {
+			if ( errors==null ) {
+				errors = new ArrayList<>(1);
+			}
+			LexerNoViableAltException nvae = e instanceof LexerNoViableAltException ? (LexerNoViableAltException) e : null;
+			errors.add(new LexerError(line, charPositionInLine,
+									  nvae!=null ? nvae.getStartIndex() : -1, msg,
+									  nvae!=null ? nvae.getDeadEndConfigs() : null));
+		}
+
+		@Override
+		public CommonToken create(Pair<TokenSource, CharStream> source, int type, String text, int channel,
+								  int start, int stop, int line, int charPositionInLine) {
+			this.text = text;
+			CommonToken t = new CommonToken(source, type, channel, start, stop);
+			t.setLine(line);
+			t.setCharPositionInLine(charPositionInLine);
+			return t;
+		}
+
+		@Override
+		public CommonToken create(int type, String text) {
+			return new CommonToken(type, text);
+		}
+	}
+
+	/** Records the furthest index looked at by the lexer */
+	private static class LookaheadTrackingCharStream implements CharStream {
+		final CharStream stream;
+		int maxLookahead;
+
+		LookaheadTrackingCharStream(CharStream stream) {
+			this.stream = stream;
+		}
+
+		@Override
+		public int LA(int i) {
+			if ( i>0 ) {
+				maxLookahead = Math.max(maxLookahead, stream.index()+i-1);
+			}
+			return stream.LA(i);
+		}
+
+		@Override
+		public String getText(Interval interval) {
+			return stream.getText(interval);
+		}
+
+		@Override
+		public void consume() {
+			stream.consume();
+		}
+
+		@Override
+		public int mark() {
+			return stream.mark();
+		}
+
+		@Override
+		public void release(int marker) {
+			stream.release(marker);
+		}
+
+		@Override
+		public int index() {
+			return stream.index();
+		}
+
+		@Override
+		public void seek(int index) {
+			stream.seek(index);
+		}
+
+		@Override
+		public int size() {
+			return stream.size();
+		}
+
+		@Override
+		public String getSourceName() {
+			return stream.getSourceName();
+		}
+	}
+}
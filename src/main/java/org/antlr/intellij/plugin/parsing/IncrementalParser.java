@@ -0,0 +1,499 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.intellij.adaptor.parser.SyntaxError;
+import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ErrorNodeImpl;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+import org.antlr.v4.tool.Rule;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/** Parses the preview input again after an edit, reusing the top-level
+ *  subtrees of the previous parse that the edit can't have changed; see
+ *  {@link PreviewParsingMode#INCREMENTAL}. Works best with start rules
+ *  that repeat some top-level element, like {@code file : decl* EOF ;}.
+ *
+ *  Whenever the start rule itself is about to visit an ATN state at a new
+ *  input position, that is between two of its elements, we remember the
+ *  state, the input position, the number of children of the root context and
+ *  of syntax errors so far, and the furthest token the parser looked at.
+ *  After an edit, parsing resumes from the last such point whose lookahead
+ *  didn't reach the tokens re-lexed by the {@link IncrementalLexer}. It stops
+ *  as soon as the start rule is back in the same state at the same (moved)
+ *  position as during the previous parse; the remaining subtrees and syntax
+ *  errors are then taken from the previous parse. Only points where the error
+ *  strategy isn't recovering from an error are used, so the result is the
+ *  same as parsing the whole input with full LL.
+ *
+ *  The previous tree is never modified since it may still be shown in the
+ *  preview window or cached. The subtrees before the edit are shared with
+ *  it as they are: their tokens didn't move, and trees built here hold
+ *  detached tokens (see {@link CompactTokenList#getDetached}), which don't
+ *  keep the input they came from alive. Their parent is still the root of
+ *  the tree they were first added to, which has the same rule and
+ *  alternative. The subtrees after the edit are copied with their tokens
+ *  moved, which is linear in their size but much cheaper than interpreting
+ *  them again.
+ */
+public class IncrementalParser {
+	private PreviewInterpreterCache interpreterCache;
+	private int startRuleIndex;
+
+	/** The last parse, null if we have to start over */
+	private Snapshot last;
+
+	private int reparsedTokenCount;
+
+	public synchronized void reset() {
+		last = null;
+	}
+
+	/** Number of tokens interpreted by the last call to {@link #parse},
+	 *  the other ones came from the previous tree.
+	 */
+	public synchronized int getReparsedTokenCount() {
+		return reparsedTokenCount;
+	}
+
+	/** Parse tokens, which were returned by the last call to
+	 *  lexer.tokenize(), starting at rule start. Syntax errors are reported
+	 *  to syntaxErrorListener, including those of reused subtrees.
+	 */
+	public synchronized ParsingResult parse(PreviewInterpreterCache interpreterCache,
+											Rule start,
+											IncrementalLexer lexer,
+											CompactTokenStream tokens,
+											SyntaxErrorListener syntaxErrorListener) {
+		CompactTokenList tokenList = tokens.getTokenList();
+		IncrementalLexer.TokenChange change = null;
+		if ( last!=null && interpreterCache==this.interpreterCache && start.index==startRuleIndex ) {
+			change = lexer.getChange(last.tokens, tokenList);
+		}
+
+		TrackingTokenStream input = new TrackingTokenStream(tokenList);
+		PreviewParser parser = interpreterCache.createParser(input);
+		parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+		parser.setErrorHandler(new RecoveryAwareErrorStrategy());
+		parser.removeErrorListeners();
+		parser.addErrorListener(syntaxErrorListener);
+
+		Session session = new Session(parser, input, syntaxErrorListener);
+		ParserRuleContext tree;
+		int resumeAt = change!=null ? last.boundaries.lastResumableBefore(change.start) : -1;
+		if ( resumeAt>=0 ) {
+			tree = session.resume(last, change, resumeAt);
+		}
+		else if ( !parser.getATN().ruleToStartState[start.index].isLeftRecursiveRule ) {
+			parser.incrementalSession = session;
+			tree = parser.parse(start.index);
+			parser.incrementalSession = null;
+		}
+		else {
+			tree = parser.parse(start.index); // the root context changes as the rule recurses
+		}
+
+		this.interpreterCache = interpreterCache;
+		this.startRuleIndex = start.index;
+		List<SyntaxError> errors = syntaxErrorListener.getSyntaxErrors();
+		this.last = new Snapshot(tokenList, tree, session.boundaries,
+								 new ArrayList<>(errors.subList(session.firstError, errors.size())),
+								 parser.inputTokenToStateMap);
+		this.reparsedTokenCount = session.reparsedTokenCount>=0 ? session.reparsedTokenCount : input.index();
+		return new ParsingResult(parser, tree, syntaxErrorListener);
+	}
+
+	/** One parse, recording top-level boundaries as it goes */
+	static class Session {
+		final PreviewParser parser;
+		final TrackingTokenStream input;
+		final CompactTokenList tokens;
+		final SyntaxErrorListener syntaxErrorListener;
+		/** Index of the first parser error in syntaxErrorListener, lexer errors come before */
+		final int firstError;
+		final Boundaries boundaries = new Boundaries();
+
+		/** The parse we resumed and how the tokens changed since, if any */
+		Snapshot previous;
+		IncrementalLexer.TokenChange change;
+
+		int reparsedTokenCount = -1;
+
+		Session(PreviewParser parser, TrackingTokenStream input, SyntaxErrorListener syntaxErrorListener) {
+			this.parser = parser;
+			this.input = input;
+			this.tokens = input.getTokenList();
+			this.syntaxErrorListener = syntaxErrorListener;
+			this.firstError = syntaxErrorListener.getSyntaxErrors().size();
+		}
+
+		/** Called by the parser before each state visited in the start rule
+		 *  itself; throws {@link Resynchronized} once we're back on the path
+		 *  of the previous parse.
+		 */
+		void visitingTopLevelState(ATNState p) {
+			int index = input.index();
+			if ( boundaries.size>0 && index<=boundaries.tokenIndex[boundaries.size-1] ) {
+				return;
+			}
+			RecoveryAwareErrorStrategy errorStrategy = (RecoveryAwareErrorStrategy) parser.getErrorHandler();
+			ParserRuleContext root = parser.getContext();
+			if ( !errorStrategy.isClean(root) ) {
+				return;
+			}
+			int nextTokensState = errorStrategy.getNextTokensState();
+			if ( previous!=null && index>=change.newEnd ) {
+				Boundaries old = previous.boundaries;
+				int j = old.indexOf(index-(change.newEnd-change.oldEnd));
+				if ( j>=0 && old.state[j]==p.stateNumber && old.nextTokensState[j]==nextTokensState ) {
+					throw new Resynchronized(j);
+				}
+			}
+			boundaries.add(index, p.stateNumber, root.getChildCount(),
+						   syntaxErrorListener.getSyntaxErrors().size()-firstError, input.reach, nextTokensState);
+		}
+
+		/** Parse again from boundary b of previous */
+		ParserRuleContext resume(Snapshot previous, IncrementalLexer.TokenChange change, int b) {
+			this.previous = previous;
+			this.change = change;
+			Boundaries old = previous.boundaries;
+			int index = old.tokenIndex[b];
+			PreviewInterpreterRuleContext oldRoot = previous.tree;
+
+			TokenMapper same = new TokenMapper(0);
+			PreviewInterpreterRuleContext root =
+				new PreviewInterpreterRuleContext(null, ATNState.INVALID_STATE_NUMBER, oldRoot.getRuleIndex());
+			root.setOuterAltNum(oldRoot.getOuterAltNum());
+			root.start = oldRoot.start;
+			shareChildren(oldRoot, old.childCount[b], root);
+			boundaries.addRange(old, 0, b, 0, 0, 0, 0);
+			for (SyntaxError error : previous.errors.subList(0, old.errorCount[b])) {
+				report(error, same);
+			}
+			parser.inputTokenToStateMap.putAll(previous.states, 0, index, 0);
+			((RecoveryAwareErrorStrategy) parser.getErrorHandler()).restore(root, old.nextTokensState[b]);
+			input.seek(index);
+			input.reach = old.reach[b];
+
+			parser.incrementalSession = this;
+			try {
+				parser.resume(root, old.state[b]);
+				reparsedTokenCount = input.index()-index;
+			}
+			catch (Resynchronized e) {
+				reparsedTokenCount = input.index()-index;
+				graft(root, e.boundary);
+			}
+			finally {
+				parser.incrementalSession = null;
+			}
+			return root;
+		}
+
+		/** Append what the previous parse did from its boundary j on,
+		 *  which is where we are now.
+		 */
+		private void graft(PreviewInterpreterRuleContext root, int j) {
+			Boundaries old = previous.boundaries;
+			PreviewInterpreterRuleContext oldRoot = previous.tree;
+			int index = input.index();
+			int oldIndex = old.tokenIndex[j];
+			TokenMapper moved = new TokenMapper(previous.tokens.get(oldIndex), tokens.get(index));
+
+			int childDelta = root.getChildCount()-old.childCount[j];
+			int errorDelta = syntaxErrorListener.getSyntaxErrors().size()-firstError-old.errorCount[j];
+			copyChildren(oldRoot, old.childCount[j], oldRoot.getChildCount(), root, moved);
+			root.stop = oldRoot.stop!=null && oldRoot.stop.getTokenIndex()>=oldIndex ?
+				moved.map(oldRoot.stop) :
+				input.LT(-1);
+			root.exception = oldRoot.exception;
+			for (SyntaxError error : previous.errors.subList(old.errorCount[j], previous.errors.size())) {
+				report(error, moved);
+			}
+			parser.inputTokenToStateMap.putAll(previous.states, oldIndex, previous.tokens.size(), index-oldIndex);
+			boundaries.addRange(old, j, old.size, index-oldIndex, childDelta, errorDelta, input.reach);
+		}
+
+		private void report(SyntaxError error, TokenMapper mapper) {
+			Token t = error.getOffendingSymbol();
+			int line = error.getLine();
+			int charPositionInLine = error.getCharPositionInLine();
+			if ( t!=null && t.getTokenIndex()>=0 ) {
+				t = mapper.map(t);
+				line = t.getLine();
+				charPositionInLine = t.getCharPositionInLine();
+			}
+			syntaxErrorListener.syntaxError(parser, t, line, charPositionInLine, error.getMessage(), error.getException());
+		}
+
+		/** Maps tokens of the previous parse to the ones of this parse */
+		private class TokenMapper {
+			final int delta;
+			final int charDelta;
+			final int lineDelta;
+			final int onLine;
+			final int columnDelta;
+
+			TokenMapper(int delta) {
+				this.delta = delta;
+				this.charDelta = 0;
+				this.lineDelta = 0;
+				this.onLine = -1;
+				this.columnDelta = 0;
+			}
+
+			/** Old tokens moved like oldToken was to newToken */
+			TokenMapper(Token oldToken, Token newToken) {
+				this.delta = newToken.getTokenIndex()-oldToken.getTokenIndex();
+				this.charDelta = newToken.getStartIndex()-oldToken.getStartIndex();
+				this.lineDelta = newToken.getLine()-oldToken.getLine();
+				this.onLine = oldToken.getLine();
+				this.columnDelta = newToken.getCharPositionInLine()-oldToken.getCharPositionInLine();
+			}
+
+			Token map(Token t) {
+				if ( t==null || (delta==0 && charDelta==0 && lineDelta==0 && columnDelta==0) ) {
+					return t; // before the edit, detached tokens are the same in both parses
+				}
+				if ( t.getTokenIndex()>=0 ) {
+					return tokens.getDetached(t.getTokenIndex()+delta);
+				}
+				if ( lineDelta==0 && columnDelta==0 ) {
+					return t;
+				}
+				// conjured up during error recovery, it only has a position
+				CommonToken moved = new CommonToken(t);
+				moved.setLine(t.getLine()+lineDelta);
+				if ( t.getLine()==onLine ) {
+					moved.setCharPositionInLine(t.getCharPositionInLine()+columnDelta);
+				}
+				return moved;
+			}
+		}
+	}
+
+	/** Add the first count children of from to to, sharing their subtrees.
+	 *  Terminal nodes are the only ones that know their parent.
+	 */
+	private static void shareChildren(ParserRuleContext from, int count, ParserRuleContext to) {
+		for (int i = 0; i<count; i++) {
+			ParseTree child = from.getChild(i);
+			if ( child instanceof ErrorNode ) {
+				to.addErrorNode(new ErrorNodeImpl(((ErrorNode) child).getSymbol()));
+			}
+			else if ( child instanceof TerminalNode ) {
+				to.addChild(new TerminalNodeImpl(((TerminalNode) child).getSymbol()));
+			}
+			else {
+				to.addAnyChild(child);
+			}
+		}
+	}
+
+	/** Copy children start..stop-1 of from, and their subtrees, to to */
+	private static void copyChildren(ParserRuleContext from, int start, int stop, ParserRuleContext to,
+									 Session.TokenMapper mapper) {
+		// no recursion, trees built by the interpreter can be very deep
+		Deque<ParserRuleContext[]> pending = new ArrayDeque<>();
+		addCopies(from, start, stop, to, mapper, pending);
+		while ( !pending.isEmpty() ) {
+			ParserRuleContext[] next = pending.pop();
+			addCopies(next[0], 0, next[0].getChildCount(), next[1], mapper, pending);
+		}
+	}
+
+	private static void addCopies(ParserRuleContext from, int start, int stop, ParserRuleContext to,
+								  Session.TokenMapper mapper, Deque<ParserRuleContext[]> pending) {
+		for (int i = start; i<stop; i++) {
+			ParseTree child = from.getChild(i);
+			if ( child instanceof ErrorNode ) {
+				to.addErrorNode(new ErrorNodeImpl(mapper.map(((ErrorNode) child).getSymbol())));
+			}
+			else if ( child instanceof TerminalNode ) {
+				to.addChild(new TerminalNodeImpl(mapper.map(((TerminalNode) child).getSymbol())));
+			}
+			else {
+				PreviewInterpreterRuleContext ctx = (PreviewInterpreterRuleContext) child;
+				PreviewInterpreterRuleContext copy = new PreviewInterpreterRuleContext(to, ctx.invokingState, ctx.getRuleIndex());
+				copy.setOuterAltNum(ctx.getOuterAltNum());
+				copy.isDecisionOverrideRoot = ctx.isDecisionOverrideRoot;
+				copy.start = mapper.map(ctx.start);
+				copy.stop = mapper.map(ctx.stop);
+				copy.exception = ctx.exception;
+				to.addChild(copy);
+				pending.push(new ParserRuleContext[] {ctx, copy});
+			}
+		}
+	}
+
+	/** What we keep of a parse; never modified */
+	static class Snapshot {
+		final CompactTokenList tokens;
+		final PreviewInterpreterRuleContext tree;
+		final Boundaries boundaries;
+		/** Parser errors only */
+		final List<SyntaxError> errors;
+		final TokenToATNStateTable states;
+
+		Snapshot(CompactTokenList tokens, ParserRuleContext tree, Boundaries boundaries,
+				 List<SyntaxError> errors, TokenToATNStateTable states) {
+			this.tokens = tokens;
+			this.tree = (PreviewInterpreterRuleContext) tree;
+			this.boundaries = boundaries;
+			this.errors = errors;
+			this.states = states;
+		}
+	}
+
+	/** The points between two top-level elements, in parallel arrays
+	 *  sorted by token index.
+	 */
+	static class Boundaries {
+		int size;
+		int[] tokenIndex = new int[256];
+		int[] state = new int[256];
+		/** Number of children of the root context */
+		int[] childCount = new int[256];
+		/** Number of parser errors reported so far */
+		int[] errorCount = new int[256];
+		/** Furthest token index looked at so far */
+		int[] reach = new int[256];
+		/** See {@link RecoveryAwareErrorStrategy#getNextTokensState()} */
+		int[] nextTokensState = new int[256];
+
+		void add(int tokenIndex, int state, int childCount, int errorCount, int reach, int nextTokensState) {
+			ensureCapacity(size+1);
+			this.tokenIndex[size] = tokenIndex;
+			this.state[size] = state;
+			this.childCount[size] = childCount;
+			this.errorCount[size] = errorCount;
+			this.reach[size] = reach;
+			this.nextTokensState[size] = nextTokensState;
+			size++;
+		}
+
+		/** Append boundaries from..to-1 of other, moved by delta tokens; reach
+		 *  is at least minReach.
+		 */
+		void addRange(Boundaries other, int from, int to, int delta, int childDelta, int errorDelta, int minReach) {
+			ensureCapacity(size+to-from);
+			for (int i = from; i<to; i++) {
+				add(other.tokenIndex[i]+delta, other.state[i], other.childCount[i]+childDelta,
+					other.errorCount[i]+errorDelta, Math.max(other.reach[i]+delta, minReach),
+					other.nextTokensState[i]);
+			}
+		}
+
+		/** The boundary at tokenIndex, -1 if none */
+		int indexOf(int tokenIndex) {
+			int i = Arrays.binarySearch(this.tokenIndex, 0, size, tokenIndex);
+			return i>=0 ? i : -1;
+		}
+
+		/** The last boundary after some top-level element that never looked
+		 *  at token index or beyond, -1 if none.
+		 */
+		int lastResumableBefore(int index) {
+			int lo = 0, hi = size;
+			while ( lo<hi ) {
+				int mid = (lo+hi) >>> 1;
+				if ( reach[mid]<index ) {
+					lo = mid+1;
+				}
+				else {
+					hi = mid;
+				}
+			}
+			int b = lo-1;
+			return b>=0 && childCount[b]>0 ? b : -1;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if ( capacity>tokenIndex.length ) {
+				int newCapacity = Math.max(capacity, tokenIndex.length*2);
+				tokenIndex = Arrays.copyOf(tokenIndex, newCapacity);
+				state = Arrays.copyOf(state, newCapacity);
+				childCount = Arrays.copyOf(childCount, newCapacity);
+				errorCount = Arrays.copyOf(errorCount, newCapacity);
+				reach = Arrays.copyOf(reach, newCapacity);
+				nextTokensState = Arrays.copyOf(nextTokensState, newCapacity);
+			}
+		}
+	}
+
+	/** Thrown when the parse joins the path of the previous one at boundary */
+	private static class Resynchronized extends RuntimeException {
+		final int boundary;
+
+		Resynchronized(int boundary) {
+			super(null, null, false, false);
+			this.boundary = boundary;
+		}
+	}
+
+	/** Lets us see whether the parser is recovering from an error, which
+	 *  would make its state more than an ATN state and an input position.
+	 */
+	private static class RecoveryAwareErrorStrategy extends DefaultErrorStrategy {
+		/** No pending recovery, except maybe the "next tokens" state of the
+		 *  start rule, which sync() remembers to report the next mismatch.
+		 */
+		boolean isClean(ParserRuleContext root) {
+			return !errorRecoveryMode && lastErrorIndex<0 && lastErrorStates==null &&
+				(nextTokensContext==null || nextTokensContext==root);
+		}
+
+		int getNextTokensState() {
+			return nextTokensContext!=null ? nextTokensState : ATNState.INVALID_STATE_NUMBER;
+		}
+
+		void restore(ParserRuleContext root, int nextTokensState) {
+			if ( nextTokensState!=ATNState.INVALID_STATE_NUMBER ) {
+				this.nextTokensContext = root;
+				this.nextTokensState = nextTokensState;
+			}
+		}
+	}
+
+	/** Remembers the furthest token the parser looked at */
+	private static class TrackingTokenStream extends CompactTokenStream {
+		int reach = -1;
+
+		TrackingTokenStream(CompactTokenList tokens) {
+			super(tokens);
+		}
+
+		/** The parser asks for the current token several times in a row */
+		private Token lastToken;
+
+		@Override
+		protected Token createToken(int index) {
+			if ( lastToken==null || lastToken.getTokenIndex()!=index ) {
+				lastToken = getTokenList().getDetached(index);
+			}
+			return lastToken;
+		}
+
+		@Override
+		protected int lookAhead(int k) {
+			int index = super.lookAhead(k);
+			if ( k>0 && index>reach ) {
+				reach = index;
+			}
+			return index;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package org.antlr.intellij.plugin.parsing;
+
+import com.intellij.openapi.progress.ProgressManager;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/** Limits on the lexing stage of a preview parse: number of tokens, time
+ *  and estimated memory used by the tokens. A limit <= 0 means no limit.
+ *
+ *  A {@link Meter} follows one lexing run. It also checks whether the parse
+ *  was cancelled, which the lexer never does by itself, even within a single
+ *  call to nextToken() skipping megabytes of whitespace. When a limit is hit
+ *  it throws {@link ExceededException}; the token stream then stops as if
+ *  EOF was reached so the preview can show what was lexed so far.
+ */
+public class LexingBudget {
+	public static final LexingBudget UNLIMITED = new LexingBudget(0, 0, 0);
+
+	/** Number of chars or tokens between two looks at the clock and
+	 *  at the progress indicator
+	 */
+	private static final int CHECK_INTERVAL = 1024;
+
+	private final int maxTokens;
+	private final long maxMillis;
+	private final long maxMemoryBytes;
+
+	public LexingBudget(int maxTokens, long maxMillis, long maxMemoryBytes) {
+		this.maxTokens = maxTokens;
+		this.maxMillis = maxMillis;
+		this.maxMemoryBytes = maxMemoryBytes;
+	}
+
+	public Meter start() {
+		return new Meter();
+	}
+
+	@Override
+	public String toString() {
+		return "maxTokens="+maxTokens+", maxMillis="+maxMillis+", maxMemoryBytes="+maxMemoryBytes;
+	}
+
+	public class Meter {
+		private final long startNanos = System.nanoTime();
+		private int ticks;
+
+		/** Wrap the lexer's input so that long runs of chars that don't make
+		 *  tokens (skipped or in error) are checked too.
+		 */
+		public CharStream track(CharStream input) {
+			return new MeteredCharStream(input, this);
+		}
+
+		/** Called after each token but EOF, with the number of tokens so far
+		 *  and an estimate of the memory they use.
+		 */
+		public void tokenAdded(int tokenCount, long estimatedBytes) {
+			if ( maxTokens>0 && tokenCount>=maxTokens ) {
+				throw new ExceededException("limit of "+maxTokens+" tokens");
+			}
+			if ( maxMemoryBytes>0 && estimatedBytes>maxMemoryBytes ) {
+				throw new ExceededException("memory limit of "+(maxMemoryBytes >> 20)+"MB");
+			}
+			tick();
+		}
+
+		void charConsumed() {
+			tick();
+		}
+
+		private void tick() {
+			if ( ++ticks%CHECK_INTERVAL==0 ) {
+				ProgressManager.checkCanceled();
+				if ( maxMillis>0 && System.nanoTime()-startNanos>maxMillis*1_000_000 ) {
+					throw new ExceededException("time limit of "+maxMillis+"ms");
+				}
+			}
+		}
+	}
+
+	/** Thrown by a {@link Meter} when a limit is hit; the message says which */
+	public static class ExceededException extends RuntimeException {
+		ExceededException(String limit) {
+			super(limit, null, false, false);
+		}
+
+		/** The message reported at the position where lexing stopped */
+		public String getErrorMessage() {
+			return "lexing stopped here, "+getMessage()+" reached; the rest of the input is ignored";
+		}
+	}
+
+	private static class MeteredCharStream implements CharStream {
+		private final CharStream delegate;
+		private final Meter meter;
+
+		MeteredCharStream(CharStream delegate, Meter meter) {
+			this.delegate = delegate;
+			this.meter = meter;
+		}
+
+		@Override
+		public void consume() {
+			delegate.consume();
+			meter.charConsumed();
+		}
+
+		@Override
+		public String getText(Interval interval) {
+			return delegate.getText(interval);
+		}
+
+		@Override
+		public int LA(int i) {
+			return delegate.LA(i);
+		}
+
+		@Override
+		public int mark() {
+			return delegate.mark();
+		}
+
+		@Override
+		public void release(int marker) {
+			delegate.release(marker);
+		}
+
+		@Override
+		public int index() {
+			return delegate.index();
+		}
+
+		@Override
+		public void seek(int index) {
+			delegate.seek(index);
+		}
+
+		@Override
+		public int size() {
+			return delegate.size();
+		}
+
+		@Override
+		public String getSourceName() {
+			return delegate.getSourceName();
+		}
+	}
+}
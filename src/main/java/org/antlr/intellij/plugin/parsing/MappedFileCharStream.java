@@ -0,0 +1,260 @@
+package org.antlr.intellij.plugin.parsing;
+
+import com.intellij.openapi.progress.ProgressIndicator;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** A char stream over a memory-mapped file, for preview input files too big
+ *  to be loaded in a String. Like {@link org.antlr.v4.runtime.CodePointCharStream},
+ *  indexes are code points. Only UTF-8 (thus ASCII) and ISO-8859-1 are
+ *  supported; for UTF-8, the file is scanned once upon opening to count
+ *  code points and remember the byte offset of every
+ *  {@link #CHECKPOINT_INTERVAL}th one so that seeking stays cheap.
+ *
+ *  The mapped content is shared by all {@link #copy() copies} of a stream,
+ *  each copy having its own position, so that several parses can run at the
+ *  same time. {@link #getText} doesn't move the position.
+ */
+public class MappedFileCharStream implements CharStream {
+	private static final int CHUNK_SIZE = 1 << 30;
+	private static final int CHECKPOINT_INTERVAL = 4096;
+
+	private final Content content;
+
+	/** Current position, in code points and in bytes */
+	private int index;
+	private long bytePos;
+
+	private MappedFileCharStream(Content content) {
+		this.content = content;
+		this.bytePos = content.startByte;
+	}
+
+	public static boolean isSupported(Charset charset) {
+		return charset.equals(StandardCharsets.UTF_8) ||
+			charset.equals(StandardCharsets.US_ASCII) ||
+			charset.equals(StandardCharsets.ISO_8859_1);
+	}
+
+	public static MappedFileCharStream open(File file, Charset charset) throws IOException {
+		return open(file, charset, null);
+	}
+
+	/** Like {@link #open(File, Charset)}, reporting the progress of the
+	 *  scan of a UTF-8 file to indicator, which can cancel it.
+	 */
+	public static MappedFileCharStream open(File file, Charset charset, @Nullable ProgressIndicator indicator) throws IOException {
+		if ( !isSupported(charset) ) {
+			throw new IOException("unsupported encoding "+charset.name());
+		}
+		return new MappedFileCharStream(new Content(file, !charset.equals(StandardCharsets.ISO_8859_1), indicator));
+	}
+
+	/** A new stream at index 0 sharing our mapped content */
+	public MappedFileCharStream copy() {
+		return new MappedFileCharStream(content);
+	}
+
+	@Override
+	public void consume() {
+		if ( index>=content.size ) {
+			assert LA(1)==IntStream.EOF;
+			throw new IllegalStateException("cannot consume EOF");
+		}
+		bytePos += content.length(bytePos);
+		index++;
+	}
+
+	@Override
+	public int LA(int i) {
+		if ( i==0 ) {
+			return 0; // undefined
+		}
+		int target = i>0 ? index+i-1 : index+i;
+		if ( target<0 || target>=content.size ) {
+			return IntStream.EOF;
+		}
+		if ( i==1 ) {
+			return content.codePointAt(bytePos);
+		}
+		return content.codePointAt(content.byteOffsetOf(target, index, bytePos));
+	}
+
+	@Override
+	public int mark() {
+		return -1;
+	}
+
+	@Override
+	public void release(int marker) {
+	}
+
+	@Override
+	public int index() {
+		return index;
+	}
+
+	@Override
+	public void seek(int index) {
+		index = Math.max(0, Math.min(index, content.size));
+		bytePos = content.byteOffsetOf(index, this.index, bytePos);
+		this.index = index;
+	}
+
+	@Override
+	public int size() {
+		return content.size;
+	}
+
+	@Override
+	public String getSourceName() {
+		return content.sourceName;
+	}
+
+	@Override
+	public String getText(Interval interval) {
+		int start = Math.max(0, interval.a);
+		int stop = Math.min(interval.b, content.size-1);
+		if ( start>stop ) {
+			return "";
+		}
+		StringBuilder buf = new StringBuilder(stop-start+1);
+		long pos = content.byteOffsetOf(start, index, bytePos);
+		for (int i = start; i<=stop; i++) {
+			buf.appendCodePoint(content.codePointAt(pos));
+			pos += content.length(pos);
+		}
+		return buf.toString();
+	}
+
+	@Override
+	public String toString() {
+		return content.sourceName;
+	}
+
+	/** The mapped file; immutable once created */
+	private static class Content {
+		final String sourceName;
+		final MappedByteBuffer[] chunks;
+		final long byteSize;
+		final boolean utf8;
+		final long startByte;
+		/** Number of code points */
+		final int size;
+		/** Byte offset of code point i*CHECKPOINT_INTERVAL (UTF-8 only) */
+		final long[] checkpoints;
+
+		Content(File file, boolean utf8, @Nullable ProgressIndicator indicator) throws IOException {
+			this.sourceName = file.getPath();
+			this.utf8 = utf8;
+			try ( RandomAccessFile raf = new RandomAccessFile(file, "r");
+				  FileChannel channel = raf.getChannel() )
+			{
+				byteSize = channel.size();
+				chunks = new MappedByteBuffer[(int) ((byteSize+CHUNK_SIZE-1)/CHUNK_SIZE)];
+				for (int i = 0; i<chunks.length; i++) {
+					long offset = (long) i*CHUNK_SIZE;
+					chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(CHUNK_SIZE, byteSize-offset));
+				}
+			}
+
+			if ( !utf8 ) {
+				if ( byteSize>Integer.MAX_VALUE ) {
+					throw new IOException(sourceName+" is too big");
+				}
+				startByte = 0;
+				size = (int) byteSize;
+				checkpoints = null;
+				return;
+			}
+
+			startByte = byteSize>=3 && byteAt(0)==0xEF && byteAt(1)==0xBB && byteAt(2)==0xBF ? 3 : 0; // BOM
+			long[] offsets = new long[(int) Math.min(byteSize/CHECKPOINT_INTERVAL+1, Integer.MAX_VALUE)];
+			int n = 0;
+			long count = 0;
+			for (long pos = startByte; pos<byteSize; pos += length(pos), count++) {
+				if ( count%CHECKPOINT_INTERVAL==0 ) {
+					offsets[n++] = pos;
+					if ( indicator!=null && n%256==0 ) {
+						indicator.checkCanceled();
+						indicator.setFraction((double) pos/byteSize);
+					}
+				}
+			}
+			if ( count>Integer.MAX_VALUE ) {
+				throw new IOException(sourceName+" is too big");
+			}
+			size = (int) count;
+			checkpoints = Arrays.copyOf(offsets, Math.max(n, 1));
+			checkpoints[0] = startByte;
+		}
+
+		int byteAt(long pos) {
+			return chunks[(int) (pos/CHUNK_SIZE)].get((int) (pos%CHUNK_SIZE)) & 0xFF;
+		}
+
+		/** Number of bytes of the code point at pos */
+		int length(long pos) {
+			if ( !utf8 ) {
+				return 1;
+			}
+			int b = byteAt(pos);
+			int n = b<0x80 ? 1 : b>=0xF0 && b<0xF8 ? 4 : b>=0xE0 ? 3 : b>=0xC0 ? 2 : 1;
+			// stop at malformed continuation bytes, they become U+FFFD
+			for (int i = 1; i<n; i++) {
+				if ( pos+i>=byteSize || (byteAt(pos+i) & 0xC0)!=0x80 ) {
+					return i;
+				}
+			}
+			return n;
+		}
+
+		int codePointAt(long pos) {
+			int b = byteAt(pos);
+			if ( !utf8 || b<0x80 ) {
+				return b;
+			}
+			int n = length(pos);
+			if ( n==1 ) {
+				return 0xFFFD; // malformed
+			}
+			int cp = b & (0xFF >> (n+1));
+			for (int i = 1; i<n; i++) {
+				cp = (cp << 6) | (byteAt(pos+i) & 0x3F);
+			}
+			int expected = b>=0xF0 ? 4 : b>=0xE0 ? 3 : 2;
+			return n==expected ? cp : 0xFFFD;
+		}
+
+		/** Byte offset of code point target, walking from (fromIndex, fromPos)
+		 *  if it's close enough ahead, or from the nearest checkpoint.
+		 */
+		long byteOffsetOf(int target, int fromIndex, long fromPos) {
+			if ( !utf8 ) {
+				return target;
+			}
+			int index = fromIndex;
+			long pos = fromPos;
+			if ( target<fromIndex || target-fromIndex>=CHECKPOINT_INTERVAL ) {
+				int checkpoint = target/CHECKPOINT_INTERVAL;
+				index = checkpoint*CHECKPOINT_INTERVAL;
+				pos = checkpoints[checkpoint];
+			}
+			for (; index<target; index++) {
+				pos += length(pos);
+			}
+			return pos;
+		}
+	}
+}
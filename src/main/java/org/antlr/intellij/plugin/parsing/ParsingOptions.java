@@ -0,0 +1,86 @@
+package org.antlr.intellij.plugin.parsing;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.antlr.intellij.plugin.configdialogs.ANTLRv4GrammarProperties;
+import org.jetbrains.annotations.Nullable;
+
+import static org.antlr.intellij.plugin.configdialogs.ANTLRv4GrammarPropertiesStore.getGrammarProperties;
+
+/** How {@link ParsingUtils#parseText} parses some input: what it can reuse
+ *  from previous parses and how much work it does. Never modified: the
+ *  with...() methods return a copy.
+ */
+public final class ParsingOptions {
+	/** Fresh interpreters, no incremental lexing or parsing, diagnostic mode and no lexing limit */
+	public static final ParsingOptions DEFAULT =
+		new ParsingOptions(null, null, 0, null, PreviewParsingMode.DIAGNOSTIC, LexingBudget.UNLIMITED);
+
+	/** ATNs and DFAs computed during previous parses; only used if it was
+	 *  built for the grammars being parsed with.
+	 */
+	@Nullable
+	public final PreviewInterpreterCache interpreterCache;
+
+	/** Re-lexes only what changed since its last call, if not null; the
+	 *  input must be the text after inputEditCount edits have been reported
+	 *  to it.
+	 */
+	@Nullable
+	public final IncrementalLexer incrementalLexer;
+	public final int inputEditCount;
+
+	/** Reuses what it can of its previous parse, only in
+	 *  {@link PreviewParsingMode#INCREMENTAL} mode and with incrementalLexer
+	 */
+	@Nullable
+	public final IncrementalParser incrementalParser;
+
+	public final PreviewParsingMode mode;
+
+	public final LexingBudget lexingBudget;
+
+	private ParsingOptions(@Nullable PreviewInterpreterCache interpreterCache,
+						   @Nullable IncrementalLexer incrementalLexer, int inputEditCount,
+						   @Nullable IncrementalParser incrementalParser,
+						   PreviewParsingMode mode, LexingBudget lexingBudget)
+	{
+		this.interpreterCache = interpreterCache;
+		this.incrementalLexer = incrementalLexer;
+		this.inputEditCount = inputEditCount;
+		this.incrementalParser = incrementalParser;
+		this.mode = mode;
+		this.lexingBudget = lexingBudget;
+	}
+
+	/** The parsing mode and lexing budget set in the properties of grammarFile */
+	public static ParsingOptions forGrammar(Project project, VirtualFile grammarFile) {
+		ANTLRv4GrammarProperties grammarProperties = getGrammarProperties(project, grammarFile);
+		return DEFAULT.withMode(grammarProperties.getPreviewParsingMode())
+			.withLexingBudget(grammarProperties.getPreviewLexingBudget());
+	}
+
+	public ParsingOptions withInterpreterCache(@Nullable PreviewInterpreterCache interpreterCache) {
+		return new ParsingOptions(interpreterCache, incrementalLexer, inputEditCount, incrementalParser, mode, lexingBudget);
+	}
+
+	public ParsingOptions withIncrementalLexer(@Nullable IncrementalLexer incrementalLexer, int inputEditCount) {
+		return new ParsingOptions(interpreterCache, incrementalLexer, inputEditCount, incrementalParser, mode, lexingBudget);
+	}
+
+	public ParsingOptions withIncrementalParser(@Nullable IncrementalParser incrementalParser) {
+		return new ParsingOptions(interpreterCache, incrementalLexer, inputEditCount, incrementalParser, mode, lexingBudget);
+	}
+
+	public ParsingOptions withMode(PreviewParsingMode mode) {
+		return new ParsingOptions(interpreterCache, incrementalLexer, inputEditCount, incrementalParser, mode, lexingBudget);
+	}
+
+	public ParsingOptions withLexingBudget(LexingBudget lexingBudget) {
+		return new ParsingOptions(interpreterCache, incrementalLexer, inputEditCount, incrementalParser, mode, lexingBudget);
+	}
+
+	public boolean isDiagnostic() {
+		return mode==PreviewParsingMode.DIAGNOSTIC;
+	}
+}
@@ -8,6 +8,8 @@ public class ParsingResult {
 	public Parser parser;
 	public ParseTree tree;
 	public SyntaxErrorListener syntaxErrorListener;
+	/** Set by {@link ParsingResultCache#estimateSize(ParsingResult, int)}, < 0 until then */
+	volatile long sizeInBytes = -1;
 
 	public ParsingResult(Parser parser, ParseTree tree, SyntaxErrorListener syntaxErrorListener) {
 		this.parser = parser;
@@ -0,0 +1,312 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.atn.DecisionInfo;
+import org.antlr.v4.runtime.atn.ErrorInfo;
+import org.antlr.v4.runtime.atn.ParseInfo;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.LexerGrammar;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Recent preview parse results, so that going back to an input/grammar
+ *  combination parsed a moment ago (switching grammars, start rules, undo...)
+ *  doesn't interpret the input again.
+ *
+ *  Results are keyed by a digest of everything they depend on, see
+ *  {@link #key}, and the least recently used ones are dropped once the
+ *  estimated size of all results goes over the limit.
+ */
+public class ParsingResultCache {
+	public static final long DEFAULT_MAX_BYTES = 64L*1024*1024;
+
+	// rough costs of the objects a result holds, see estimateSize()
+	private static final int BYTES_PER_TOKEN = 56;
+	private static final int BYTES_PER_TERMINAL_NODE = 24;
+	/** A rule context with its children list, not counting the references to the children */
+	private static final int BYTES_PER_RULE_NODE = 80;
+	private static final int BYTES_PER_SYNTAX_ERROR = 160;
+	private static final int BYTES_PER_DECISION = 160;
+	/** An ambiguity, context sensitivity or predicate evaluation recorded by the profiler */
+	private static final int BYTES_PER_EVENT = 96;
+	private static final int BYTES_PER_ATN_CONFIG = 48;
+
+	private final long maxBytes;
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ParsingResultCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	public ParsingResultCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/** A digest of parts, typically the grammar texts, start rule, input
+	 *  text and the grammar properties that change how the input is parsed.
+	 *  Null parts are allowed.
+	 */
+	public static Key key(CharSequence... parts) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for (CharSequence part : parts) {
+			// the length keeps ("ab", "c") and ("a", "bc") apart
+			int length = part!=null ? part.length() : -1;
+			digest.update(new byte[] {(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+			if ( part!=null ) {
+				update(digest, part);
+			}
+		}
+		return new Key(digest.digest());
+	}
+
+	/** The texts results parsed with g and lg depend on, to be digested by
+	 *  {@link #key}: those of g, lg and of every grammar either imports,
+	 *  since a lexer used through tokenVocab may import grammars too.
+	 *  Imported grammars are created from their AST, without text, so
+	 *  theirs is taken from their token stream.
+	 */
+	public static List<CharSequence> grammarTexts(Grammar g, LexerGrammar lg) {
+		List<CharSequence> texts = new ArrayList<>();
+		for (Grammar grammar : new Grammar[] {g, lg}) {
+			texts.add(grammar.text);
+			List<Grammar> imported = grammar.getAllImportedGrammars();
+			if ( imported!=null ) {
+				for (Grammar i : imported) {
+					texts.add(i.fileName);
+					texts.add(i.text!=null ? i.text : i.tokenStream!=null ? i.tokenStream.toString() : i.ast.toStringTree());
+				}
+			}
+		}
+		return texts;
+	}
+
+	/** Digest the UTF-8 encoding of text a buffer at a time, so that a big
+	 *  input isn't copied whole to be digested.
+	 */
+	private static void update(MessageDigest digest, CharSequence text) {
+		CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer in = CharBuffer.wrap(text);
+		ByteBuffer out = ByteBuffer.allocate(8192);
+		CoderResult result;
+		do {
+			result = encoder.encode(in, out, true);
+			out.flip();
+			digest.update(out);
+			out.clear();
+		}
+		while ( result.isOverflow() );
+		do {
+			result = encoder.flush(out);
+			out.flip();
+			digest.update(out);
+			out.clear();
+		}
+		while ( result.isOverflow() );
+	}
+
+	/** A digest of other digests, e.g. of all the files something was loaded from */
+	public static Key combine(Key... parts) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for (Key part : parts) {
+			digest.update(part.digest);
+		}
+		return new Key(digest.digest());
+	}
+
+	/** Estimated memory held by result, including the input text: its
+	 *  tokens, parse tree nodes, syntax errors and, when profiled, the
+	 *  events recorded for each decision. Computed once per result, as it
+	 *  walks the whole tree.
+	 */
+	public static long estimateSize(ParsingResult result, int inputLength) {
+		if ( result.sizeInBytes<0 ) {
+			result.sizeInBytes = inputLength*2L + estimateSize(result.parser, result.tree, result.syntaxErrorListener);
+		}
+		return result.sizeInBytes;
+	}
+
+	/** Like {@link #estimateSize(ParsingResult, int)}, taking the input
+	 *  length from the end of the last token.
+	 */
+	public static long estimateSize(ParsingResult result) {
+		if ( result.sizeInBytes<0 ) {
+			TokenStream tokens = result.parser.getInputStream();
+			int inputLength = tokens.size()>0 ? Math.max(0, tokens.get(tokens.size()-1).getStopIndex()+1) : 0;
+			return estimateSize(result, inputLength);
+		}
+		return result.sizeInBytes;
+	}
+
+	private static long estimateSize(Parser parser, ParseTree tree, SyntaxErrorListener syntaxErrorListener) {
+		long size = 0;
+		if ( parser!=null ) {
+			size += (long) parser.getInputStream().size()*BYTES_PER_TOKEN;
+			ParseInfo parseInfo = parser.getParseInfo();
+			if ( parseInfo!=null ) {
+				for (DecisionInfo decision : parseInfo.getDecisionInfo()) {
+					size += BYTES_PER_DECISION;
+					size += (long) (decision.ambiguities.size()+decision.contextSensitivities.size()+
+						decision.predicateEvals.size())*BYTES_PER_EVENT;
+					for (ErrorInfo error : decision.errors) {
+						size += BYTES_PER_EVENT;
+						if ( error.configs!=null ) {
+							size += (long) error.configs.size()*BYTES_PER_ATN_CONFIG;
+						}
+					}
+				}
+			}
+		}
+		if ( syntaxErrorListener!=null ) {
+			size += (long) syntaxErrorListener.getSyntaxErrors().size()*BYTES_PER_SYNTAX_ERROR;
+		}
+		if ( tree!=null ) {
+			// no recursion, deeply nested inputs make deep trees
+			Deque<ParseTree> nodes = new ArrayDeque<>();
+			nodes.push(tree);
+			while ( !nodes.isEmpty() ) {
+				ParseTree node = nodes.pop();
+				int n = node.getChildCount();
+				if ( n==0 && node instanceof TerminalNode ) {
+					size += BYTES_PER_TERMINAL_NODE;
+				}
+				else {
+					size += BYTES_PER_RULE_NODE + n*8L;
+					for (int i = 0; i<n; i++) {
+						nodes.push(node.getChild(i));
+					}
+				}
+			}
+		}
+		return size;
+	}
+
+	/** Returns null on a miss */
+	public synchronized Entry get(Key key) {
+		Entry entry = entries.get(key);
+		if ( entry!=null ) {
+			hits.incrementAndGet();
+		}
+		else {
+			misses.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/** Remember result, which took parseDuration ns; results bigger
+	 *  than the whole cache are not kept.
+	 */
+	public synchronized void put(Key key, ParsingResult result, long parseDuration, long sizeInBytes) {
+		if ( sizeInBytes>maxBytes ) {
+			return;
+		}
+		Entry old = entries.put(key, new Entry(result, parseDuration, sizeInBytes));
+		if ( old!=null ) {
+			bytes -= old.sizeInBytes;
+		}
+		bytes += sizeInBytes;
+
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while ( bytes>maxBytes && it.hasNext() ) {
+			bytes -= it.next().getValue().sizeInBytes;
+			it.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getSizeInBytes() {
+		return bytes;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "hits="+getHitCount()+", misses="+getMissCount()+", entries="+size()+
+			", bytes="+getSizeInBytes()+"/"+maxBytes;
+	}
+
+	public static final class Key {
+		private final byte[] digest;
+		private final int hashCode;
+
+		private Key(byte[] digest) {
+			this.digest = digest;
+			this.hashCode = Arrays.hashCode(digest);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	public static class Entry {
+		public final ParsingResult result;
+		/** How long the original parse took, in ns */
+		public final long parseDuration;
+		final long sizeInBytes;
+
+		Entry(ParsingResult result, long parseDuration, long sizeInBytes) {
+			this.result = result;
+			this.parseDuration = parseDuration;
+			this.sizeInBytes = sizeInBytes;
+		}
+	}
+}
@@ -2,25 +2,24 @@ package org.antlr.intellij.plugin.parsing;
 
 import com.intellij.execution.ui.ConsoleView;
 import com.intellij.execution.ui.ConsoleViewContentType;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vfs.LocalFileSystem;
-import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
 import org.antlr.intellij.plugin.ANTLRv4PluginController;
-import org.antlr.intellij.plugin.PluginIgnoreMissingTokensFileErrorManager;
 import org.antlr.intellij.plugin.configdialogs.ANTLRv4GrammarProperties;
 import org.antlr.intellij.plugin.parser.ANTLRv4Lexer;
 import org.antlr.intellij.plugin.parser.ANTLRv4Parser;
 import org.antlr.intellij.plugin.preview.PreviewState;
 import org.antlr.runtime.ANTLRStringStream;
 import org.antlr.v4.Tool;
-import org.antlr.v4.parse.ANTLRParser;
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.atn.PredictionMode;
 import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.misc.Utils;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.TerminalNode;
@@ -41,15 +40,38 @@ import java.util.*;
 import static org.antlr.intellij.plugin.configdialogs.ANTLRv4GrammarPropertiesStore.getGrammarProperties;
 
 public class ParsingUtils {
-	public static Grammar BAD_PARSER_GRAMMAR;
-	public static LexerGrammar BAD_LEXER_GRAMMAR;
+	/** Stand for grammars that can't be loaded; created on first use so that
+	 *  projects without grammars don't run the ANTLR tool at startup.
+	 */
+	private static volatile Grammar badParserGrammar;
+	private static volatile LexerGrammar badLexerGrammar;
+
+	public static Grammar getBadParserGrammar() {
+		initBadGrammars();
+		return badParserGrammar;
+	}
+
+	public static LexerGrammar getBadLexerGrammar() {
+		initBadGrammars();
+		return badLexerGrammar;
+	}
+
+	/** Doesn't create the bad grammars, g can't be one of them if they don't exist yet */
+	public static boolean isBadGrammar(Grammar g) {
+		return g!=null && (g==badParserGrammar || g==badLexerGrammar);
+	}
 
-	static {
+	private static synchronized void initBadGrammars() {
+		if ( badLexerGrammar!=null ) {
+			return;
+		}
 		try {
-			ParsingUtils.BAD_PARSER_GRAMMAR = new Grammar("grammar BAD; a : 'bad' ;");
-			ParsingUtils.BAD_PARSER_GRAMMAR.name = "BAD_PARSER_GRAMMAR";
-			ParsingUtils.BAD_LEXER_GRAMMAR = new LexerGrammar("lexer grammar BADLEXER; A : 'bad' ;");
-			ParsingUtils.BAD_LEXER_GRAMMAR.name = "BAD_LEXER_GRAMMAR";
+			Grammar parserGrammar = new Grammar("grammar BAD; a : 'bad' ;");
+			parserGrammar.name = "BAD_PARSER_GRAMMAR";
+			LexerGrammar lexerGrammar = new LexerGrammar("lexer grammar BADLEXER; A : 'bad' ;");
+			lexerGrammar.name = "BAD_LEXER_GRAMMAR";
+			badParserGrammar = parserGrammar;
+			badLexerGrammar = lexerGrammar;
 		}
 		catch (org.antlr.runtime.RecognitionException re) {
 			ANTLRv4PluginController.LOG.error("can't init bad grammar markers");
@@ -94,9 +116,11 @@ public class ParsingUtils {
 	}
 
 	public static Token getTokenUnderCursor(PreviewState previewState, int offset) {
-		if ( previewState==null || previewState.parsingResult == null) return null;
+		if ( previewState==null ) return null;
+		ParsingResult parsingResult = previewState.getSnapshot().parsingResult;
+		if ( parsingResult == null) return null;
 
-		PreviewParser parser = (PreviewParser)previewState.parsingResult.parser;
+		PreviewParser parser = (PreviewParser)parsingResult.parser;
 		CommonTokenStream tokenStream =	(CommonTokenStream) parser.getInputStream();
 		return ParsingUtils.getTokenUnderCursor(tokenStream, offset);
 	}
@@ -162,6 +186,10 @@ public class ParsingUtils {
 		return tokens;
 	}
 
+    /** The node of tree holding token, null if there's none (e.g. token is
+     *  hidden). Tokens are compared by index and position, not identity:
+     *  a {@link CompactTokenList} creates a new token on each get().
+     */
     public static ParseTree getParseTreeNodeWithToken(ParseTree tree, Token token) {
         if ( tree==null || token==null ) {
             return null;
@@ -170,13 +198,28 @@ public class ParsingUtils {
         Collection<ParseTree> tokenNodes = Trees.findAllTokenNodes(tree, token.getType());
         for (ParseTree t : tokenNodes) {
             TerminalNode tnode = (TerminalNode)t;
-            if ( tnode.getPayload() == token ) {
+            Token symbol = tnode.getSymbol();
+            if ( symbol==token ||
+                 (symbol.getTokenIndex()==token.getTokenIndex() && symbol.getStartIndex()==token.getStartIndex()) )
+            {
                 return tnode;
             }
         }
         return null;
     }
 
+    /** The node of the parse tree holding the token at offset in the
+     *  input, null if there's none (e.g. a hidden token or no token there).
+     */
+    public static TerminalNode getTerminalNodeUnderCursor(ParsingResult parsingResult, int offset) {
+        if ( parsingResult==null ) {
+            return null;
+        }
+        CommonTokenStream tokens = (CommonTokenStream) parsingResult.parser.getInputStream();
+        Token tokenUnderCursor = getTokenUnderCursor(tokens, offset);
+        return (TerminalNode) getParseTreeNodeWithToken(parsingResult.tree, tokenUnderCursor);
+    }
+
     public static ParsingResult parseANTLRGrammar(String text) {
 	    CodePointCharStream input = CharStreams.fromString(text);
 		ANTLRv4Lexer lexer = new ANTLRv4Lexer(input);
@@ -193,31 +236,94 @@ public class ParsingUtils {
 		return new ParsingResult(parser, t, listener);
 	}
 
+	/** Parse inputText with the interpreters, as told by options; see
+	 *  {@link ParsingOptions} for what can be reused from previous parses.
+	 */
 	public static ParsingResult parseText(Grammar g,
 										  LexerGrammar lg,
 										  String startRuleName,
 										  final VirtualFile grammarFile,
 										  String inputText,
-										  Project project) {
+										  Project project,
+										  ParsingOptions options) {
+		if ( g==null || lg==null ) {
+			ANTLRv4PluginController.LOG.info("parseText can't parse: missing lexer or parser no Grammar object for " +
+											 (grammarFile != null ? grammarFile.getName() : "<unknown file>"));
+			return null;
+		}
+		IncrementalLexer incrementalLexer = options.incrementalLexer;
+		if ( incrementalLexer==null ) {
+			CharStream input = CharStreams.fromString(inputText, grammarFile.getPath());
+			return parseText(g, lg, startRuleName, grammarFile, input, project, options);
+		}
+		PreviewInterpreterCache interpreterCache = options.interpreterCache;
+		if ( interpreterCache==null || !interpreterCache.isFor(g, lg) ) {
+			interpreterCache = new PreviewInterpreterCache(g, lg);
+		}
+		ANTLRv4GrammarProperties grammarProperties = getGrammarProperties(project, grammarFile);
+		SyntaxErrorListener syntaxErrorListener = new SyntaxErrorListener();
+		CompactTokenStream tokens = incrementalLexer.tokenize(interpreterCache, grammarProperties.getCaseChangingStrategy(),
+															  inputText, options.inputEditCount,
+															  options.lexingBudget,
+															  syntaxErrorListener);
+		if ( options.incrementalParser!=null && options.mode==PreviewParsingMode.INCREMENTAL ) {
+			Rule start = g.getRule(startRuleName);
+			if ( isBadGrammar(g) || isBadGrammar(lg) || start==null ) {
+				return null;
+			}
+			return options.incrementalParser.parse(interpreterCache, start, incrementalLexer, tokens, syntaxErrorListener);
+		}
+		return parseText(g, lg, startRuleName, grammarFile, syntaxErrorListener, tokens, 0,
+						 options.withInterpreterCache(interpreterCache));
+	}
+
+	/** Parse input from its current position, without holding the input
+	 *  text in a String; used for input files too big to be loaded in a
+	 *  Document (see {@link MappedFileCharStream}). The incremental lexer
+	 *  and parser of options aren't used.
+	 */
+	public static ParsingResult parseText(Grammar g,
+										  LexerGrammar lg,
+										  String startRuleName,
+										  final VirtualFile grammarFile,
+										  CharStream input,
+										  Project project,
+										  ParsingOptions options) {
+		if ( g==null || lg==null ) {
+			ANTLRv4PluginController.LOG.info("parseText can't parse: missing lexer or parser no Grammar object for " +
+											 (grammarFile != null ? grammarFile.getName() : "<unknown file>"));
+			return null;
+		}
+		PreviewInterpreterCache interpreterCache = options.interpreterCache;
+		if ( interpreterCache==null || !interpreterCache.isFor(g, lg) ) {
+			interpreterCache = new PreviewInterpreterCache(g, lg);
+		}
 		ANTLRv4GrammarProperties grammarProperties = getGrammarProperties(project, grammarFile);
-		CharStream input = grammarProperties.getCaseChangingStrategy()
-				.applyTo(CharStreams.fromString(inputText, grammarFile.getPath()));
-		LexerInterpreter lexEngine;
-		lexEngine = lg.createLexerInterpreter(input);
 		SyntaxErrorListener syntaxErrorListener = new SyntaxErrorListener();
+		LexingBudget.Meter meter = options.lexingBudget.start();
+		input = meter.track(grammarProperties.getCaseChangingStrategy().applyTo(input));
+		LexerInterpreter lexEngine = interpreterCache.createLexerInterpreter(input);
 		lexEngine.removeErrorListeners();
 		lexEngine.addErrorListener(syntaxErrorListener);
-		CommonTokenStream tokens = new TokenStreamSubset(lexEngine);
-		return parseText(g, lg, startRuleName, grammarFile, syntaxErrorListener, tokens, 0);
+		CommonTokenStream tokens = new CompactTokenStream(lexEngine, meter, syntaxErrorListener);
+		return parseText(g, lg, startRuleName, grammarFile, syntaxErrorListener, tokens, 0,
+						 options.withInterpreterCache(interpreterCache));
 	}
 
+	/** Parse tokens from startIndex. In {@link PreviewParsingMode#DIAGNOSTIC}
+	 *  mode, parse with exact ambiguity detection and profiling so that the
+	 *  Profiler tab has something to show. Otherwise, try SLL first and only
+	 *  parse again with full LL if SLL reports a syntax error; the resulting
+	 *  parser then has no ParseInfo.
+	 */
 	public static ParsingResult parseText(Grammar g,
 										  LexerGrammar lg,
 										  String startRuleName,
 										  final VirtualFile grammarFile,
 										  SyntaxErrorListener syntaxErrorListener,
 										  TokenStream tokens,
-										  int startIndex) {
+										  int startIndex,
+										  ParsingOptions options) {
 		if ( g==null || lg==null ) {
 			ANTLRv4PluginController.LOG.info("parseText can't parse: missing lexer or parser no Grammar object for " +
 											 (grammarFile != null ? grammarFile.getName() : "<unknown file>"));
@@ -230,23 +336,45 @@ public class ParsingUtils {
 			return null;
 		}
 
-		if ( g==BAD_PARSER_GRAMMAR || lg==BAD_LEXER_GRAMMAR ) {
+		if ( isBadGrammar(g) || isBadGrammar(lg) ) {
 			return null;
 		}
 
-		tokens.seek(startIndex);
+		Rule start = g.getRule(startRuleName);
+		if ( start==null ) {
+			return null; // can't find start rule
+		}
 
-		PreviewParser parser = new PreviewParser(g, tokens);
-		parser.getInterpreter().setPredictionMode(PredictionMode.LL_EXACT_AMBIG_DETECTION);
-		parser.setProfile(true);
+		PreviewInterpreterCache interpreterCache = options.interpreterCache;
+		boolean diagnostic = options.isDiagnostic();
+		if ( !diagnostic ) {
+			tokens.seek(startIndex);
+			PreviewParser parser = createPreviewParser(g, lg, tokens, interpreterCache);
+			parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+			parser.setErrorHandler(new BailErrorStrategy());
+			parser.removeErrorListeners();
+			try {
+				ParseTree t = parser.parse(start.index);
+				return t!=null ? new ParsingResult(parser, t, syntaxErrorListener) : null;
+			}
+			catch (ParseCancellationException e) {
+				// SLL is too weak or there's a real syntax error; full LL will tell
+			}
+		}
+
+		tokens.seek(startIndex);
+		PreviewParser parser = createPreviewParser(g, lg, tokens, interpreterCache);
+		if ( diagnostic ) {
+			parser.getInterpreter().setPredictionMode(PredictionMode.LL_EXACT_AMBIG_DETECTION);
+			parser.setProfile(true);
+		}
+		else {
+			parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+		}
 
 		parser.removeErrorListeners();
 		parser.addErrorListener(syntaxErrorListener);
 
-		Rule start = g.getRule(startRuleName);
-		if ( start==null ) {
-			return null; // can't find start rule
-		}
 		ParseTree t = parser.parse(start.index);
 
 		if ( t!=null ) {
@@ -255,96 +383,39 @@ public class ParsingUtils {
 		return null;
 	}
 
-	public static Tool createANTLRToolForLoadingGrammars(ANTLRv4GrammarProperties grammarProperties) {
-		Tool antlr = new Tool();
-		antlr.errMgr = new PluginIgnoreMissingTokensFileErrorManager(antlr);
-		antlr.errMgr.setFormat("antlr");
-		LoadGrammarsToolListener listener = new LoadGrammarsToolListener(antlr);
-		antlr.removeListeners();
-		antlr.addListener(listener);
-		antlr.libDirectory = grammarProperties.getLibDir();
-		return antlr;
+	private static PreviewParser createPreviewParser(Grammar g, LexerGrammar lg, TokenStream tokens,
+													 @Nullable PreviewInterpreterCache interpreterCache) {
+		return interpreterCache!=null && interpreterCache.isFor(g, lg) ?
+			interpreterCache.createParser(tokens) :
+			new PreviewParser(g, tokens);
 	}
 
 	/** Get lexer and parser grammars */
 	public static Grammar[] loadGrammars(VirtualFile grammarFile, Project project) {
-		ANTLRv4PluginController.LOG.info("loadGrammars "+grammarFile.getPath()+" "+project.getName());
-		Tool antlr = createANTLRToolForLoadingGrammars(getGrammarProperties(project, grammarFile));
-		LoadGrammarsToolListener listener = (LoadGrammarsToolListener)antlr.getListeners().get(0);
-
-		ConsoleView console = ANTLRv4PluginController.getInstance(project).getConsole();
-		Grammar g = loadGrammar(grammarFile, antlr);
-		if (g == null) {
-			reportBadGrammar(grammarFile, console);
-			return null;
-		}
-
-		// see if a lexer is hanging around somewhere; don't want implicit token defs to make us bail
-		LexerGrammar lg = null;
-		if ( g.getType()==ANTLRParser.PARSER ) {
-			lg = loadLexerGrammarFor(g, project);
-			if ( lg!=null ) {
-				g.importVocab(lg);
-			}
-			else {
-				lg = BAD_LEXER_GRAMMAR;
-			}
-		}
-
-		antlr.process(g, false);
-		if ( listener.grammarErrorMessages.size()!=0 ) {
-			String msg = Utils.join(listener.grammarErrorMessages.iterator(), "\n");
-			console.print(msg+"\n", ConsoleViewContentType.ERROR_OUTPUT);
-			return null; // upon error, bail
-		}
-
-		// Examine's Grammar AST constructed by v3 for a v4 grammar.
-		// Use ANTLR v3's ANTLRParser not ANTLRv4Parser from this plugin
-		switch ( g.getType() ) {
-			case ANTLRParser.PARSER :
-				ANTLRv4PluginController.LOG.info("loadGrammars parser "+g.name);
-				return new Grammar[] {lg, g};
-			case ANTLRParser.LEXER :
-				ANTLRv4PluginController.LOG.info("loadGrammars lexer "+g.name);
-				lg = (LexerGrammar)g;
-				return new Grammar[] {lg, null};
-			case ANTLRParser.COMBINED :
-				lg = g.getImplicitLexer();
-				if ( lg==null ) {
-					lg = BAD_LEXER_GRAMMAR;
-				}
-				ANTLRv4PluginController.LOG.info("loadGrammars combined: "+lg.name+", "+g.name);
-				return new Grammar[] {lg, g};
-		}
-		ANTLRv4PluginController.LOG.info("loadGrammars invalid grammar type "+g.getTypeString()+" for "+g.name);
-		return null;
-	}
-
-	private static void reportBadGrammar(VirtualFile grammarFile, ConsoleView console) {
-		String msg = "Empty or bad grammar in file "+grammarFile.getName();
-		console.print(msg+"\n", ConsoleViewContentType.ERROR_OUTPUT);
+		return loadGrammars(grammarFile, project, true);
 	}
 
-	@Nullable
-	private static Grammar loadGrammar(VirtualFile grammarFile, Tool antlr) {
-		// basically here I am mimicking the loadGrammar() method from Tool
-		// so that I can check for an empty AST coming back.
-		GrammarRootAST grammarRootAST = parseGrammar(antlr, grammarFile);
-		if ( grammarRootAST==null ) {
-			return null;
+	/** Get lexer and parser grammars, from the analysis of grammarFile shared
+	 *  with the annotator (see {@link GrammarAnalysisService}); null if they
+	 *  have errors. Errors only go to the tool output console if reportErrors.
+	 */
+	public static Grammar[] loadGrammars(VirtualFile grammarFile, Project project, boolean reportErrors) {
+		GrammarAnalysis analysis = GrammarAnalysisService.getInstance(project).analyze(grammarFile);
+		if ( reportErrors && !analysis.getErrorMessages().isEmpty() ) {
+			String msg = Utils.join(analysis.getErrorMessages().iterator(), "\n");
+			ConsoleView console = ANTLRv4PluginController.getInstance(project).getConsole();
+			console.print(msg+"\n", ConsoleViewContentType.ERROR_OUTPUT);
 		}
-
-		// Create a grammar from the AST so we can figure out what type it is
-		Grammar g = antlr.createGrammar(grammarRootAST);
-		g.fileName = grammarFile.getPath();
-
-		return g;
+		return analysis.getGrammars();
 	}
 
 	public static GrammarRootAST parseGrammar(Tool antlr, VirtualFile grammarFile) {
 		try {
-			Document document = FileDocumentManager.getInstance().getDocument(grammarFile);
-			String grammarText = document != null ? document.getText() : new String(grammarFile.contentsToByteArray());
+			// grammars may be loaded in the background; only hold the read lock while getting the text
+			String grammarText = ReadAction.compute(() -> {
+				Document document = FileDocumentManager.getInstance().getDocument(grammarFile);
+				return document != null ? document.getText() : VfsUtilCore.loadText(grammarFile);
+			});
 
 			ANTLRStringStream in = new ANTLRStringStream(grammarText);
 			in.name = grammarFile.getPath();
@@ -356,57 +427,6 @@ public class ParsingUtils {
 		return null;
 	}
 
-	/** Try to load a LexerGrammar given a parser grammar g. Derive lexer name
-	 *  as:
-	 *  	V given tokenVocab=V in grammar or
-	 *   	XLexer given XParser.g4 filename or
-	 *     	XLexer given grammar name X
-	 */
-	public static LexerGrammar loadLexerGrammarFor(Grammar g, Project project) {
-		Tool antlr = createANTLRToolForLoadingGrammars(getGrammarProperties(project, g.fileName));
-		LoadGrammarsToolListener listener = (LoadGrammarsToolListener)antlr.getListeners().get(0);
-		LexerGrammar lg = null;
-		VirtualFile lexerGrammarFile;
-
-		String vocabName = g.getOptionString("tokenVocab");
-		if ( vocabName!=null ) {
-			VirtualFile grammarFile = LocalFileSystem.getInstance().findFileByIoFile(new File(g.fileName));
-			lexerGrammarFile = VfsUtil.findRelativeFile(grammarFile == null ? null : grammarFile.getParent(), vocabName + ".g4");
-		}
-		else {
-			lexerGrammarFile = LocalFileSystem.getInstance().findFileByIoFile(new File(getLexerNameFromParserFileName(g.fileName)));
-		}
-
-		if ( lexerGrammarFile != null && lexerGrammarFile.exists() ) {
-			ConsoleView console = ANTLRv4PluginController.getInstance(project).getConsole();
-
-			try {
-				lg = (LexerGrammar) loadGrammar(lexerGrammarFile, antlr);
-				if ( lg!=null ) {
-					antlr.process(lg, false);
-				} else {
-					reportBadGrammar(lexerGrammarFile, console);
-				}
-			}
-			catch (ClassCastException cce) {
-				ANTLRv4PluginController.LOG.error("File "+lexerGrammarFile+" isn't a lexer grammar", cce);
-			}
-			catch (Exception e) {
-				String msg = null;
-				if ( listener.grammarErrorMessages.size()!=0 ) {
-					msg = ": "+listener.grammarErrorMessages.toString();
-				}
-				ANTLRv4PluginController.LOG.error("File "+lexerGrammarFile+" couldn't be parsed as a lexer grammar"+msg, e);
-			}
-			if ( listener.grammarErrorMessages.size()!=0 ) {
-				lg = null;
-				String msg = Utils.join(listener.grammarErrorMessages.iterator(), "\n");
-				console.print(msg+"\n", ConsoleViewContentType.ERROR_OUTPUT);
-			}
-		}
-		return lg;
-	}
-
 	@NotNull
 	public static String getLexerNameFromParserFileName(String parserFileName) {
 		String lexerGrammarFileName;
@@ -0,0 +1,103 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.LexerInterpreter;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.atn.*;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.LexerGrammar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Everything the preview interpreters can reuse from one parse to the next
+ *  for a given pair of Grammar objects: the deserialized ATNs, the DFA for
+ *  each decision and the prediction context caches. Without it, every
+ *  keystroke in the preview editor serializes and deserializes both ATNs and
+ *  starts over with cold DFAs, paying full ATN simulation each time.
+ *
+ *  An instance is only valid for the Grammar/LexerGrammar objects it was
+ *  created for; the controller creates a new one whenever it installs new
+ *  grammars in a {@link org.antlr.intellij.plugin.preview.PreviewState}.
+ */
+public class PreviewInterpreterCache {
+	public final Grammar g;
+	public final LexerGrammar lg;
+
+	private ATN parserATN;
+	private DFA[] parserDecisionToDFA;
+	private final PredictionContextCache parserContextCache = new PredictionContextCache();
+
+	private ATN lexerATN;
+	private DFA[] lexerDecisionToDFA;
+	private final PredictionContextCache lexerContextCache = new PredictionContextCache();
+
+	public PreviewInterpreterCache(Grammar g, LexerGrammar lg) {
+		this.g = g;
+		this.lg = lg;
+	}
+
+	public boolean isFor(Grammar g, LexerGrammar lg) {
+		return this.g==g && this.lg==lg;
+	}
+
+	/** Same as {@link LexerGrammar#createLexerInterpreter(CharStream)} but
+	 *  shares the ATN and DFA with all previous lexers created by this cache.
+	 */
+	public LexerInterpreter createLexerInterpreter(CharStream input) {
+		ATN atn = getLexerATN();
+		List<String> channelNames = new ArrayList<>();
+		channelNames.add("DEFAULT_TOKEN_CHANNEL");
+		channelNames.add("HIDDEN");
+		channelNames.addAll(lg.channelValueToNameList);
+		LexerInterpreter lexer = new LexerInterpreter(lg.fileName, lg.getVocabulary(),
+													  Arrays.asList(lg.getRuleNames()),
+													  channelNames, lg.modes.keySet(),
+													  atn, input);
+		lexer.setInterpreter(new LexerATNSimulator(lexer, atn, lexerDecisionToDFA, lexerContextCache));
+		return lexer;
+	}
+
+	/** Create a parser whose prediction starts from the DFA states computed
+	 *  during previous parses of this grammar.
+	 */
+	public PreviewParser createParser(TokenStream tokens) {
+		ATN atn = getParserATN();
+		PreviewParser parser = new PreviewParser(g, atn, tokens);
+		parser.setInterpreter(new ParserATNSimulator(parser, atn, parserDecisionToDFA, parserContextCache));
+		return parser;
+	}
+
+	private synchronized ATN getParserATN() {
+		if ( parserATN==null ) {
+			parserATN = deserialize(g.getATN());
+			parserDecisionToDFA = createDecisionToDFA(parserATN);
+		}
+		return parserATN;
+	}
+
+	private synchronized ATN getLexerATN() {
+		if ( lexerATN==null ) {
+			lexerATN = deserialize(lg.getATN());
+			lexerDecisionToDFA = createDecisionToDFA(lexerATN);
+		}
+		return lexerATN;
+	}
+
+	/** The interpreters get their own copy of the ATN so they never
+	 *  touch the one owned by the tool's Grammar object.
+	 */
+	private static ATN deserialize(ATN atn) {
+		return new ATNDeserializer().deserialize(ATNSerializer.getSerialized(atn).toArray());
+	}
+
+	private static DFA[] createDecisionToDFA(ATN atn) {
+		DFA[] decisionToDFA = new DFA[atn.getNumberOfDecisions()];
+		for (int i = 0; i<decisionToDFA.length; i++) {
+			decisionToDFA[i] = new DFA(atn.getDecisionState(i), i);
+		}
+		return decisionToDFA;
+	}
+}
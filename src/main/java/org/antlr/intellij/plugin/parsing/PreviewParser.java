@@ -6,19 +6,19 @@ import org.antlr.v4.runtime.atn.*;
 import org.antlr.v4.tool.Grammar;
 import org.antlr.v4.tool.GrammarParserInterpreter;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class PreviewParser extends GrammarParserInterpreter {
 	/** Map each preview editor token to the grammar ATN state used to match it.
 	 *  Saves us having to create special token subclass and token factory.
 	 */
-	public Map<Token, Integer> inputTokenToStateMap = new HashMap<>();
+	public TokenToATNStateTable inputTokenToStateMap = new TokenToATNStateTable();
 
 	private final LexerWatchdog lexerWatchdog;
 
 	protected int lastSuccessfulMatchState = ATNState.INVALID_STATE_NUMBER; // not sure about error nodes
 
+	/** Set while an {@link IncrementalParser} records or resumes this parse */
+	IncrementalParser.Session incrementalSession;
+
 	public PreviewParser(Grammar g, ATN atn, TokenStream input) {
 		super(g, atn, input);
 		lexerWatchdog = new LexerWatchdog(input, this);
@@ -35,6 +35,46 @@ public class PreviewParser extends GrammarParserInterpreter {
 		lastSuccessfulMatchState = ATNState.INVALID_STATE_NUMBER;
 	}
 
+	/** Continue parsing the start rule from ATN state stateNumber at the
+	 *  current input position, root being the context of the start rule with
+	 *  the children it had at that point. Same loop as {@link #parse(int)},
+	 *  which can't start anywhere but at the beginning of the rule; left
+	 *  recursive start rules are not supported.
+	 */
+	public ParserRuleContext resume(InterpreterRuleContext root, int stateNumber) {
+		rootContext = root;
+		_ctx = root;
+		setState(stateNumber);
+		while ( true ) {
+			ATNState p = getATNState();
+			if ( p.getStateType()==ATNState.RULE_STOP ) {
+				if ( _ctx.isEmpty() ) {
+					exitRule();
+					return rootContext;
+				}
+				visitRuleStopState(p);
+				continue;
+			}
+			try {
+				visitState(p);
+			}
+			catch (RecognitionException e) {
+				setState(atn.ruleToStopState[p.ruleIndex].stateNumber);
+				getContext().exception = e;
+				getErrorHandler().reportError(this, e);
+				recover(e);
+			}
+		}
+	}
+
+	@Override
+	protected void visitState(ATNState p) {
+		if ( incrementalSession!=null && _ctx==rootContext ) {
+			incrementalSession.visitingTopLevelState(p);
+		}
+		super.visitState(p);
+	}
+
 	@Override
 	protected InterpreterRuleContext createInterpreterRuleContext(ParserRuleContext parent, int invokingStateNumber, int ruleIndex) {
 		return new PreviewInterpreterRuleContext(parent, invokingStateNumber, ruleIndex);
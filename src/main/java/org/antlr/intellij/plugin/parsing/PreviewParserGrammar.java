@@ -0,0 +1,78 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.v4.Tool;
+import org.antlr.v4.parse.ANTLRParser;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.GrammarTransformPipeline;
+import org.antlr.v4.tool.LexerGrammar;
+import org.antlr.v4.tool.ast.GrammarRootAST;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+
+/** A parser grammar that takes its token types from the lexer grammar
+ *  given to {@link #importVocab} rather than from the .tokens file named by
+ *  its tokenVocab option. That file is only written by code generation, so
+ *  while the lexer is being edited it is stale or missing; the lexer Grammar
+ *  loaded along with the parser is always current. Without a lexer, the
+ *  .tokens file is read as usual, or taken from a {@link TokensFileCache}.
+ */
+public class PreviewParserGrammar extends Grammar {
+	private boolean lexerVocabImported;
+	private final TokensFileCache tokensFiles;
+
+	public PreviewParserGrammar(Tool tool, GrammarRootAST ast) {
+		this(tool, ast, null);
+	}
+
+	public PreviewParserGrammar(Tool tool, GrammarRootAST ast, @Nullable TokensFileCache tokensFiles) {
+		super(tool, ast);
+		this.tokensFiles = tokensFiles;
+	}
+
+	/** Like {@link Tool#createGrammar} but parser grammars are {@link PreviewParserGrammar}s */
+	public static Grammar create(Tool tool, GrammarRootAST ast) {
+		return create(tool, ast, null);
+	}
+
+	/** Like {@link #create(Tool, GrammarRootAST)}, parser grammars getting
+	 *  the vocabulary of their .tokens file from tokensFiles if not null.
+	 */
+	public static Grammar create(Tool tool, GrammarRootAST ast, @Nullable TokensFileCache tokensFiles) {
+		if ( ast.grammarType!=ANTLRParser.PARSER ) {
+			return tool.createGrammar(ast);
+		}
+		Grammar g = new PreviewParserGrammar(tool, ast, tokensFiles);
+		GrammarTransformPipeline.setGrammarPtr(g, ast);
+		return g;
+	}
+
+	@Override
+	public void importVocab(Grammar importG) {
+		super.importVocab(importG);
+		if ( importG instanceof LexerGrammar ) {
+			lexerVocabImported = true;
+		}
+	}
+
+	@Override
+	public void importTokensFromTokensFile() {
+		if ( lexerVocabImported ) {
+			return;
+		}
+		if ( tokensFiles==null || getOptionString("tokenVocab")==null ) {
+			super.importTokensFromTokensFile();
+			return;
+		}
+		// like super but with a vocabulary read once for all the grammars using it
+		Map<String, Integer> tokens = tokensFiles.load(this);
+		for (Map.Entry<String, Integer> t : tokens.entrySet()) {
+			if ( t.getKey().charAt(0)=='\'' ) {
+				defineStringLiteral(t.getKey(), t.getValue());
+			}
+			else {
+				defineTokenName(t.getKey(), t.getValue());
+			}
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package org.antlr.intellij.plugin.parsing;
+
+/**
+ * How the ANTLR Preview window parses the input.
+ *
+ * @see ParsingOptions#mode
+ */
+public enum PreviewParsingMode {
+	/** Full LL with exact ambiguity detection and profiling, every time */
+	DIAGNOSTIC {
+		@Override
+		public String toString() {
+			return "Full LL with ambiguity detection and profiling";
+		}
+	},
+	/** SLL without profiling, then LL only if SLL hits a syntax error.
+	 *  The diagnostic setup is used only when the Profiler tab is shown.
+	 */
+	FAST {
+		@Override
+		public String toString() {
+			return "Fast: SLL, then LL on syntax errors; profile only when needed";
+		}
+	},
+	/** Like {@link #FAST} but after an edit, only the top-level elements of
+	 *  the start rule around the edit are parsed again, see
+	 *  {@link IncrementalParser}. Parses with LL right away.
+	 */
+	INCREMENTAL {
+		@Override
+		public String toString() {
+			return "Incremental: re-parse only the top-level elements around an edit";
+		}
+	}
+}
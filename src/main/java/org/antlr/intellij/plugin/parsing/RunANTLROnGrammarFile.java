@@ -21,7 +21,6 @@ import org.antlr.intellij.plugin.ANTLRv4PluginController;
 import org.antlr.intellij.plugin.ANTLRv4TokenTypes;
 import org.antlr.intellij.plugin.configdialogs.ANTLRv4GrammarProperties;
 import org.antlr.intellij.plugin.parser.ANTLRv4Parser;
-import org.antlr.intellij.plugin.preview.PreviewState;
 import org.antlr.intellij.plugin.psi.AtAction;
 import org.antlr.intellij.plugin.psi.GrammarSpecNode;
 import org.antlr.v4.Tool;
@@ -74,22 +73,12 @@ public class RunANTLROnGrammarFile extends Task.Modal {
 		indicator.setIndeterminate(true);
 		ANTLRv4GrammarProperties grammarProperties = getGrammarProperties(project, grammarFile);
 		boolean autogen = grammarProperties.shouldAutoGenerateParser();
+		// Nothing to write otherwise: the preview doesn't need a fresh .tokens file
+		// as parser grammars get the token types of their lexer in memory,
+		// see PreviewParserGrammar.
 		if ( forceGeneration || (autogen && isGrammarStale(grammarProperties)) ) {
 			antlr(grammarFile);
 		}
-		else {
-			ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
-			final PreviewState previewState = controller.getPreviewState(grammarFile);
-			// is lexer file? gen .tokens file no matter what as tokens might have changed;
-			// a parser that feeds off of that file will need to see the changes.
-			if ( previewState.g==null && previewState.lg!=null) {
-				Grammar g = previewState.lg;
-				String language = g.getOptionString(ANTLRv4GrammarProperties.PROP_LANGUAGE);
-				Tool tool = ParsingUtils.createANTLRToolForLoadingGrammars(getGrammarProperties(project, grammarFile));
-				CodeGenerator gen = CodeGenerator.create(tool, g, language);
-				gen.writeVocabFile();
-			}
-		}
 	}
 
 	// TODO: lots of duplication with antlr() function.
@@ -97,10 +86,8 @@ public class RunANTLROnGrammarFile extends Task.Modal {
 		String sourcePath = grammarProperties.resolveLibDir(project, getParentDir(grammarFile));
 		String fullyQualifiedInputFileName = sourcePath+File.separator+grammarFile.getName();
 
-		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
-		final PreviewState previewState = controller.getPreviewState(grammarFile);
-		Grammar g = previewState.getMainGrammar();
-		// Grammar should be updated in the preview state before calling this function
+		// the analysis of the saved grammar, shared with the annotator and the preview
+		Grammar g = GrammarAnalysisService.getInstance(project).analyze(grammarFile).getMainGrammar();
 		if ( g==null ) {
 			return false;
 		}
@@ -190,7 +177,6 @@ public class RunANTLROnGrammarFile extends Task.Modal {
 	private static Map<String,String> getANTLRArgs(Project project, VirtualFile vfile) {
 		Map<String,String> args = new HashMap<>();
 		ANTLRv4GrammarProperties grammarProperties = getGrammarProperties(project, vfile);
-		String sourcePath = getParentDir(vfile);
 
 		String package_ = grammarProperties.getPackage();
 		if ( isBlank(package_) && !hasPackageDeclarationInHeader(project, vfile)) {
@@ -210,12 +196,7 @@ public class RunANTLROnGrammarFile extends Task.Modal {
 		String outputDirName = grammarProperties.resolveOutputDirName(project, contentRoot, package_);
 		args.put("-o", outputDirName);
 
-		String libDir = grammarProperties.resolveLibDir(project, sourcePath);
-		File f = new File(libDir);
-		if ( !f.isAbsolute() ) { // if not absolute file spec, it's relative to project root
-			libDir = contentRoot.getPath()+File.separator+libDir;
-		}
-		args.put("-lib", libDir);
+		args.put("-lib", resolveLibDir(project, vfile, grammarProperties));
 
 		String encoding = grammarProperties.getEncoding();
 		if ( isNotBlank(encoding) ) {
@@ -238,6 +219,16 @@ public class RunANTLROnGrammarFile extends Task.Modal {
 		return args;
 	}
 
+	/** The directory to look for imported grammars and .tokens files in */
+	public static String resolveLibDir(Project project, VirtualFile vfile, ANTLRv4GrammarProperties grammarProperties) {
+		String libDir = grammarProperties.resolveLibDir(project, getParentDir(vfile));
+		File f = new File(libDir);
+		if ( !f.isAbsolute() ) { // if not absolute file spec, it's relative to project root
+			libDir = getContentRoot(project, vfile).getPath()+File.separator+libDir;
+		}
+		return libDir;
+	}
+
 	private static boolean hasPackageDeclarationInHeader(Project project, VirtualFile grammarFile) {
 		return ApplicationManager.getApplication().runReadAction((Computable<Boolean>) () -> {
 			PsiFile file = PsiManager.getInstance(project).findFile(grammarFile);
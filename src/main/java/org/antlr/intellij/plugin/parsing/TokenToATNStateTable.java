@@ -0,0 +1,53 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.v4.runtime.Token;
+
+import java.util.Arrays;
+
+/** Maps the tokens matched by a {@link PreviewParser} to the ATN state that
+ *  matched them, using a plain int array indexed by token index instead of a
+ *  map with boxed values. Tokens that aren't part of the token stream (those
+ *  conjured up during error recovery, for example) have no state.
+ */
+public class TokenToATNStateTable {
+	/** ATN state + 1 for each token index, 0 if none */
+	private int[] states = new int[256];
+
+	public void put(Token t, int atnState) {
+		int i = t.getTokenIndex();
+		if ( i<0 ) {
+			return;
+		}
+		if ( i>=states.length ) {
+			states = Arrays.copyOf(states, Math.max(i+1, states.length*2));
+		}
+		states[i] = atnState+1;
+	}
+
+	/** The ATN state that matched t or null if none */
+	public Integer get(Token t) {
+		int i = t.getTokenIndex();
+		if ( i<0 || i>=states.length || states[i]==0 ) {
+			return null;
+		}
+		return states[i]-1;
+	}
+
+	/** Copy the states of tokens from..to-1 of other, moving them by delta
+	 *  token indexes.
+	 */
+	public void putAll(TokenToATNStateTable other, int from, int to, int delta) {
+		to = Math.min(to, other.states.length);
+		if ( from>=to ) {
+			return;
+		}
+		if ( to+delta>states.length ) {
+			states = Arrays.copyOf(states, Math.max(to+delta, states.length*2));
+		}
+		System.arraycopy(other.states, from, states, from+delta, to-from);
+	}
+
+	public void clear() {
+		Arrays.fill(states, 0);
+	}
+}
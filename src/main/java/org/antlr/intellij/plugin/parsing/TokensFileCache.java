@@ -0,0 +1,104 @@
+package org.antlr.intellij.plugin.parsing;
+
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.antlr.v4.parse.TokenVocabParser;
+import org.antlr.v4.tool.Grammar;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/** Vocabularies read from .tokens files, shared by all the parser grammars
+ *  that import the same file through their tokenVocab option, see
+ *  {@link PreviewParserGrammar#importTokensFromTokensFile}. A file is read
+ *  again only once its VFS modification stamp changed, i.e. once the VFS
+ *  saw it change on disk.
+ *
+ *  Files unknown to the VFS are read every time, as ANTLR does, so that a
+ *  missing file is reported to each grammar needing it. So are files with
+ *  errors.
+ */
+public class TokensFileCache {
+	/** Modification stamp of a file, < 0 if the VFS doesn't know it */
+	private final ToLongFunction<File> stamps;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public TokensFileCache() {
+		this(TokensFileCache::getModificationStamp);
+	}
+
+	public TokensFileCache(ToLongFunction<File> stamps) {
+		this.stamps = stamps;
+	}
+
+	/** Token name or literal -> token type, like {@link TokenVocabParser#load}
+	 *  for grammar g returns them. Errors are reported to g's tool.
+	 */
+	public Map<String, Integer> load(Grammar g) {
+		TokenVocabParser parser = new TokenVocabParser(g);
+		File file = parser.getImportedVocabFile();
+		long stamp = stamps.applyAsLong(file); // before reading, so that a change while reading isn't missed
+		if ( stamp<0 ) {
+			return parser.load();
+		}
+		Entry entry = entries.get(file.getPath());
+		if ( entry!=null && entry.stamp==stamp ) {
+			hits.incrementAndGet();
+			return entry.tokens;
+		}
+		misses.incrementAndGet();
+		int errors = g.tool.getNumErrors();
+		Map<String, Integer> tokens = parser.load();
+		if ( g.tool.getNumErrors()==errors ) {
+			entries.put(file.getPath(), new Entry(stamp, Collections.unmodifiableMap(new LinkedHashMap<>(tokens))));
+		}
+		return tokens;
+	}
+
+	/** Drop the vocabulary of a .tokens file, e.g. when the VFS reports it changed or deleted */
+	public void remove(String tokensFileName) {
+		entries.remove(new File(tokensFileName).getPath());
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	private static long getModificationStamp(File file) {
+		VirtualFile vfile = LocalFileSystem.getInstance().findFileByIoFile(file);
+		if ( vfile==null || !vfile.exists() ) {
+			return -1;
+		}
+		return vfile.getModificationStamp();
+	}
+
+	private static class Entry {
+		final long stamp;
+		final Map<String, Integer> tokens;
+
+		Entry(long stamp, Map<String, Integer> tokens) {
+			this.stamp = stamp;
+			this.tokens = tokens;
+		}
+	}
+}
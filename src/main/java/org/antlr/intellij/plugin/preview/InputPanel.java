@@ -16,11 +16,16 @@ import com.intellij.openapi.editor.markup.*;
 import com.intellij.openapi.fileChooser.FileChooserDescriptor;
 import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.progress.impl.BackgroundableProcessIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.ComponentWithBrowseButton;
 import com.intellij.openapi.ui.TextComponentAccessor;
 import com.intellij.openapi.ui.TextFieldWithBrowseButton;
 import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.ui.JBColor;
@@ -29,6 +34,9 @@ import org.antlr.intellij.adaptor.parser.SyntaxError;
 import org.antlr.intellij.plugin.ANTLRv4PluginController;
 import org.antlr.intellij.plugin.Icons;
 import org.antlr.intellij.plugin.actions.MyActionUtils;
+import org.antlr.intellij.plugin.parsing.GrammarAnalysisService;
+import org.antlr.intellij.plugin.parsing.MappedFileCharStream;
+import org.antlr.intellij.plugin.parsing.ParsingResult;
 import org.antlr.intellij.plugin.parsing.ParsingUtils;
 import org.antlr.intellij.plugin.parsing.PreviewParser;
 import org.antlr.intellij.plugin.profiler.ProfilerPanel;
@@ -38,7 +46,6 @@ import org.antlr.v4.runtime.atn.*;
 import org.antlr.v4.runtime.misc.Interval;
 import org.antlr.v4.runtime.misc.Pair;
 import org.antlr.v4.runtime.misc.Utils;
-import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.TerminalNode;
 import org.antlr.v4.tool.Rule;
 import org.antlr.v4.tool.ast.GrammarAST;
@@ -46,6 +53,7 @@ import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -61,6 +69,12 @@ public class InputPanel {
 	private static final int ERROR_LAYER = HighlighterLayer.ERROR;
 	private static final String missingStartRuleLabelText = "%s start rule: <select from navigator or grammar>";
 	private static final String startRuleLabelText = "%s start rule: %s";
+	/** Input files bigger than this (in bytes) are memory-mapped instead of
+	 *  being loaded in a Document; only their first LARGE_INPUT_WINDOW_SIZE
+	 *  chars are shown.
+	 */
+	private static final long LARGE_INPUT_FILE_SIZE = 8*1024*1024;
+	private static final int LARGE_INPUT_WINDOW_SIZE = 64*1024;
 
 	private JRadioButton inputRadioButton;
 	private JRadioButton fileRadioButton;
@@ -79,6 +93,9 @@ public class InputPanel {
 	 */
 	private final Object swapEditorComponentLock = new Object();
 
+	/** Set while a large input file is mapped in the background, see {@link #loadLargeInputFile} */
+	private ProgressIndicator largeInputLoadingIndicator;
+
 	private final PreviewPanel previewPanel;
 
 	/**
@@ -145,6 +162,7 @@ public class InputPanel {
 
 	public void selectInputEvent() {
 		inputRadioButton.setSelected(true);
+		cancelInputLoading();
 		previewPanel.clearParseTree();
 		clearErrorConsole();
 
@@ -177,6 +195,7 @@ public class InputPanel {
 
 	public void selectFileEvent() {
 		fileRadioButton.setSelected(true);
+		cancelInputLoading();
 
 		if ( previewState==null ) {
 			return;
@@ -188,8 +207,14 @@ public class InputPanel {
 			return;
 		}
 
-		Document inputDocument = FileDocumentManager.getInstance().getDocument(inputFile);
+		if ( isLargeInputFile(inputFile) ) {
+			loadLargeInputFile(previewState, inputFile);
+			return;
+		}
+		showInputFile(inputFile, FileDocumentManager.getInstance().getDocument(inputFile), null);
+	}
 
+	private void showInputFile(VirtualFile inputFile, Document inputDocument, MappedFileCharStream largeInput) {
 		if (inputDocument == null) {
 			errorConsole.setText("Input file does not exist or cannot be loaded: " + inputFile.getPath());
 			return;
@@ -203,11 +228,96 @@ public class InputPanel {
 		Editor editor = createPreviewEditor(controller.getCurrentGrammarFile(), inputDocument, true);
 		setEditorComponent(editor.getComponent()); // do before setting state
 		previewState.setInputEditor(editor);
+		if ( largeInput!=null ) {
+			previewState.largeInput = largeInput;
+			editor.setHeaderComponent(new JLabel(String.format(
+				" Showing the first %d of %d chars; the whole file is parsed", Math.min(LARGE_INPUT_WINDOW_SIZE, largeInput.size()), largeInput.size())));
+		}
 		clearErrorConsole();
 
 		previewPanel.updateParseTreeFromDoc(controller.getCurrentGrammarFile());
 	}
 
+	private static boolean isLargeInputFile(VirtualFile inputFile) {
+		return inputFile.getLength()>LARGE_INPUT_FILE_SIZE && inputFile.isInLocalFileSystem() &&
+			MappedFileCharStream.isSupported(inputFile.getCharset());
+	}
+
+	/** Map and scan a large input file in the background, which takes a
+	 *  while for a UTF-8 file of a few hundred MB, then show it. Meanwhile
+	 *  the editor spot says the input is loading.
+	 */
+	private void loadLargeInputFile(final PreviewState previewState, final VirtualFile inputFile) {
+		releaseEditor(previewState);
+		previewPanel.clearParseTree();
+		clearErrorConsole();
+		setEditorComponent(new JLabel("Loading " + inputFile.getPath() + "...", SwingConstants.CENTER));
+
+		Task.Backgroundable task = new Task.Backgroundable(previewPanel.project, "Loading preview input " + inputFile.getName(), true) {
+			private MappedFileCharStream largeInput;
+			private String window;
+
+			@Override
+			public void run(@NotNull ProgressIndicator indicator) {
+				indicator.setIndeterminate(false);
+				largeInput = mapLargeInputFile(inputFile, indicator);
+				if ( largeInput!=null ) {
+					window = largeInput.getText(Interval.of(0, LARGE_INPUT_WINDOW_SIZE-1));
+				}
+			}
+
+			@Override
+			public void onSuccess() {
+				if ( !isStillSelected() ) {
+					return;
+				}
+				Document inputDocument;
+				if ( largeInput!=null ) {
+					inputDocument = EditorFactory.getInstance().createDocument(window);
+					inputDocument.setReadOnly(true);
+				}
+				else {
+					inputDocument = FileDocumentManager.getInstance().getDocument(inputFile);
+				}
+				showInputFile(inputFile, inputDocument, largeInput);
+			}
+
+			@Override
+			public void onCancel() {
+				if ( isStillSelected() ) {
+					setEditorComponent(placeHolder);
+					errorConsole.setText("Loading of " + inputFile.getPath() + " was cancelled");
+				}
+			}
+
+			/** Whether the input file is still the one to show */
+			private boolean isStillSelected() {
+				return InputPanel.this.previewState==previewState && previewState.inputFile==inputFile &&
+					fileRadioButton.isSelected();
+			}
+		};
+		largeInputLoadingIndicator = new BackgroundableProcessIndicator(task);
+		ProgressManager.getInstance().runProcessWithProgressAsynchronously(task, largeInputLoadingIndicator);
+	}
+
+	private void cancelInputLoading() {
+		if ( largeInputLoadingIndicator!=null ) {
+			largeInputLoadingIndicator.cancel();
+			largeInputLoadingIndicator = null;
+		}
+	}
+
+	/** Returns null if inputFile can't be mapped */
+	private static MappedFileCharStream mapLargeInputFile(VirtualFile inputFile, ProgressIndicator indicator) {
+		try {
+			return MappedFileCharStream.open(VfsUtilCore.virtualToIoFile(inputFile), inputFile.getCharset(), indicator);
+		}
+		catch (IOException e) {
+			LOG.warn("can't map "+inputFile.getPath()+", loading it in a document instead", e);
+			return null;
+		}
+	}
+
 	public Editor createPreviewEditor(final VirtualFile grammarFile, Document doc, boolean readOnly) {
 		LOG.info("createEditor: create new editor for "+grammarFile.getPath()+" "+previewPanel.project.getName());
 		final EditorFactory factory = EditorFactory.getInstance();
@@ -215,7 +325,14 @@ public class InputPanel {
 			new DocumentAdapter() {
 				@Override
 				public void documentChanged(DocumentEvent event) {
-					previewPanel.updateParseTreeFromDoc(grammarFile);
+					ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(previewPanel.project);
+					PreviewState previewState = controller.getPreviewState(grammarFile);
+					Editor inputEditor = previewState.getInputEditor();
+					if ( inputEditor==null || inputEditor.getDocument()==event.getDocument() ) {
+						previewState.incrementalLexer.inputChanged(event.getOffset(), event.getOldLength(), event.getNewLength());
+					}
+					// typing fast shouldn't start a parse per keystroke
+					controller.getParsingScheduler().inputChanged(() -> previewPanel.updateParseTreeFromDoc(grammarFile));
 				}
 			}
 		);
@@ -252,8 +369,9 @@ public class InputPanel {
 
 		clearParseErrors();
 
-		if ( previewState.startRuleName!=null ) {
-			setStartRuleName(grammarFile, previewState.startRuleName);
+		String startRuleName = previewState.getSnapshot().startRuleName;
+		if ( startRuleName!=null ) {
+			setStartRuleName(grammarFile, startRuleName);
 		}
 		else {
 			resetStartRuleLabel();
@@ -409,9 +527,13 @@ public class InputPanel {
 	 * Show token information if the ctrl-key is down and mouse movement occurs
 	 */
 	public void showTokenInfoUponCtrlKey(Editor editor, PreviewState previewState, int offset) {
+		PreviewState.Snapshot snapshot = previewState.getSnapshot();
+		if ( snapshot.parsingResult==null ) {
+			return;
+		}
 		Token tokenUnderCursor = ParsingUtils.getTokenUnderCursor(previewState, offset);
 		if ( tokenUnderCursor==null ) {
-			PreviewParser parser = (PreviewParser) previewState.parsingResult.parser;
+			PreviewParser parser = (PreviewParser) snapshot.parsingResult.parser;
 			CommonTokenStream tokenStream = (CommonTokenStream) parser.getInputStream();
 			tokenUnderCursor = ParsingUtils.getSkippedTokenUnderCursor(tokenStream, offset);
 		}
@@ -430,7 +552,7 @@ public class InputPanel {
 		String tokenInfo =
 			String.format("#%d Type %s, Line %d:%d%s",
 			              tokenUnderCursor.getTokenIndex(),
-			              previewState.g.getTokenDisplayName(tokenUnderCursor.getType()),
+			              snapshot.g.getTokenDisplayName(tokenUnderCursor.getType()),
 			              tokenUnderCursor.getLine(),
 			              tokenUnderCursor.getCharPositionInLine(),
 			              channelInfo
@@ -451,20 +573,14 @@ public class InputPanel {
 	 * if the alt-key is down and mouse movement occurs.
 	 */
 	public void showParseRegion(Editor editor, PreviewState previewState, int offset) {
-		Token tokenUnderCursor = ParsingUtils.getTokenUnderCursor(previewState, offset);
-		if ( tokenUnderCursor==null ) {
-			return;
-		}
-
-		ParseTree tree = previewState.parsingResult.tree;
-		TerminalNode nodeWithToken =
-			(TerminalNode) ParsingUtils.getParseTreeNodeWithToken(tree, tokenUnderCursor);
+		ParsingResult parsingResult = previewState.getSnapshot().parsingResult;
+		TerminalNode nodeWithToken = ParsingUtils.getTerminalNodeUnderCursor(parsingResult, offset);
 		if ( nodeWithToken==null ) {
-			// hidden token
+			// no parse, no token or hidden token
 			return;
 		}
 
-		PreviewParser parser = (PreviewParser) previewState.parsingResult.parser;
+		PreviewParser parser = (PreviewParser) parsingResult.parser;
 		CommonTokenStream tokenStream = (CommonTokenStream) parser.getInputStream();
 		ParserRuleContext parent = (ParserRuleContext) nodeWithToken.getParent();
 		Interval tokenInterval = parent.getSourceInterval();
@@ -533,45 +649,47 @@ public class InputPanel {
 	}
 
 	public void setCursorToGrammarElement(Project project, PreviewState previewState, int offset) {
+		PreviewState.Snapshot snapshot = previewState.getSnapshot();
 		Token tokenUnderCursor = ParsingUtils.getTokenUnderCursor(previewState, offset);
-		if ( tokenUnderCursor==null ) {
+		if ( snapshot.parsingResult==null || tokenUnderCursor==null ) {
 			return;
 		}
 
-		PreviewParser parser = (PreviewParser) previewState.parsingResult.parser;
+		PreviewParser parser = (PreviewParser) snapshot.parsingResult.parser;
 		Integer atnState = parser.inputTokenToStateMap.get(tokenUnderCursor);
 		if ( atnState==null ) { // likely an error token
 			//LOG.error("no ATN state for input token " + tokenUnderCursor);
 			return;
 		}
 
-		Interval region = previewState.g.getStateToGrammarRegion(atnState);
-		CommonToken token =
-			(CommonToken) previewState.g.tokenStream.get(region.a);
+		Interval region = snapshot.g.getStateToGrammarRegion(atnState);
+		CommonToken token = (CommonToken) GrammarAnalysisService.getInstance(project)
+			.getGrammarToken(previewState.grammarFile, snapshot.g, region.a);
+		if ( token==null ) {
+			return;
+		}
 		jumpToGrammarPosition(project, token.getStartIndex());
 	}
 
 	public void setCursorToGrammarRule(Project project, PreviewState previewState, int offset) {
-		Token tokenUnderCursor = ParsingUtils.getTokenUnderCursor(previewState, offset);
-		if ( tokenUnderCursor==null ) {
-			return;
-		}
-
-		ParseTree tree = previewState.parsingResult.tree;
-		TerminalNode nodeWithToken =
-			(TerminalNode) ParsingUtils.getParseTreeNodeWithToken(tree, tokenUnderCursor);
+		PreviewState.Snapshot snapshot = previewState.getSnapshot();
+		TerminalNode nodeWithToken = ParsingUtils.getTerminalNodeUnderCursor(snapshot.parsingResult, offset);
 		if ( nodeWithToken==null ) {
-			// hidden token
+			// no parse, no token or hidden token
 			return;
 		}
 
 		ParserRuleContext parent = (ParserRuleContext) nodeWithToken.getParent();
 		int ruleIndex = parent.getRuleIndex();
-		Rule rule = previewState.g.getRule(ruleIndex);
+		Rule rule = snapshot.g.getRule(ruleIndex);
 		GrammarAST ruleNameNode = (GrammarAST) rule.ast.getChild(0);
-		int start = ((CommonToken) ruleNameNode.getToken()).getStartIndex();
+		CommonToken token = (CommonToken) GrammarAnalysisService.getInstance(project)
+			.getGrammarToken(previewState.grammarFile, snapshot.g, ruleNameNode.getToken().getTokenIndex());
+		if ( token==null ) {
+			return;
+		}
 
-		jumpToGrammarPosition(project, start);
+		jumpToGrammarPosition(project, token.getStartIndex());
 	}
 
 	public void jumpToGrammarPosition(Project project, int start) {
@@ -595,7 +713,7 @@ public class InputPanel {
 	 * Display syntax errors, hints in tooltips if under the cursor
 	 */
 	public static void showTooltips(Editor editor, @NotNull PreviewState previewState, int offset) {
-		if ( previewState.parsingResult==null ) return; // no results?
+		if ( previewState.getSnapshot().parsingResult==null ) return; // no results?
 
 		// Turn off any tooltips if none under the cursor
 		// find the highlighter associated with this offset
@@ -692,6 +810,9 @@ public class InputPanel {
 			a = offendingToken.getStartIndex();
 			b = offendingToken.getStopIndex()+1;
 		}
+		if ( b>editor.getDocument().getTextLength() ) {
+			return; // beyond the part of a large input file that's shown; still in the console
+		}
 		final TextAttributes attr = new TextAttributes();
 		attr.setForegroundColor(JBColor.RED);
 		attr.setEffectColor(JBColor.RED);
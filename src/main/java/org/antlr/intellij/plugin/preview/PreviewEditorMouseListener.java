@@ -57,7 +57,7 @@ class PreviewEditorMouseListener implements EditorMouseListener, EditorMouseMoti
 
 	public void rightClick(final PreviewState previewState, Editor editor, int offset)
 	{
-		if (previewState.parsingResult == null) return;
+		if (previewState.getSnapshot().parsingResult == null) return;
 		final List<RangeHighlighter> highlightersAtOffset = MyActionUtils.getRangeHighlightersAtOffset(editor, offset);
 		if (highlightersAtOffset.size() == 0) {
 			return;
@@ -91,10 +91,11 @@ class PreviewEditorMouseListener implements EditorMouseListener, EditorMouseMoti
 
 		MouseEvent mouseEvent=e.getMouseEvent();
 		InputPanel.clearTokenInfoHighlighters(e.getEditor());
-		if ( mouseEvent.isControlDown() && inputPanel.previewState.parsingResult!=null ) {
+		boolean parsed = inputPanel.previewState.getSnapshot().parsingResult!=null;
+		if ( mouseEvent.isControlDown() && parsed ) {
 			inputPanel.showTokenInfoUponCtrlKey(editor, inputPanel.previewState, offset);
 		}
-		else if ( mouseEvent.isAltDown() && inputPanel.previewState.parsingResult!=null ) {
+		else if ( mouseEvent.isAltDown() && parsed ) {
 			inputPanel.showParseRegion(editor, inputPanel.previewState, offset);
 		}
 		else { // just moving around, show any errors or hints
@@ -17,7 +17,9 @@ import com.intellij.ui.JBColor;
 import com.intellij.ui.components.JBScrollPane;
 import com.intellij.ui.components.JBTabbedPane;
 import org.antlr.intellij.plugin.ANTLRv4PluginController;
+import org.antlr.intellij.plugin.parsing.GrammarAnalysisService;
 import org.antlr.intellij.plugin.parsing.ParsingResult;
+import org.antlr.intellij.plugin.parsing.ParsingResultCache;
 import org.antlr.intellij.plugin.parsing.ParsingUtils;
 import org.antlr.intellij.plugin.parsing.PreviewParser;
 import org.antlr.intellij.plugin.profiler.ProfilerPanel;
@@ -29,7 +31,6 @@ import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.TerminalNode;
 import org.antlr.v4.runtime.tree.TerminalNodeImpl;
 import org.antlr.v4.runtime.tree.Tree;
-import org.antlr.v4.tool.Rule;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -39,6 +40,10 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.intellij.icons.AllIcons.Actions.Find;
 import static com.intellij.icons.AllIcons.General.AutoscrollFromSource;
@@ -67,6 +72,7 @@ public class PreviewPanel extends JPanel implements ParsingResultSelectionListen
 	public HierarchyViewer hierarchyViewer;
 
 	public ProfilerPanel profilerPanel;
+	private JTabbedPane tabbedPane;
 	private TokenStreamViewer tokenStreamViewer;
 
 	/**
@@ -82,6 +88,14 @@ public class PreviewPanel extends JPanel implements ParsingResultSelectionListen
 	private ActionToolbar buttonBar;
 	private final CancelParserAction cancelParserAction = new CancelParserAction();
 
+	/** Grammar file -> revision it had when the preview was last refreshed
+	 *  with it, see {@link GrammarAnalysisService#getRevision}.
+	 */
+	private final Map<String, ParsingResultCache.Key> refreshedRevisions = new ConcurrentHashMap<>();
+	/** Grammar files with an automatic refresh scheduled but not run yet */
+	private final Set<String> pendingRefreshes = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger skippedRefreshCount = new AtomicInteger();
+
 	public PreviewPanel(Project project) {
 		this.project = project;
 		createGUI();
@@ -191,7 +205,7 @@ public class PreviewPanel extends JPanel implements ParsingResultSelectionListen
 	}
 
 	private JTabbedPane createParseTreeAndProfileTabbedPanel() {
-		JBTabbedPane tabbedPane = new JBTabbedPane();
+		tabbedPane = new JBTabbedPane();
 
 		LOG.info("createParseTreePanel" + " " + project.getName());
 		Pair<UberTreeViewer, JPanel> pair = createParseTreePanel();
@@ -205,6 +219,11 @@ public class PreviewPanel extends JPanel implements ParsingResultSelectionListen
 
 		profilerPanel = new ProfilerPanel(project, this);
 		tabbedPane.addTab("Profiler", profilerPanel.getComponent());
+		tabbedPane.addChangeListener(e -> {
+			if ( isProfilerTabSelected() ) {
+				reparseIfProfilingDataIsMissing();
+			}
+		});
 
 		tokenStreamViewer = new TokenStreamViewer();
 		tokenStreamViewer.addParsingResultSelectionListener(this);
@@ -273,12 +292,21 @@ public class PreviewPanel extends JPanel implements ParsingResultSelectionListen
 		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
 		PreviewState previewState = controller.getPreviewState(grammarFile);
 
+		ParsingResultCache.Key revision = GrammarAnalysisService.getInstance(project).getRevision(grammarFile);
+		if ( revision!=null ) {
+			refreshedRevisions.put(grammarFileName, revision);
+		}
+		else {
+			refreshedRevisions.remove(grammarFileName);
+		}
+
 		ensureStartRuleExists(grammarFile);
 		inputPanel.grammarFileSaved();
 
 		// if the saved grammar is not a pure lexer and there is a start rule, reparse
 		// means that switching grammars must refresh preview
-		if ( previewState.g!=null && previewState.startRuleName!=null ) {
+		PreviewState.Snapshot snapshot = previewState.getSnapshot();
+		if ( snapshot.g!=null && snapshot.startRuleName!=null ) {
 			updateParseTreeFromDoc(previewState.grammarFile);
 		}
 		else {
@@ -291,18 +319,26 @@ public class PreviewPanel extends JPanel implements ParsingResultSelectionListen
 	private void ensureStartRuleExists(VirtualFile grammarFile) {
 		PreviewState previewState = ANTLRv4PluginController.getInstance(project).getPreviewState(grammarFile);
 		// if start rule no longer exists, reset display/state.
-		if ( previewState.g!=null &&
-			 previewState.g!=ParsingUtils.BAD_PARSER_GRAMMAR &&
-			 previewState.startRuleName!=null )
-		{
-			Rule rule = previewState.g.getRule(previewState.startRuleName);
-			if ( rule==null ) {
-				previewState.startRuleName = null;
-				inputPanel.resetStartRuleLabel();
+		PreviewState.Snapshot previous = previewState.updateSnapshot(s -> {
+			if ( s.g!=null && !ParsingUtils.isBadGrammar(s.g) && s.startRuleName!=null && s.g.getRule(s.startRuleName)==null ) {
+				return s.withStartRuleName(null);
 			}
+			return s;
+		});
+		if ( previous.startRuleName!=null && previewState.getSnapshot().startRuleName==null ) {
+			inputPanel.resetStartRuleLabel();
 		}
 	}
 
+	/** Shown while the controller loads the grammar objects of grammarFile
+	 *  in the background, until {@link #grammarFileChanged} is called.
+	 */
+	public void grammarLoading(VirtualFile grammarFile) {
+		LOG.info("grammarLoading "+grammarFile.getPath()+" "+project.getName());
+		showError("Loading grammar "+grammarFile.getName()+"...");
+		setEnabled(false);
+	}
+
 	/** Notify the preview tool window contents that the grammar file has changed */
 	public void grammarFileChanged(VirtualFile newFile) {
 		switchToGrammar(newFile);
@@ -318,14 +354,15 @@ public class PreviewPanel extends JPanel implements ParsingResultSelectionListen
 		inputPanel.switchToGrammar(previewState, grammarFile);
 		profilerPanel.switchToGrammar(previewState, grammarFile);
 
-		if ( previewState.startRuleName!=null ) {
+		PreviewState.Snapshot snapshot = previewState.getSnapshot();
+		if ( snapshot.startRuleName!=null ) {
 			updateParseTreeFromDoc(grammarFile); // regens tree and profile data
 		}
 		else {
 			clearTabs(null); // blank tree
 		}
 
-		setEnabled(previewState.g!=null || previewState.lg==null);
+		setEnabled(snapshot.g!=null || snapshot.lg==null);
 	}
 
 	@Override
@@ -350,6 +387,7 @@ public class PreviewPanel extends JPanel implements ParsingResultSelectionListen
 		inputPanel.resetStartRuleLabel();
 		inputPanel.clearErrorConsole();
 		clearParseTree(); // wipe tree
+		refreshedRevisions.remove(grammarFileName); // so that reopening it refreshes the preview
 
 		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
 		PreviewState previewState = controller.getPreviewState(grammarFile);
@@ -366,11 +404,11 @@ public class PreviewPanel extends JPanel implements ParsingResultSelectionListen
 		});
 	}
 
-	private void updateTreeViewer(final PreviewState preview, final ParsingResult result) {
+	private void updateTreeViewer(final PreviewState.Snapshot snapshot, final ParsingResult result) {
 
 		ApplicationManager.getApplication().invokeLater(() -> {
 			if (result.parser instanceof PreviewParser) {
-				AltLabelTextProvider provider = new AltLabelTextProvider(result.parser, preview.g);
+				AltLabelTextProvider provider = new AltLabelTextProvider(result.parser, snapshot.g);
 				if(buildTree) {
 					treeViewer.setTreeTextProvider(provider);
 					treeViewer.setTree(result.tree);
@@ -383,11 +421,11 @@ public class PreviewPanel extends JPanel implements ParsingResultSelectionListen
 			}
 			else {
 				if(buildTree) {
-					treeViewer.setRuleNames(Arrays.asList(preview.g.getRuleNames()));
+					treeViewer.setRuleNames(Arrays.asList(snapshot.g.getRuleNames()));
 					treeViewer.setTree(result.tree);
 				}
 				if(buildHierarchy) {
-					hierarchyViewer.setRuleNames(Arrays.asList(preview.g.getRuleNames()));
+					hierarchyViewer.setRuleNames(Arrays.asList(snapshot.g.getRuleNames()));
 					hierarchyViewer.setTree(result.tree);
 				}
 			}
@@ -416,8 +454,9 @@ public class PreviewPanel extends JPanel implements ParsingResultSelectionListen
 		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
 		if ( controller==null ) return;
 		PreviewState previewState = controller.getPreviewState(grammarFile);
-		LOG.info("updateParseTreeFromDoc "+grammarFile+" rule "+previewState.startRuleName);
-		if ( previewState.g==null || previewState.lg==null ) {
+		PreviewState.Snapshot snapshot = previewState.getSnapshot();
+		LOG.info("updateParseTreeFromDoc "+grammarFile+" rule "+snapshot.startRuleName);
+		if ( snapshot.g==null || snapshot.lg==null ) {
 			// likely error in grammar prevents it from loading properly into previewState; bail
 			indicateInvalidGrammarInParseTreePane();
 			return;
@@ -425,37 +464,80 @@ public class PreviewPanel extends JPanel implements ParsingResultSelectionListen
 
 		Editor editor = inputPanel.getInputEditor();
 		if ( editor==null ) return;
-		final String inputText = editor.getDocument().getText();
 
 		// The controller will call us back when it's done parsing
-		controller.parseText(grammarFile, inputText);
+		controller.parseText(grammarFile, editor.getDocument());
+	}
+
+	/** The profiler needs the diagnostic parsing setup, even in fast preview mode */
+	public boolean isProfilerTabSelected() {
+		return tabbedPane!=null && tabbedPane.getSelectedComponent()==profilerPanel.getComponent();
+	}
+
+	private void reparseIfProfilingDataIsMissing() {
+		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
+		if ( controller==null ) return;
+		VirtualFile grammarFile = controller.getCurrentGrammarFile();
+		if ( grammarFile==null ) return;
+		PreviewState previewState = controller.getPreviewState(grammarFile);
+		ParsingResult parsingResult = previewState.getSnapshot().parsingResult;
+		if ( parsingResult!=null && parsingResult.parser.getParseInfo()==null ) {
+			updateParseTreeFromDoc(grammarFile);
+		}
 	}
 
 	public InputPanel getInputPanel() {
 		return inputPanel;
 	}
 
+	/** Refresh the preview after an annotation pass of virtualFile, unless
+	 *  neither it nor any file it depends on changed since the preview was
+	 *  last refreshed with it: passes are also triggered by caret moves and
+	 *  restarts of the highlighting. Passes while a refresh is still pending
+	 *  share that refresh. Can be called from any thread.
+	 */
 	public void autoRefreshPreview(VirtualFile virtualFile) {
 		final ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
 
 		if (autoRefresh
 				&& controller != null
 				&& inputPanel.previewState != null
-				&& inputPanel.previewState.startRuleName != null) {
-			ApplicationManager.getApplication().invokeLater(() -> controller.grammarFileSavedEvent(virtualFile));
+				&& inputPanel.previewState.getSnapshot().startRuleName != null) {
+			if ( !pendingRefreshes.add(virtualFile.getPath()) ) {
+				skippedRefreshCount.incrementAndGet();
+				return;
+			}
+			ApplicationManager.getApplication().invokeLater(() -> {
+				pendingRefreshes.remove(virtualFile.getPath());
+				ParsingResultCache.Key revision = GrammarAnalysisService.getInstance(project).getRevision(virtualFile);
+				if ( revision!=null && revision.equals(refreshedRevisions.get(virtualFile.getPath())) ) {
+					skippedRefreshCount.incrementAndGet();
+					LOG.debug("autoRefreshPreview "+virtualFile.getPath()+" unchanged, skipped "+skippedRefreshCount.get()+" refreshes");
+					return;
+				}
+				controller.grammarFileSavedEvent(virtualFile);
+			});
 		}
 	}
 
+	/** Number of automatic refreshes skipped because nothing they would
+	 *  have been built from changed, or because one was already pending.
+	 */
+	public int getSkippedRefreshCount() {
+		return skippedRefreshCount.get();
+	}
+
 	public void onParsingCompleted(PreviewState previewState, long duration) {
 		cancelParserAction.setEnabled(false);
 		buttonBar.updateActionsImmediately();
 
-		if ( previewState.parsingResult!=null ) {
-			updateTreeViewer(previewState, previewState.parsingResult);
+		PreviewState.Snapshot snapshot = previewState.getSnapshot();
+		if ( snapshot.parsingResult!=null ) {
+			updateTreeViewer(snapshot, snapshot.parsingResult);
 			profilerPanel.setProfilerData(previewState, duration);
-			inputPanel.showParseErrors(previewState.parsingResult.syntaxErrorListener.getSyntaxErrors());
+			inputPanel.showParseErrors(snapshot.parsingResult.syntaxErrorListener.getSyntaxErrors());
 		}
-		else if ( previewState.startRuleName==null ) {
+		else if ( snapshot.startRuleName==null ) {
 			indicateNoStartRuleInParseTreePane();
 		}
 		else {
@@ -487,7 +569,11 @@ public class PreviewPanel extends JPanel implements ParsingResultSelectionListen
 		int startIndex = token.getStartIndex();
 		int stopIndex = token.getStopIndex();
 
-		inputPanel.getInputEditor().getSelectionModel().setSelection(startIndex, stopIndex + 1);
+		// a large input file is only partly shown in the editor
+		Editor editor = inputPanel.getInputEditor();
+		if ( stopIndex+1 <= editor.getDocument().getTextLength() ) {
+			editor.getSelectionModel().setSelection(startIndex, stopIndex + 1);
+		}
 	}
 
 	@Override
@@ -0,0 +1,151 @@
+package org.antlr.intellij.plugin.preview;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.util.Alarm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Decides when the preview input gets parsed and which results are shown.
+ *
+ *  Edits of the input editor are coalesced: a parse only starts once the
+ *  input has not changed for {@link #getDebounceMillis()} ms, set by the
+ *  {@value #DEBOUNCE_REGISTRY_KEY} registry key, and a new request replaces
+ *  the pending one. Every started parse gets a
+ *  {@link Ticket}; its result is published only if no other parse was started
+ *  in the meantime and its input is not older (by modification stamp) than
+ *  the input of the last result shown, so a slow parse finishing late can't
+ *  replace a more recent tree.
+ *
+ *  All methods but the counters must be called from the EDT.
+ */
+public class PreviewParsingScheduler {
+	public static final String DEBOUNCE_REGISTRY_KEY = "antlr4.preview.parse.debounce.ms";
+	public static final int DEFAULT_DEBOUNCE_MILLIS = 200;
+
+	private final Alarm alarm;
+
+	private boolean runningDebouncedRequest;
+	private Ticket current;
+	private Document publishedDocument;
+	private long publishedStamp;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong cancelled = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+
+	public PreviewParsingScheduler(Disposable parent) {
+		this(new Alarm(Alarm.ThreadToUse.SWING_THREAD, parent));
+	}
+
+	PreviewParsingScheduler(Alarm alarm) {
+		this.alarm = alarm;
+	}
+
+	/** Run parse once the input stops changing; replaces any parse requested
+	 *  earlier through this method that has not started yet.
+	 */
+	public void inputChanged(Runnable parse) {
+		submitted.incrementAndGet();
+		if ( alarm.cancelAllRequests()>0 ) {
+			coalesced.incrementAndGet();
+		}
+		alarm.addRequest(() -> {
+			runningDebouncedRequest = true;
+			try {
+				parse.run();
+			}
+			finally {
+				runningDebouncedRequest = false;
+			}
+		}, getDebounceMillis());
+	}
+
+	/** Called right before a parse of input starts. Any debounced request
+	 *  is dropped since this parse will see the latest input anyway, and the
+	 *  parse that was running, if any, is considered cancelled.
+	 */
+	public Ticket parseStarted(Document input) {
+		if ( !runningDebouncedRequest ) { // not yet counted by inputChanged()
+			submitted.incrementAndGet();
+			if ( alarm.cancelAllRequests()>0 ) {
+				coalesced.incrementAndGet();
+			}
+		}
+		parseCancelled();
+		current = new Ticket(input, input.getModificationStamp());
+		return current;
+	}
+
+	/** The running parse was aborted, its result will never be published */
+	public void parseCancelled() {
+		if ( current!=null && !current.done ) {
+			current.done = true;
+			cancelled.incrementAndGet();
+		}
+	}
+
+	/** Returns true if the result of the parse started with ticket should be
+	 *  shown; a superseded result counts as cancelled.
+	 */
+	public boolean parseCompleted(Ticket ticket) {
+		if ( ticket.done ) {
+			return false; // already cancelled
+		}
+		ticket.done = true;
+		if ( ticket!=current ||
+			 (ticket.input==publishedDocument && ticket.stamp<publishedStamp) )
+		{
+			cancelled.incrementAndGet();
+			return false;
+		}
+		publishedDocument = ticket.input;
+		publishedStamp = ticket.stamp;
+		completed.incrementAndGet();
+		return true;
+	}
+
+	/** Read again for every request, so that changing the registry key applies at once */
+	public int getDebounceMillis() {
+		return Math.max(0, Registry.intValue(DEBOUNCE_REGISTRY_KEY, DEFAULT_DEBOUNCE_MILLIS));
+	}
+
+	/** Number of parse requests, debounced or not */
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	/** Number of requests absorbed by a later one before their parse started */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/** Number of parses that started but whose result was thrown away */
+	public long getCancelledCount() {
+		return cancelled.get();
+	}
+
+	/** Number of parses whose result was shown */
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	@Override
+	public String toString() {
+		return "submitted="+getSubmittedCount()+", coalesced="+getCoalescedCount()+
+			", cancelled="+getCancelledCount()+", completed="+getCompletedCount();
+	}
+
+	public static class Ticket {
+		private final Document input;
+		private final long stamp;
+		private boolean done;
+
+		private Ticket(Document input, long stamp) {
+			this.input = input;
+			this.stamp = stamp;
+		}
+	}
+}
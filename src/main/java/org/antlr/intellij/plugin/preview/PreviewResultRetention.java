@@ -0,0 +1,87 @@
+package org.antlr.intellij.plugin.preview;
+
+import org.antlr.intellij.plugin.parsing.ParsingResult;
+import org.antlr.intellij.plugin.parsing.ParsingResultCache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/** Decides which grammars keep their preview results in memory: the one
+ *  previewed last and the ones previewed just before it. With many grammar
+ *  tabs open, the others would otherwise each hold a parse tree, tokens and
+ *  profiling data that nobody looks at.
+ *
+ *  A grammar that falls out of the most recently used ones is retired, see
+ *  {@link PreviewState#retireParsingResult}; its input is parsed again (or
+ *  found in the {@link ParsingResultCache}) when it is previewed again.
+ */
+public class PreviewResultRetention {
+	/** Besides the grammar being previewed */
+	public static final int DEFAULT_MAX_RECENT = 3;
+
+	private final int maxRetained;
+	/** Least recently previewed first */
+	private final LinkedHashSet<PreviewState> retained = new LinkedHashSet<>();
+
+	public PreviewResultRetention() {
+		this(DEFAULT_MAX_RECENT);
+	}
+
+	public PreviewResultRetention(int maxRecent) {
+		this.maxRetained = maxRecent+1;
+	}
+
+	/** Note that state is being previewed, retiring the results of the
+	 *  grammars that are no longer among the most recent ones.
+	 */
+	public void previewed(PreviewState state) {
+		List<PreviewState> retired = new ArrayList<>();
+		synchronized (this) {
+			retained.remove(state);
+			retained.add(state);
+			Iterator<PreviewState> it = retained.iterator();
+			while ( retained.size()>maxRetained ) {
+				retired.add(it.next());
+				it.remove();
+			}
+		}
+		for (PreviewState s : retired) {
+			s.retireParsingResult();
+		}
+	}
+
+	public synchronized void remove(PreviewState state) {
+		retained.remove(state);
+	}
+
+	public synchronized void clear() {
+		retained.clear();
+	}
+
+	/** Number of grammars whose results are currently kept */
+	public synchronized int getRetainedCount() {
+		return retained.size();
+	}
+
+	public synchronized boolean isRetained(PreviewState state) {
+		return retained.contains(state);
+	}
+
+	/** Estimated memory held by the parse results of the retained grammars */
+	public long getRetainedBytes() {
+		List<PreviewState> states;
+		synchronized (this) {
+			states = new ArrayList<>(retained);
+		}
+		long bytes = 0;
+		for (PreviewState s : states) {
+			ParsingResult result = s.getSnapshot().parsingResult;
+			if ( result!=null && result.parser!=null ) {
+				bytes += ParsingResultCache.estimateSize(result);
+			}
+		}
+		return bytes;
+	}
+}
@@ -4,10 +4,18 @@ import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.EditorFactory;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFile;
+import org.antlr.intellij.plugin.parsing.IncrementalLexer;
+import org.antlr.intellij.plugin.parsing.IncrementalParser;
+import org.antlr.intellij.plugin.parsing.MappedFileCharStream;
 import org.antlr.intellij.plugin.parsing.ParsingResult;
+import org.antlr.intellij.plugin.parsing.PreviewInterpreterCache;
 import org.antlr.v4.tool.Grammar;
 import org.antlr.v4.tool.LexerGrammar;
 
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
 /** Track everything associated with the state of the preview window.
  *  For each grammar, we need to track an InputPanel (with <= 2 editor objects)
  *  that we will flip to every time we come back to a specific grammar,
@@ -16,22 +24,35 @@ import org.antlr.v4.tool.LexerGrammar;
  *  Before parsing can begin, we need to know the start rule. That means that
  *  we should not show an editor until this field is filled in.
  *
- *  The plug-in controller should update all of these elements atomically so
- *  they are self consistent.  We must be careful then to send these fields
- *  around together as a unit instead of asking the controller for the
- *  elements piecemeal. That could get g and lg for different grammar files,
- *  for example.
+ *  The grammars, start rule and parse result must be self consistent, so
+ *  they live together in an immutable {@link Snapshot} that is replaced as a
+ *  whole. Read it once with {@link #getSnapshot()} and use that instead of
+ *  asking for the elements piecemeal, which could get g and lg for different
+ *  grammar files, or a parse result for another start rule, for example.
  */
 public class PreviewState {
 	public Project project;
 	public VirtualFile grammarFile;
-	public Grammar g;
-	public LexerGrammar lg;
-	public String startRuleName;
 	public CharSequence manualInputText = ""; // save input when switching grammars
 	public VirtualFile inputFile; 	// save input file when switching grammars
 
-	public ParsingResult parsingResult;
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.EMPTY);
+
+	/** Tokens of the input editor kept between parses; fed with the edits
+	 *  of the current input editor and reset when the editor changes.
+	 */
+	public final IncrementalLexer incrementalLexer;
+
+	/** The last parse of the input editor, reused after an edit in
+	 *  incremental parsing mode; reset along with incrementalLexer.
+	 */
+	public final IncrementalParser incrementalParser = new IncrementalParser();
+
+	/** Set when the input file is too big to be loaded in a Document: the
+	 *  input editor then only shows the beginning of the file and parses
+	 *  read (a copy of) this stream instead. Reset when the editor changes.
+	 */
+	public MappedFileCharStream largeInput;
 
 	/** The current input editor (inputEditor or fileEditor) for this grammar
 	 *  in InputPanel. This can be null when a PreviewState and InputPanel
@@ -43,6 +64,7 @@ public class PreviewState {
 	public PreviewState(Project project, VirtualFile grammarFile) {
 		this.project = project;
 		this.grammarFile = grammarFile;
+		this.incrementalLexer = new IncrementalLexer(grammarFile.getPath());
 	}
 
 	public synchronized Editor getInputEditor() {
@@ -52,10 +74,39 @@ public class PreviewState {
 	public synchronized void setInputEditor(Editor inputEditor) {
 		releaseEditor();
 		this.inputEditor = inputEditor;
+		incrementalLexer.reset();
+		incrementalParser.reset();
+		largeInput = null;
 	}
 
-	public Grammar getMainGrammar() {
-		return g!=null ? g : lg;
+	public Snapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+	/** Atomically replace the snapshot by update(snapshot), which may be
+	 *  called more than once under contention; returns the previous snapshot.
+	 */
+	public Snapshot updateSnapshot(UnaryOperator<Snapshot> update) {
+		return snapshot.getAndUpdate(update);
+	}
+
+	/** Publish result, obtained by parsing with the grammars and start rule
+	 *  of parsedWith, unless those changed in the meantime. Returns false if
+	 *  the result was dropped.
+	 */
+	public boolean setParsingResult(Snapshot parsedWith, ParsingResult result) {
+		Snapshot previous = snapshot.getAndUpdate(s -> s.isParsedLike(parsedWith) ? s.withParsingResult(result) : s);
+		return previous.isParsedLike(parsedWith);
+	}
+
+	/** Drop the parse result and what's kept for incremental parsing, to
+	 *  save memory while the grammar isn't previewed. The next parse of the
+	 *  input starts from scratch. Grammars and start rule are kept.
+	 */
+	public void retireParsingResult() {
+		updateSnapshot(s -> s.parsingResult!=null ? s.withParsingResult(null) : s);
+		incrementalLexer.reset();
+		incrementalParser.reset();
 	}
 
 	public synchronized void releaseEditor() {
@@ -68,4 +119,58 @@ public class PreviewState {
 		}
 	}
 
+	/** What the preview shows for a grammar at some point in time. Never
+	 *  modified: the with...() methods return a copy, dropping the parse result
+	 *  when the grammars or start rule it came from change.
+	 */
+	public static final class Snapshot {
+		public static final Snapshot EMPTY = new Snapshot(null, null, null, null, null);
+
+		public final Grammar g;
+		public final LexerGrammar lg;
+
+		/** ATNs and DFAs shared by all parses of g/lg; replaced whenever
+		 *  the grammars are reloaded.
+		 */
+		public final PreviewInterpreterCache interpreterCache;
+
+		public final String startRuleName;
+
+		/** Result of parsing the input with g, lg and startRuleName, if any */
+		public final ParsingResult parsingResult;
+
+		private Snapshot(Grammar g, LexerGrammar lg, PreviewInterpreterCache interpreterCache,
+						 String startRuleName, ParsingResult parsingResult)
+		{
+			this.g = g;
+			this.lg = lg;
+			this.interpreterCache = interpreterCache;
+			this.startRuleName = startRuleName;
+			this.parsingResult = parsingResult;
+		}
+
+		public Snapshot withGrammars(Grammar g, LexerGrammar lg, PreviewInterpreterCache interpreterCache) {
+			return new Snapshot(g, lg, interpreterCache, startRuleName, null);
+		}
+
+		public Snapshot withStartRuleName(String startRuleName) {
+			if ( Objects.equals(startRuleName, this.startRuleName) ) {
+				return this;
+			}
+			return new Snapshot(g, lg, interpreterCache, startRuleName, null);
+		}
+
+		public Snapshot withParsingResult(ParsingResult parsingResult) {
+			return new Snapshot(g, lg, interpreterCache, startRuleName, parsingResult);
+		}
+
+		public Grammar getMainGrammar() {
+			return g!=null ? g : lg;
+		}
+
+		/** Same grammars and start rule, so the same parse results */
+		boolean isParsedLike(Snapshot other) {
+			return g==other.g && lg==other.lg && Objects.equals(startRuleName, other.startRuleName);
+		}
+	}
 }
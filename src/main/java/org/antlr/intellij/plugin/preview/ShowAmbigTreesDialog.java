@@ -63,13 +63,17 @@ public class ShowAmbigTreesDialog extends JDialog {
 
 	public static void popupAmbigTreesDialog(PreviewState previewState, AmbiguityInfo ambigInfo) {
 		// pop up subtrees for ambig intrepretation
+		PreviewState.Snapshot snapshot = previewState.getSnapshot();
+		if ( snapshot.parsingResult==null ) {
+			return; // grammar or start rule changed since the popup was shown
+		}
 		ShowAmbigTreesDialog dialog = new ShowAmbigTreesDialog();
-		Parser parser = previewState.parsingResult.parser;
-		int startRuleIndex = parser.getRuleIndex(previewState.startRuleName);
+		Parser parser = snapshot.parsingResult.parser;
+		int startRuleIndex = parser.getRuleIndex(snapshot.startRuleName);
 		List<ParserRuleContext> ambiguousParseTrees = null;
 		try {
 			ambiguousParseTrees =
-				GrammarParserInterpreter.getAllPossibleParseTrees(previewState.g,
+				GrammarParserInterpreter.getAllPossibleParseTrees(snapshot.g,
 				                                                  parser,
 				                                                  parser.getTokenStream(),
 				                                                  ambigInfo.decision,
@@ -86,7 +90,7 @@ public class ShowAmbigTreesDialog extends JDialog {
 		}
 
 		if ( ambiguousParseTrees!=null ) {
-			TokenStream tokens = previewState.parsingResult.parser.getInputStream();
+			TokenStream tokens = parser.getInputStream();
 			String phrase = tokens.getText(Interval.of(ambigInfo.startIndex, ambigInfo.stopIndex));
 			if ( phrase.length()>MAX_PHRASE_WIDTH ) {
 				phrase = phrase.substring(0, MAX_PHRASE_WIDTH)+"...";
@@ -95,7 +99,7 @@ public class ShowAmbigTreesDialog extends JDialog {
 				" Interpretations of Ambiguous Input Phrase: "+
 				phrase;
 			dialog.ambigPhraseLabel.setText(title);
-			dialog.setTrees(previewState, ambiguousParseTrees, title, 0, true);
+			dialog.setTrees(snapshot, ambiguousParseTrees, title, 0, true);
 		}
 
 		dialog.pack();
@@ -115,11 +119,15 @@ public class ShowAmbigTreesDialog extends JDialog {
 
 	public static void popupLookaheadTreesDialog(PreviewState previewState, LookaheadEventInfo lookaheadInfo) {
 		// pop up subtrees for lookahead
+		PreviewState.Snapshot snapshot = previewState.getSnapshot();
+		if ( snapshot.parsingResult==null ) {
+			return; // grammar or start rule changed since the popup was shown
+		}
 		ShowAmbigTreesDialog dialog = new ShowAmbigTreesDialog();
-		ParserInterpreter parser = (ParserInterpreter) previewState.parsingResult.parser;
-		int startRuleIndex = parser.getRuleIndex(previewState.startRuleName);
+		ParserInterpreter parser = (ParserInterpreter) snapshot.parsingResult.parser;
+		int startRuleIndex = parser.getRuleIndex(snapshot.startRuleName);
 		List<ParserRuleContext> lookaheadParseTrees =
-			GrammarParserInterpreter.getLookaheadParseTrees(previewState.g,
+			GrammarParserInterpreter.getLookaheadParseTrees(snapshot.g,
 			                                                parser,
 			                                                parser.getTokenStream(),
 			                                                startRuleIndex,
@@ -144,7 +152,7 @@ public class ShowAmbigTreesDialog extends JDialog {
 				" Interpretations of Lookahead Phrase: "+
 				phrase;
 			dialog.ambigPhraseLabel.setText(title);
-			dialog.setTrees(previewState, lookaheadParseTrees, title, lookaheadInfo.predictedAlt-1, false);
+			dialog.setTrees(snapshot, lookaheadParseTrees, title, lookaheadInfo.predictedAlt-1, false);
 		}
 		dialog.pack();
 		dialog.setVisible(true);
@@ -158,7 +166,7 @@ public class ShowAmbigTreesDialog extends JDialog {
 		treeScrollPane.revalidate();
 	}
 
-	public void setTrees(PreviewState previewState,
+	public void setTrees(PreviewState.Snapshot snapshot,
 						 List<? extends RuleContext> ambiguousParseTrees,
 						 String title,
 						 int highlightTreeIndex,
@@ -178,7 +186,7 @@ public class ShowAmbigTreesDialog extends JDialog {
 				PreviewInterpreterRuleContext ctx = (PreviewInterpreterRuleContext) ambiguousParseTrees.get(i);
 				treeViewers[i] = new TrackpadZoomingTreeView(null, null, highlightDiffs); // && ctx != chosenTree);
 				AltLabelTextProvider treeText =
-					new AltLabelTextProvider(previewState.parsingResult.parser, previewState.g);
+					new AltLabelTextProvider(snapshot.parsingResult.parser, snapshot.g);
 				treeViewers[i].setTreeTextProvider(treeText);
 				treeViewers[i].setTree(ctx);
 				treeViewers[i].setHighlightedBoxColor(new JBColor(JBColor.lightGray, JBColor.GREEN));
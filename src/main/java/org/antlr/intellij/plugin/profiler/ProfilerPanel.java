@@ -8,12 +8,15 @@ import com.intellij.openapi.editor.event.EditorMouseEvent;
 import com.intellij.openapi.editor.markup.*;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.ui.JBColor;
 import com.intellij.ui.components.JBCheckBox;
 import com.intellij.ui.components.JBLabel;
 import com.intellij.ui.table.JBTable;
 import org.antlr.intellij.plugin.ANTLRv4PluginController;
+import org.antlr.intellij.plugin.parsing.GrammarAnalysisService;
+import org.antlr.intellij.plugin.parsing.ParsingResult;
 import org.antlr.intellij.plugin.preview.InputPanel;
 import org.antlr.intellij.plugin.preview.PreviewPanel;
 import org.antlr.intellij.plugin.preview.PreviewState;
@@ -54,6 +57,9 @@ public class ProfilerPanel {
 	protected JLabel cacheMissRateField;
 	protected JLabel inputSizeField;
 	protected JLabel numTokensField;
+	protected JLabel retainedResultsField;
+	protected JLabel resultCacheField;
+	protected JLabel previewParsesField;
 	protected JCheckBox expertCheckBox;
 	protected JLabel ambiguityColorLabel;
 	protected JLabel contextSensitivityColorLabel;
@@ -92,8 +98,13 @@ public class ProfilerPanel {
 
 	public void setProfilerData(PreviewState previewState, long parseTime_ns) {
 		this.previewState = previewState;
-		Parser parser = previewState.parsingResult.parser;
+		Parser parser = previewState.getSnapshot().parsingResult.parser;
 		ParseInfo parseInfo = parser.getParseInfo();
+		if ( parseInfo==null ) {
+			// parsed in fast mode while we weren't visible
+			switchToGrammar(previewState, null);
+			return;
+		}
 		updateTableModelPerExpertCheckBox(parseInfo,parser);
 		double parseTimeMS = parseTime_ns/(1000.0*1000.0);
 		// microsecond decimal precision
@@ -133,6 +144,32 @@ public class ProfilerPanel {
 		                          );
 	}
 
+	/** Memory held by preview results: those of retained out of total
+	 *  grammars, plus the results cached for any grammar.
+	 */
+	public void setRetainedResults(int retained, int total, long retainedBytes, long cachedBytes) {
+		retainedResultsField.setText(
+			String.format("%d/%d grammars, %s + %s cached", retained, total,
+			              StringUtil.formatFileSize(retainedBytes), StringUtil.formatFileSize(cachedBytes))
+		                            );
+	}
+
+	/** Hits and misses of the cache of recent preview results, see {@link org.antlr.intellij.plugin.parsing.ParsingResultCache} */
+	public void setResultCacheStats(long hits, long misses, int entries) {
+		long lookups = hits+misses;
+		resultCacheField.setText(
+			String.format("%d hits, %d misses (%3.2f%% hit rate), %d results", hits, misses,
+			              lookups>0 ? hits*100.0/lookups : 0.0, entries)
+		                        );
+	}
+
+	/** Counters of the {@link org.antlr.intellij.plugin.preview.PreviewParsingScheduler} */
+	public void setPreviewParses(long completed, long superseded, long coalesced) {
+		previewParsesField.setText(
+			String.format("%d shown, %d superseded, %d coalesced", completed, superseded, coalesced)
+		                          );
+	}
+
 	public void updateTableModelPerExpertCheckBox(ParseInfo parseInfo,Parser parser) {
 		AbstractTableModel model;
 		if ( expertCheckBox.isSelected() ) {
@@ -150,9 +187,14 @@ public class ProfilerPanel {
 		if ( controller==null ) return;
 		final Editor grammarEditor = controller.getEditor(previewState.grammarFile);
 		if ( grammarEditor==null ) return;
-
-		DecisionState decisionState = previewState.g.atn.getDecisionState(decision);
-		Interval region = previewState.g.getStateToGrammarRegion(decisionState.stateNumber);
+		PreviewState.Snapshot snapshot = previewState.getSnapshot();
+		if ( snapshot.g==null || snapshot.parsingResult==null ) return;
+		// the rows may be those of a diagnostic parse while a fast one, without profiling, is shown
+		ParseInfo parseInfo = snapshot.parsingResult.parser.getParseInfo();
+		if ( parseInfo==null || decision>=parseInfo.getDecisionInfo().length ) return;
+
+		DecisionState decisionState = snapshot.g.atn.getDecisionState(decision);
+		Interval region = snapshot.g.getStateToGrammarRegion(decisionState.stateNumber);
 		if ( region==null ) {
 			System.err.println("decision "+decision+" has state "+decisionState.stateNumber+" but no region");
 			return;
@@ -160,14 +202,15 @@ public class ProfilerPanel {
 
 		InputPanel.removeHighlighters(grammarEditor, ProfilerPanel.DECISION_INFO_KEY);
 
-		org.antlr.runtime.TokenStream tokens = previewState.g.tokenStream;
-		if ( region.a>=tokens.size() || region.b>=tokens.size() ) {
+		// where they are in the grammar's current text
+		GrammarAnalysisService analysisService = GrammarAnalysisService.getInstance(previewState.project);
+		CommonToken startToken = (CommonToken) analysisService.getGrammarToken(previewState.grammarFile, snapshot.g, region.a);
+		CommonToken stopToken = (CommonToken) analysisService.getGrammarToken(previewState.grammarFile, snapshot.g, region.b);
+		if ( startToken==null || stopToken==null ) {
 			return;
 		}
-		CommonToken startToken = (CommonToken) tokens.get(region.a);
-		CommonToken stopToken = (CommonToken) tokens.get(region.b);
 		JBColor effectColor = JBColor.darkGray;
-		DecisionInfo decisionInfo = previewState.parsingResult.parser.getParseInfo().getDecisionInfo()[decision];
+		DecisionInfo decisionInfo = parseInfo.getDecisionInfo()[decision];
 		if ( decisionInfo.predicateEvals.size()>0 ) {
 			effectColor = new JBColor(PREDEVAL_COLOR, AMBIGUITY_COLOR);
 		}
@@ -198,9 +241,17 @@ public class ProfilerPanel {
 	}
 
 	public void highlightInputPhrases(PreviewState previewState, int decision) {
-		if ( previewState==null || previewState.parsingResult==null ) {
+		if ( previewState==null ) {
 			return;
 		}
+		ParsingResult parsingResult = previewState.getSnapshot().parsingResult;
+		if ( parsingResult==null ) {
+			return;
+		}
+		ParseInfo parseInfo = parsingResult.parser.getParseInfo();
+		if ( parseInfo==null || decision>=parseInfo.getDecisionInfo().length ) {
+			return; // not profiled yet, see PreviewPanel.reparseIfProfilingDataIsMissing
+		}
 
 		Editor inputEditor = previewState.getInputEditor();
 		ScrollingModel scrollingModel = inputEditor.getScrollingModel();
@@ -209,7 +260,6 @@ public class ProfilerPanel {
 
 		InputPanel.clearDecisionEventHighlighters(inputEditor);
 
-		ParseInfo parseInfo = previewState.parsingResult.parser.getParseInfo();
 		DecisionInfo decisionInfo = parseInfo.getDecisionInfo()[decision];
 
 		Token firstToken = null;
@@ -221,7 +271,7 @@ public class ProfilerPanel {
 			if ( decisionInfo.LL_MaxLook>decisionInfo.SLL_MaxLook ) {
 				maxLookEvent = decisionInfo.LL_MaxLookEvent;
 			}
-			firstToken = addDecisionEventHighlighter(previewState, markupModel,
+			firstToken = addDecisionEventHighlighter(parsingResult, markupModel,
 			                                         maxLookEvent,
 			                                         DEEPESTLOOK_COLOR,
 			                                         EffectType.BOLD_DOTTED_LINE);
@@ -229,19 +279,19 @@ public class ProfilerPanel {
 
 		// pred evals
 		for (PredicateEvalInfo predEvalInfo : decisionInfo.predicateEvals) {
-			Token t = addDecisionEventHighlighter(previewState, markupModel, predEvalInfo, PREDEVAL_COLOR, EffectType.ROUNDED_BOX);
+			Token t = addDecisionEventHighlighter(parsingResult, markupModel, predEvalInfo, PREDEVAL_COLOR, EffectType.ROUNDED_BOX);
 			if ( firstToken==null ) firstToken = t;
 		}
 
 		// context-sensitivities
 		for (ContextSensitivityInfo ctxSensitivityInfo : decisionInfo.contextSensitivities) {
-			Token t = addDecisionEventHighlighter(previewState, markupModel, ctxSensitivityInfo, FULLCTX_COLOR, EffectType.ROUNDED_BOX);
+			Token t = addDecisionEventHighlighter(parsingResult, markupModel, ctxSensitivityInfo, FULLCTX_COLOR, EffectType.ROUNDED_BOX);
 			if ( firstToken==null ) firstToken = t;
 		}
 
 		// ambiguities (might overlay context-sensitivities)
 		for (AmbiguityInfo ambiguityInfo : decisionInfo.ambiguities) {
-			Token t = addDecisionEventHighlighter(previewState, markupModel, ambiguityInfo, AMBIGUITY_COLOR, EffectType.ROUNDED_BOX);
+			Token t = addDecisionEventHighlighter(parsingResult, markupModel, ambiguityInfo, AMBIGUITY_COLOR, EffectType.ROUNDED_BOX);
 			if ( firstToken==null ) firstToken = t;
 		}
 
@@ -251,12 +301,15 @@ public class ProfilerPanel {
 		}
 	}
 
-	public Token addDecisionEventHighlighter(PreviewState previewState, MarkupModel markupModel,
+	public Token addDecisionEventHighlighter(ParsingResult parsingResult, MarkupModel markupModel,
 	                                         DecisionEventInfo info, Color errorStripeColor,
 	                                         EffectType effectType) {
-		TokenStream tokens = previewState.parsingResult.parser.getInputStream();
+		TokenStream tokens = parsingResult.parser.getInputStream();
 		Token startToken = tokens.get(info.startIndex);
 		Token stopToken = tokens.get(info.stopIndex);
+		if ( stopToken.getStopIndex()+1 > markupModel.getDocument().getTextLength() ) {
+			return null; // beyond the part of a large input file that's shown
+		}
 		TextAttributes textAttributes =
 			new TextAttributes(JBColor.BLACK, JBColor.WHITE, errorStripeColor,
 			                   effectType, Font.PLAIN);
@@ -276,10 +329,11 @@ public class ProfilerPanel {
 	                                                     SemanticContext semctx,
 	                                                     int alt,
 	                                                     boolean result) {
-		Grammar g = previewState.g;
+		PreviewState.Snapshot snapshot = previewState.getSnapshot();
+		Grammar g = snapshot.g;
 		String semanticContextDisplayString = g.getSemanticContextDisplayString(semctx);
 		if ( semctx instanceof SemanticContext.PrecedencePredicate ) {
-			int ruleIndex = previewState.parsingResult.parser.getATN().decisionToState.get(pred.decision).ruleIndex;
+			int ruleIndex = snapshot.parsingResult.parser.getATN().decisionToState.get(pred.decision).ruleIndex;
 			Rule rule = g.getRule(ruleIndex);
 			int precedence = ((SemanticContext.PrecedencePredicate) semctx).precedence;
 			// precedence = n - originalAlt + 1, So:
@@ -294,10 +348,14 @@ public class ProfilerPanel {
 		                                               boolean isSelected, boolean hasFocus,
 		                                               int row, int column) {
 			Component c = super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
-			if ( previewState==null || previewState.parsingResult==null ) {
+			ParsingResult parsingResult = previewState!=null ? previewState.getSnapshot().parsingResult : null;
+			if ( parsingResult==null ) {
 				return c;
 			}
-			ParseInfo parseInfo = previewState.parsingResult.parser.getParseInfo();
+			ParseInfo parseInfo = parsingResult.parser.getParseInfo();
+			if ( parseInfo==null ) {
+				return c; // not profiled yet, see PreviewPanel.reparseIfProfilingDataIsMissing
+			}
 			int decision = profilerDataTable.convertRowIndexToModel(row);
 			DecisionInfo[] decisions = parseInfo.getDecisionInfo();
 			if ( decision>=decisions.length ) {
@@ -321,12 +379,16 @@ public class ProfilerPanel {
 		expertCheckBox = new JBCheckBox();
 		expertCheckBox.setSelected(false);
 		expertCheckBox.addActionListener(e -> {
-			if (previewState.parsingResult == null) {
+			ParsingResult parsingResult = previewState.getSnapshot().parsingResult;
+			if (parsingResult == null) {
 				// nothing has been parsed yet (no text in the editor)
 				return;
 			}
-			ParseInfo parseInfo = previewState.parsingResult.parser.getParseInfo();
-			updateTableModelPerExpertCheckBox(parseInfo,previewState.parsingResult.parser);
+			ParseInfo parseInfo = parsingResult.parser.getParseInfo();
+			if ( parseInfo==null ) {
+				return;
+			}
+			updateTableModelPerExpertCheckBox(parseInfo,parsingResult.parser);
 		});
 		profilerDataTable = new JBTable() {
 			@Override
@@ -367,7 +429,11 @@ public class ProfilerPanel {
 							selectedRow = 0;
 						}
 						int decision = profilerDataTable.convertRowIndexToModel(selectedRow);
-						int numberOfDecisions = previewState.g.atn.getNumberOfDecisions();
+						Grammar g = previewState.getSnapshot().g;
+						if ( g==null ) {
+							return;
+						}
+						int numberOfDecisions = g.atn.getNumberOfDecisions();
 						if ( decision<=numberOfDecisions ) {
 							selectDecisionInGrammar(previewState, decision);
 							highlightInputPhrases(previewState, decision);
@@ -1,13 +1,13 @@
 package org.antlr.intellij.plugin.validation;
 
-import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
-import org.antlr.intellij.plugin.parsing.RunANTLROnGrammarFile;
-import org.antlr.runtime.ANTLRReaderStream;
+import org.antlr.intellij.plugin.parsing.AnalysisBudget;
+import org.antlr.intellij.plugin.parsing.GrammarAnalysisService;
 import org.antlr.runtime.Token;
-import org.antlr.v4.Tool;
 import org.antlr.v4.codegen.CodeGenerator;
 import org.antlr.v4.codegen.Target;
 import org.antlr.v4.parse.ANTLRParser;
@@ -16,111 +16,39 @@ import org.antlr.v4.tool.*;
 import org.antlr.v4.tool.ast.GrammarAST;
 import org.antlr.v4.tool.ast.GrammarRootAST;
 import org.antlr.v4.tool.ast.RuleRefAST;
-import org.jetbrains.annotations.Nullable;
 import org.stringtemplate.v4.ST;
 
 import java.io.File;
-import java.io.StringReader;
 import java.lang.reflect.Constructor;
 import java.util.*;
 
 
 public class GrammarIssuesCollector {
-    private static final String LANGUAGE_ARG_PREFIX = "-Dlanguage=";
-
     public static final Logger LOG = Logger.getInstance(GrammarIssuesCollector.class.getName());
-
+    /** Milliseconds an annotation pass may spend analyzing a grammar, 0 for no limit */
+    public static final String TIME_BUDGET_REGISTRY_KEY = "antlr4.annotator.time.budget.ms";
+
+    /** The issues of the current text of file, from the analysis shared with
+     *  the preview, see {@link GrammarAnalysisService}. If the grammar has to
+     *  be analyzed, the analysis stops when the pass is cancelled and reports
+     *  the issues found so far once the {@link #TIME_BUDGET_REGISTRY_KEY}
+     *  budget is spent. If only some rules changed since the last analysis,
+     *  only those are checked and the file is annotated again once the full
+     *  analysis is done in the background.
+     */
     public static List<GrammarIssue> collectGrammarIssues(PsiFile file) {
-        String grammarFileName = file.getVirtualFile().getPath();
-        LOG.info("doAnnotate "+grammarFileName);
-        String fileContents = file.getText();
-        List<String> args = RunANTLROnGrammarFile.getANTLRArgsAsList(file.getProject(), file.getVirtualFile());
-        GrammarIssuesCollectorToolListener listener = new GrammarIssuesCollectorToolListener();
-
-        String languageArg = findLanguageArg(args);
-
-        if ( languageArg!=null ) {
-            String language = languageArg.substring(LANGUAGE_ARG_PREFIX.length());
-
-            if ( !targetExists(language) ) {
-                GrammarIssue issue = new GrammarIssue(null);
-                issue.setAnnotation("Unknown target language '" + language + "', analysis will be done using the default target language 'Java'");
-                listener.getIssues().add(issue);
-
-                args.remove(languageArg);
-            }
-        }
-
-        final Tool antlr = new Tool(args.toArray(new String[args.size()]));
-        if ( !args.contains("-lib") ) {
-            // getContainingDirectory() must be identified as a read operation on file system
-            ApplicationManager.getApplication().runReadAction(() -> {
-                antlr.libDirectory = file.getContainingDirectory().toString();
-            });
-        }
-
-        antlr.removeListeners();
-        antlr.addListener(listener);
-        try {
-            StringReader sr = new StringReader(fileContents);
-            ANTLRReaderStream in = new ANTLRReaderStream(sr);
-            in.name = file.getName();
-            GrammarRootAST ast = antlr.parse(file.getName(), in);
-            if ( ast==null || ast.hasErrors ) {
-                for (GrammarIssue issue : listener.getIssues()) {
-                    processIssue(file, issue);
-                }
-                return listener.getIssues();
-            }
-            Grammar g = antlr.createGrammar(ast);
-            g.fileName = grammarFileName;
-
-            String vocabName = g.getOptionString("tokenVocab");
-            if ( vocabName!=null ) { // import vocab to avoid spurious warnings
-                LOG.info("token vocab file "+vocabName);
-                g.importTokensFromTokensFile();
-            }
-
-            VirtualFile vfile = file.getVirtualFile();
-            if ( vfile==null ) {
-                LOG.error("doAnnotate no virtual file for "+file);
-                return listener.getIssues();
-            }
-            g.fileName = vfile.getPath();
-            antlr.process(g, false);
-
-            Map<String, GrammarAST> unusedRules = getUnusedParserRules(g);
-            if ( unusedRules!=null ) {
-                for (String r : unusedRules.keySet()) {
-                    Token ruleDefToken = unusedRules.get(r).getToken();
-                    GrammarIssue issue = new GrammarIssue(new GrammarInfoMessage(g.fileName, ruleDefToken, r));
-                    listener.getIssues().add(issue);
-                }
-            }
-
-            for (GrammarIssue issue : listener.getIssues()) {
-                processIssue(file, issue);
-            }
-        }
-        catch (Exception e) {
-            LOG.error("antlr can't process "+file.getName(), e);
-        }
-        return listener.getIssues();
+        VirtualFile vfile = file.getVirtualFile();
+        if ( vfile==null ) {
+            LOG.error("doAnnotate no virtual file for "+file);
+            return Collections.emptyList();
+        }
+        LOG.info("doAnnotate "+vfile.getPath());
+        AnalysisBudget budget = new AnalysisBudget(Registry.intValue(TIME_BUDGET_REGISTRY_KEY));
+        return GrammarAnalysisService.getInstance(file.getProject()).analyze(vfile, budget).getIssues();
     }
 
-    @Nullable
-    private static String findLanguageArg(List<String> args) {
-        for ( String arg : args ) {
-            if ( arg.startsWith(LANGUAGE_ARG_PREFIX) ) {
-                return arg;
-            }
-        }
-
-        return null;
-    }
-
-    public static void processIssue(final PsiFile file, GrammarIssue issue) {
-        File grammarFile = new File(file.getVirtualFile().getPath());
+    public static void processIssue(VirtualFile file, GrammarIssue issue) {
+        File grammarFile = new File(file.getPath());
         if ( issue.getMsg() == null || issue.getMsg().fileName==null ) { // weird, issue doesn't have a file associated with it
             return;
         }
@@ -161,25 +89,25 @@ public class GrammarIssuesCollector {
             issue.getOffendingTokens().add(issue.getMsg().offendingToken);
         }
 
-        Tool antlr = new Tool();
-        if ( msgST==null ) {
-            msgST = antlr.errMgr.getMessageTemplate(issue.getMsg());
-        }
-        String outputMsg = msgST.render();
-        if ( antlr.errMgr.formatWantsSingleLineMessage() ) {
-            outputMsg = outputMsg.replace('\n', ' ');
-        }
+        String outputMsg = msgST!=null ? IssueMessageRenderer.render(msgST) : IssueMessageRenderer.render(issue.getMsg());
         issue.setAnnotation(outputMsg);
     }
 
-    private static Map<String,GrammarAST> getUnusedParserRules(Grammar g) {
+    public static Map<String,GrammarAST> getUnusedParserRules(Grammar g) {
         if ( g.ast==null || g.isLexer() ) return null;
-        List<GrammarAST> ruleNodes = g.ast.getNodesWithTypePreorderDFS(IntervalSet.of(ANTLRParser.RULE_REF));
+        return getUnusedParserRules(g.ast);
+    }
+
+    /** Like {@link #getUnusedParserRules(Grammar)}, given the AST of a grammar as parsed */
+    public static Map<String,GrammarAST> getUnusedParserRules(GrammarRootAST ast) {
+        if ( ast.grammarType==ANTLRParser.LEXER ) return null;
+        List<GrammarAST> ruleNodes = ast.getNodesWithTypePreorderDFS(IntervalSet.of(ANTLRParser.RULE_REF));
         // in case of errors, we walk AST ourselves
         // ANTLR's Grammar object might have bailed on rule defs etc...
         Set<String> ruleRefs = new HashSet<>();
         Map<String,GrammarAST> ruleDefs = new HashMap<>();
         for (GrammarAST x : ruleNodes) {
+            ProgressManager.checkCanceled();
             if ( x.getParent().getType()==ANTLRParser.RULE ) {
                 ruleDefs.put(x.getText(), x);
             }
@@ -11,8 +11,9 @@ import java.util.List;
  *  The annotator looks for semantic errors not syntax errors,
  *  which are indicated with error nodes in the PSI.
  */
-class GrammarIssuesCollectorToolListener implements ANTLRToolListener {
+public class GrammarIssuesCollectorToolListener implements ANTLRToolListener {
     private final List<GrammarIssue> issues = new ArrayList<>();
+    private final List<ANTLRMessage> errors = new ArrayList<>();
 
     @Override
     public void info(String msg) {
@@ -21,6 +22,7 @@ class GrammarIssuesCollectorToolListener implements ANTLRToolListener {
     @Override
     public void error(ANTLRMessage msg) {
         issues.add(new GrammarIssue(msg));
+        errors.add(msg);
     }
 
     @Override
@@ -31,4 +33,9 @@ class GrammarIssuesCollectorToolListener implements ANTLRToolListener {
     public List<GrammarIssue> getIssues() {
         return issues;
     }
+
+    /** The issues that keep the grammar from being used, e.g. by the preview */
+    public List<ANTLRMessage> getErrors() {
+        return errors;
+    }
 }
@@ -0,0 +1,40 @@
+package org.antlr.intellij.plugin.validation;
+
+import org.antlr.v4.Tool;
+import org.antlr.v4.tool.ANTLRMessage;
+import org.antlr.v4.tool.ErrorManager;
+import org.stringtemplate.v4.ST;
+
+/**
+ * Renders grammar issue messages the way the ANTLR tool prints them.
+ * The message templates are loaded once, by the first call, instead of by a
+ * new {@link Tool} for every issue.
+ * <p>
+ * Safe to call from concurrent annotator threads: rendering only reads the
+ * shared template group (whose loading is synchronized by StringTemplate)
+ * and builds new {@link ST} instances for each message.
+ */
+public final class IssueMessageRenderer {
+
+    private IssueMessageRenderer() {
+    }
+
+    /** Loaded on first use, by the JVM's class initialization lock */
+    private static final class Templates {
+        static final ErrorManager ERROR_MANAGER = new Tool().errMgr;
+        static final boolean SINGLE_LINE = ERROR_MANAGER.formatWantsSingleLineMessage();
+    }
+
+    public static String render(ANTLRMessage msg) {
+        return render(Templates.ERROR_MANAGER.getMessageTemplate(msg));
+    }
+
+    /** Render a message template that didn't come from ANTLR */
+    public static String render(ST msgST) {
+        String outputMsg = msgST.render();
+        if ( Templates.SINGLE_LINE ) {
+            outputMsg = outputMsg.replace('\n', ' ');
+        }
+        return outputMsg;
+    }
+}
@@ -18,7 +18,8 @@ public class TestUtils {
 				StringWriter stringWriter = new StringWriter();
 				e.printStackTrace(new PrintWriter(stringWriter));
 				String stack = stringWriter.toString();
-				if ( stack.contains("ANTLRv4PluginController.createToolWindows")
+				if ( stack.contains("ANTLRv4PluginController.getConsole")
+						|| stack.contains("ANTLRv4ConsoleToolWindowFactory.createToolWindowContent")
 						|| stack.contains("org.antlr.intellij.plugin.preview.InputPanel.createPreviewEditor") ) {
 					return;
 				}
@@ -65,6 +65,39 @@ public class ANTLRv4GrammarPropertiesStoreTest {
         Assert.assertSame(grammarProperties, myGrammarProperties);
     }
 
+    @Test
+    public void shouldSeePropertiesAddedAfterALookup() {
+        // given:
+        ANTLRv4GrammarPropertiesStore propertiesStore = new ANTLRv4GrammarPropertiesStore();
+        ANTLRv4GrammarProperties testGrammarProperties = createGrammarProperties("/home/*/test/*.java");
+        propertiesStore.add(testGrammarProperties);
+        Assert.assertSame(testGrammarProperties, propertiesStore.getGrammarProperties(MY_GRAMMAR_PATH));
+
+        // when:
+        ANTLRv4GrammarProperties myGrammarProperties = createGrammarProperties(MY_GRAMMAR_PATH);
+        propertiesStore.add(myGrammarProperties);
+
+        // then:
+        Assert.assertSame(myGrammarProperties, propertiesStore.getGrammarProperties(MY_GRAMMAR_PATH));
+        Assert.assertSame(testGrammarProperties, propertiesStore.getGrammarProperties("/home/other/test/Other.java"));
+    }
+
+    @Test
+    public void shouldFallBackToProjectPropertiesWhenNothingMatches() {
+        // given:
+        ANTLRv4GrammarPropertiesStore propertiesStore = new ANTLRv4GrammarPropertiesStore();
+        propertiesStore.add(createGrammarProperties("/home/*/main/*.java"));
+        ANTLRv4GrammarProperties projectProperties = createGrammarProperties("*");
+        propertiesStore.add(projectProperties);
+
+        // when:
+        ANTLRv4GrammarProperties grammarProperties = propertiesStore.getGrammarProperties(MY_GRAMMAR_PATH);
+
+        // then:
+        Assert.assertSame(projectProperties, grammarProperties);
+        Assert.assertSame(projectProperties, propertiesStore.getGrammarProperties(MY_GRAMMAR_PATH));
+    }
+
     private ANTLRv4GrammarProperties createGrammarProperties(String fileName) {
         ANTLRv4GrammarProperties antlRv4GrammarProperties = new ANTLRv4GrammarProperties();
         antlRv4GrammarProperties.fileName = fileName;
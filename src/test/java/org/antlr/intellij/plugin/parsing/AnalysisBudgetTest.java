@@ -0,0 +1,24 @@
+package org.antlr.intellij.plugin.parsing;
+
+import junit.framework.TestCase;
+
+public class AnalysisBudgetTest extends TestCase {
+
+	public void test_unlimited_budget_is_never_exceeded() throws Exception {
+		AnalysisBudget.Meter meter = AnalysisBudget.UNLIMITED.start();
+		Thread.sleep(5);
+		meter.check();
+	}
+
+	public void test_budget_is_exceeded_once_its_time_is_spent() throws Exception {
+		AnalysisBudget.Meter meter = new AnalysisBudget(1).start();
+		Thread.sleep(5);
+		try {
+			meter.check();
+			fail("budget should be exceeded");
+		}
+		catch (AnalysisBudget.ExceededException e) {
+			assertEquals("time limit of 1ms", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package org.antlr.intellij.plugin.parsing;
+
+import junit.framework.TestCase;
+import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.LexerInterpreter;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.LexerGrammar;
+
+import java.util.List;
+
+public class CompactTokenStreamTest extends TestCase {
+
+	private static final String LEXER_GRAMMAR =
+		"lexer grammar L;\n" +
+		"ID : [a-z]+ ;\n" +
+		"INT : [0-9]+ ;\n" +
+		"COMMENT : '/*' .*? '*/' -> channel(HIDDEN) ;\n" +
+		"WS : [ \\t\\r\\n]+ -> skip ;\n";
+
+	private static final String INPUT = "abc 12\n/* comment */ de\n\n  345 f";
+
+	public void test_same_tokens_as_a_common_token_stream() throws Exception {
+		LexerGrammar lg = new LexerGrammar(LEXER_GRAMMAR);
+
+		CommonTokenStream expected = new CommonTokenStream(lg.createLexerInterpreter(CharStreams.fromString(INPUT)));
+		expected.fill();
+		CompactTokenStream actual = new CompactTokenStream(lg.createLexerInterpreter(CharStreams.fromString(INPUT)));
+		actual.fill();
+
+		List<Token> expectedTokens = expected.getTokens();
+		List<Token> actualTokens = actual.getTokens();
+		assertEquals(expectedTokens.size(), actualTokens.size());
+		for (int i = 0; i<expectedTokens.size(); i++) {
+			assertEquals(expectedTokens.get(i).toString(), actualTokens.get(i).toString());
+			assertEquals(expectedTokens.get(i).getChannel(), actualTokens.get(i).getChannel());
+		}
+		assertEquals(expected.getText(), actual.getText());
+	}
+
+	public void test_token_under_cursor() throws Exception {
+		LexerGrammar lg = new LexerGrammar(LEXER_GRAMMAR);
+		CompactTokenStream tokens = new CompactTokenStream(lg.createLexerInterpreter(CharStreams.fromString(INPUT)));
+		tokens.fill();
+
+		Token token = ParsingUtils.getTokenUnderCursor(tokens, INPUT.indexOf("345")+1);
+
+		assertNotNull(token);
+		assertEquals("345", token.getText());
+		assertEquals(4, token.getLine());
+		assertEquals(2, token.getCharPositionInLine());
+		assertNull(ParsingUtils.getTokenUnderCursor(tokens, INPUT.indexOf(' ')));
+	}
+
+	public void test_parse_tree_node_under_cursor() throws Exception {
+		Grammar g = new Grammar(
+			"grammar T;\n" +
+			"prog : stat* EOF ;\n" +
+			"stat : ID '=' INT ';' ;\n" +
+			"ID : [a-z]+ ;\n" +
+			"INT : [0-9]+ ;\n" +
+			"COMMENT : '/*' .*? '*/' -> channel(HIDDEN) ;\n" +
+			"WS : [ \\n]+ -> skip ;\n");
+		String input = "a = 1;\nb /* c */ = 23;\n";
+		PreviewInterpreterCache interpreterCache = new PreviewInterpreterCache(g, g.implicitLexer);
+		CompactTokenStream tokens = new CompactTokenStream(interpreterCache.createLexerInterpreter(CharStreams.fromString(input)));
+		PreviewParser parser = interpreterCache.createParser(tokens);
+		ParsingResult result = new ParsingResult(parser, parser.parse(g.getRule("prog").index), new SyntaxErrorListener());
+
+		// what InputPanel.setCursorToGrammarRule and showParseRegion look at
+		TerminalNode node = ParsingUtils.getTerminalNodeUnderCursor(result, input.indexOf("23")+1);
+		assertNotNull(node);
+		assertEquals("23", node.getText());
+		ParserRuleContext parent = (ParserRuleContext) node.getParent();
+		assertEquals(g.getRule("stat").index, parent.getRuleIndex());
+		assertEquals("b", tokens.get(parent.getSourceInterval().a).getText());
+		assertEquals(";", tokens.get(parent.getSourceInterval().b).getText());
+
+		assertNull(ParsingUtils.getTerminalNodeUnderCursor(result, input.indexOf("c */")));
+		assertNull(ParsingUtils.getTerminalNodeUnderCursor(null, 0));
+	}
+
+	public void test_stream_ends_where_the_lexing_budget_is_exceeded() throws Exception {
+		LexerGrammar lg = new LexerGrammar(LEXER_GRAMMAR);
+		LexingBudget.Meter meter = new LexingBudget(3, 0, 0).start();
+		LexerInterpreter lexer = lg.createLexerInterpreter(meter.track(CharStreams.fromString(INPUT)));
+		SyntaxErrorListener listener = new SyntaxErrorListener();
+		CompactTokenStream tokens = new CompactTokenStream(lexer, meter, listener);
+		tokens.fill();
+
+		List<Token> tokenList = tokens.getTokens();
+		assertEquals(4, tokenList.size());
+		Token eof = tokenList.get(3);
+		assertEquals(Token.EOF, eof.getType());
+		assertEquals(INPUT.indexOf("*/")+2, eof.getStartIndex());
+		assertEquals(1, listener.getSyntaxErrors().size());
+		assertEquals(2, listener.getSyntaxErrors().get(0).getLine());
+	}
+
+	public void test_lookahead_does_not_create_tokens() throws Exception {
+		Grammar g = new Grammar(
+			"grammar T;\n" +
+			"prog : stat* EOF ;\n" +
+			"stat : ID '=' ID '+' INT ';' | ID '=' ID '+' ID ';' | ID '=' INT ';' ;\n" +
+			"ID : [a-z]+ ;\n" +
+			"INT : [0-9]+ ;\n" +
+			"COMMENT : '/*' .*? '*/' -> channel(HIDDEN) ;\n" +
+			"WS : [ \\n]+ -> skip ;\n");
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i<200; i++) {
+			input.append("a = b /* c */ + ").append(i%2==0 ? "1" : "d").append(";\n");
+		}
+		PreviewInterpreterCache interpreterCache = new PreviewInterpreterCache(g, g.implicitLexer);
+		CompactTokenStream lexed = new CompactTokenStream(interpreterCache.createLexerInterpreter(CharStreams.fromString(input.toString())));
+		lexed.fill();
+		CountingTokenList tokens = new CountingTokenList(lexed.getTokenList());
+
+		PreviewParser parser = interpreterCache.createParser(new CompactTokenStream(tokens));
+		parser.parse(g.getRule("prog").index);
+
+		// a few per token matched and per rule entered, none per lookahead step
+		assertTrue(tokens.gets+" tokens created for "+tokens.size()+" tokens", tokens.gets<3*tokens.size());
+	}
+
+	/** Counts the tokens created */
+	private static class CountingTokenList extends CompactTokenList {
+		int gets;
+
+		CountingTokenList(CompactTokenList lexed) {
+			super(lexed.get(0).getInputStream());
+			addRange(lexed, 0, lexed.size(), 0, 0, -1, 0);
+		}
+
+		@Override
+		public Token get(int i) {
+			gets++;
+			return super.get(i);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package org.antlr.intellij.plugin.parsing;
+
+import junit.framework.TestCase;
+import org.antlr.intellij.plugin.validation.GrammarIssue;
+import org.antlr.intellij.plugin.validation.GrammarIssuesCollectorToolListener;
+import org.antlr.intellij.plugin.validation.IssueMessageRenderer;
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.TokenStream;
+import org.antlr.v4.Tool;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.ast.GrammarAST;
+import org.antlr.v4.tool.ast.GrammarRootAST;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class GrammarAnalysisTest extends TestCase {
+
+	public void test_issues_move_along_when_only_whitespace_and_comments_change() {
+		GrammarAnalysis analysis = analyze("grammar T;\na : X ;\n");
+		GrammarIssue issue = analysis.getIssues().get(0);
+		assertTrue(issue.getAnnotation(), issue.getAnnotation().contains("T.g4:2:4:"));
+
+		String text = "// T\ngrammar T;\n\n/* rule a */\na\n\t: X\n\t;\n";
+		GrammarAnalysis moved = analysis.movedTo(tokensOf(text));
+		assertNotNull(moved);
+		assertSame(analysis.getGrammars()[1], moved.getGrammars()[1]);
+
+		GrammarIssue movedIssue = moved.getIssues().get(0);
+		CommonToken x = (CommonToken) movedIssue.getOffendingTokens().get(0);
+		assertEquals("X", text.substring(x.getStartIndex(), x.getStopIndex()+1));
+		assertEquals("X", x.getText());
+		assertEquals(6, x.getLine());
+		assertTrue(movedIssue.getAnnotation(), movedIssue.getAnnotation().contains("T.g4:6:3:"));
+
+		// the previous analysis is shared, it doesn't change
+		assertTrue(issue.getAnnotation(), issue.getAnnotation().contains("T.g4:2:4:"));
+		assertEquals(2, issue.getOffendingTokens().get(0).getLine());
+	}
+
+	public void test_grammar_tokens_are_found_in_the_moved_text() {
+		GrammarAnalysis analysis = analyze("grammar T;\na : X ;\nb : a ;\n");
+		Grammar g = analysis.getGrammars()[1];
+		int ruleNameIndex = ((GrammarAST) g.getRule("b").ast.getChild(0)).getToken().getTokenIndex();
+
+		String text = "grammar T;\n\na : X ;\n// b\nb : a ;\n";
+		GrammarAnalysis moved = analysis.movedTo(tokensOf(text));
+		moved = moved.movedTo(tokensOf(" "+text)); // moves add up
+
+		CommonToken b = (CommonToken) moved.getGrammarToken(ruleNameIndex);
+		assertEquals(text.indexOf("b :")+1, b.getStartIndex());
+		assertEquals(5, b.getLine());
+		assertEquals(3, analysis.getGrammarToken(ruleNameIndex).getLine());
+	}
+
+	public void test_nothing_moves_when_a_rule_changes() {
+		GrammarAnalysis analysis = analyze("grammar T;\na : X ;\n");
+
+		assertNull(analysis.movedTo(tokensOf("\ngrammar T;\na : X Y ;\n")));
+	}
+
+	public void test_nothing_moves_when_a_redefinition_would_point_at_the_wrong_line() {
+		GrammarAnalysis analysis = analyze("grammar T;\na : 'x' ;\na : 'y' ;\n");
+
+		assertNull(analysis.movedTo(tokensOf("grammar T;\n\na : 'x' ;\na : 'y' ;\n")));
+	}
+
+	public void test_only_the_changed_rules_are_checked_again() {
+		GrammarAnalysis analysis = analyze("grammar T;\na : b c ;\nb : X | d ;\n");
+		assertEquals("[UNDEFINED_RULE_REF 2:6, UNDEFINED_RULE_REF 3:8]", issuesOf(analysis));
+
+		String text = "grammar T;\n\na : b c ;\nb : X | e ;\n";
+		List<GrammarIssue> issues = checkChangedRules(analysis, text);
+		assertEquals("[UNDEFINED_RULE_REF 3:6, UNDEFINED_RULE_REF 4:8]", issuesOf(issues));
+		GrammarIssue moved = issues.get(0);
+		assertEquals("c", moved.getOffendingTokens().get(0).getText());
+		assertTrue(moved.getAnnotation(), moved.getAnnotation().contains(":3:6:"));
+		assertEquals("e", issues.get(1).getMsg().offendingToken.getText());
+
+		assertEquals(issuesOf(analyze(text)), issuesOf(issues));
+	}
+
+	public void test_whole_grammar_issues_of_changed_rules_wait_for_the_full_analysis() {
+		GrammarAnalysis analysis = analyze("grammar T;\na : b* ;\nb : X? ;\nc : a ;\n");
+		assertEquals("[EPSILON_CLOSURE 2:0, IMPLICIT_TOKEN_DEFINITION 3:4]", issuesOf(analysis));
+
+		// kept as long as their rules don't change...
+		assertEquals("[EPSILON_CLOSURE 3:0, IMPLICIT_TOKEN_DEFINITION 4:4]", issuesOf(checkChangedRules(analysis, "\ngrammar T;\na : b* ;\nb : X? ;\nc : a a ;\n")));
+		// ...but not found checking it alone, without the body of b
+		assertEquals("[IMPLICIT_TOKEN_DEFINITION 3:4]", issuesOf(checkChangedRules(analysis, "grammar T;\na : b* X ;\nb : X? ;\nc : a ;\n")));
+	}
+
+	public void test_rules_are_checked_together_when_more_than_their_bodies_change() {
+		GrammarAnalysis analysis = analyze("grammar T;\na : b ;\nb : X ;\n");
+
+		assertNull(checkChangedRules(analysis, "grammar T;\na : b ;\nb : X ;\nc : b ;\n"));
+		assertNull(checkChangedRules(analysis, "grammar T;\na : b ;\nb[int i] : X ;\n"));
+		assertNull(checkChangedRules(analysis, "grammar T;\noptions {caseInsensitive=true;}\na : b ;\nb : X ;\n"));
+		assertNotNull(checkChangedRules(analysis, "grammar T;\na : b ;\nb : X X ;\n"));
+	}
+
+	public void test_unchanged_rules_only_keep_what_the_changed_ones_may_use() {
+		String text = "grammar T;\na returns [int v] @init {f();} : b {g();} #A | (b | X) #B ; catch [E e] {}\nb : X ;\n";
+		GrammarRules rules = GrammarRules.of(new Tool().parseGrammarFromString(text));
+		BitSet changed = new BitSet();
+		changed.set(1);
+
+		assertEquals("grammar T;\na returns [int v]              :          #A |         #B ;               \nb : X ;\n",
+					 rules.checkText(changed));
+	}
+
+	/** Like {@link GrammarAnalysisService} without a project */
+	private static GrammarAnalysis analyze(String text) {
+		GrammarIssuesCollectorToolListener listener = new GrammarIssuesCollectorToolListener();
+		Tool antlr = new Tool();
+		antlr.removeListeners();
+		antlr.addListener(listener);
+		GrammarRootAST ast = antlr.parseGrammarFromString(text);
+		GrammarRules rules = GrammarRules.of(ast);
+		Grammar g = antlr.createGrammar(ast);
+		g.fileName = "T.g4";
+		antlr.process(g, false);
+		for (GrammarIssue issue : listener.getIssues()) {
+			issue.getOffendingTokens().add(issue.getMsg().offendingToken);
+			issue.setAnnotation(IssueMessageRenderer.render(issue.getMsg()));
+		}
+		return new GrammarAnalysis(new Grammar[] {g.getImplicitLexer(), g}, true, false,
+								   listener.getIssues(), Collections.emptyList(), rules);
+	}
+
+	/** Like {@link GrammarAnalysisService} checking only the rules changed in text, null if it can't */
+	private static List<GrammarIssue> checkChangedRules(GrammarAnalysis previous, String text) {
+		GrammarRules rules = GrammarRules.of(new Tool().parseGrammarFromString(text));
+		BitSet changed = rules.changedSince(previous.getRules());
+		List<GrammarIssue> issues = changed!=null ? previous.issuesOutside(rules, changed) : null;
+		if ( issues==null ) {
+			return null;
+		}
+		for (GrammarIssue issue : analyze(rules.checkText(changed)).getIssues()) {
+			if ( GrammarAnalysis.isRuleLocal(issue.getMsg()) && rules.isInRules(issue.getMsg().offendingToken, changed) ) {
+				issues.add(issue);
+			}
+		}
+		return issues;
+	}
+
+	private static String issuesOf(GrammarAnalysis analysis) {
+		return issuesOf(analysis.getIssues());
+	}
+
+	/** Type and position of each issue, sorted */
+	private static String issuesOf(List<GrammarIssue> issues) {
+		Set<String> sorted = new TreeSet<>();
+		for (GrammarIssue issue : issues) {
+			sorted.add(issue.getMsg().getErrorType()+" "+issue.getMsg().line+":"+issue.getMsg().charPosition);
+		}
+		return sorted.toString();
+	}
+
+	private static TokenStream tokensOf(String text) {
+		return new Tool().parseGrammarFromString(text).tokenStream;
+	}
+}
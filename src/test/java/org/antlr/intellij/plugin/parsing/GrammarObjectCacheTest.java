@@ -0,0 +1,172 @@
+package org.antlr.intellij.plugin.parsing;
+
+import junit.framework.TestCase;
+import org.antlr.v4.Tool;
+import org.antlr.v4.tool.Grammar;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class GrammarObjectCacheTest extends TestCase {
+
+	private final Map<String, String> files = new HashMap<>();
+	private final GrammarObjectCache cache = new GrammarObjectCache(files::get);
+
+	public void test_grammars_are_returned_until_their_lexer_changes() {
+		files.put("/g/TParser.g4", "parser grammar TParser; options { tokenVocab=TLexer; } a : A ;");
+		files.put("/g/TLexer.g4", "lexer grammar TLexer; A : 'a' ;");
+		GrammarAnalysis analysis = analysis(null, grammar("/g/TParser.g4"));
+		cache.put("/g/TParser.g4", analysis, "lib");
+
+		assertSame(analysis, cache.get("/g/TParser.g4", "lib"));
+		assertTrue(cache.getDependencies("/g/TParser.g4").contains("/g/TLexer.g4"));
+
+		files.put("/g/TLexer.g4", "lexer grammar TLexer; A : 'b' ;");
+		assertNull(cache.get("/g/TParser.g4", "lib"));
+	}
+
+	public void test_grammars_are_loaded_again_once_a_missing_lexer_shows_up() {
+		files.put("/g/TParser.g4", "parser grammar TParser; a : 'a' ;");
+		GrammarAnalysis analysis = analysis(null, grammar("/g/TParser.g4"));
+		cache.put("/g/TParser.g4", analysis, "lib");
+		assertSame(analysis, cache.get("/g/TParser.g4", "lib"));
+
+		files.put("/g/TLexer.g4", "lexer grammar TLexer; A : 'a' ;");
+		assertNull(cache.get("/g/TParser.g4", "lib"));
+	}
+
+	public void test_grammars_are_loaded_again_when_settings_change() {
+		files.put("/g/T.g4", "grammar T; a : 'a' ;");
+		GrammarAnalysis analysis = analysis(null, grammar("/g/T.g4"));
+		cache.put("/g/T.g4", analysis, "lib");
+
+		assertNull(cache.get("/g/T.g4", "otherlib"));
+		assertNull(cache.get("/g/Other.g4", "lib"));
+		assertSame(analysis, cache.get("/g/T.g4", "lib"));
+	}
+
+	public void test_grammars_are_loaded_again_when_edited() {
+		files.put("/g/T.g4", "grammar T; a : 'a' ;");
+		GrammarAnalysis analysis = analysis(null, grammar("/g/T.g4"));
+		cache.put("/g/T.g4", analysis, "lib");
+
+		files.put("/g/T.g4", "grammar T; a : 'a' 'b' ;");
+		assertNull(cache.get("/g/T.g4", "lib"));
+	}
+
+	public void test_grammars_edited_during_their_analysis_are_loaded_again() {
+		files.put("/g/T.g4", "grammar T; a : 'a' ;");
+		Map<String, ParsingResultCache.Key> read =
+			Collections.singletonMap("/g/T.g4", GrammarObjectCache.digest("/g/T.g4", files.get("/g/T.g4")));
+		GrammarAnalysis analysis = analysis(null, grammar("/g/T.g4"));
+		files.put("/g/T.g4", "grammar T; a : 'a' 'b' ;"); // before the analysis is stored
+		cache.put("/g/T.g4", analysis, "lib", read);
+
+		assertNull(cache.get("/g/T.g4", "lib"));
+		assertEquals(read, cache.getDigests("/g/T.g4"));
+	}
+
+	public void test_every_parser_using_a_lexer_depends_on_it() {
+		files.put("/g/TLexer.g4", "lexer grammar TLexer; A : 'a' ;");
+		files.put("/g/P1.g4", "parser grammar P1; options { tokenVocab=TLexer; } a : A ;");
+		files.put("/g/P2.g4", "parser grammar P2; options { tokenVocab=TLexer; } b : A A ;");
+		files.put("/g/TParser.g4", "parser grammar TParser; c : A ;");
+		cache.put("/g/TLexer.g4", analysis(grammar("/g/TLexer.g4"), null), "lib");
+		cache.put("/g/P1.g4", analysis(null, grammar("/g/P1.g4")), "lib");
+		cache.put("/g/P2.g4", analysis(null, grammar("/g/P2.g4")), "lib");
+		cache.put("/g/TParser.g4", analysis(null, grammar("/g/TParser.g4")), "lib");
+
+		assertEquals(Arrays.asList("/g/P1.g4", "/g/P2.g4", "/g/TParser.g4"), cache.getDependents("/g/TLexer.g4"));
+
+		cache.remove("/g/P1.g4");
+		files.put("/g/P2.g4", "parser grammar P2; b : A A ;");
+		cache.put("/g/P2.g4", analysis(null, grammar("/g/P2.g4")), "lib");
+		assertEquals(Collections.singletonList("/g/TParser.g4"), cache.getDependents("/g/TLexer.g4"));
+	}
+
+	public void test_grammars_with_errors_are_analyzed_again_when_their_lexer_changes() {
+		files.put("/g/TParser.g4", "parser grammar TParser; options { tokenVocab=TLexer; } a : A B ;");
+		files.put("/g/TLexer.g4", "lexer grammar TLexer; A : 'a' ;");
+		GrammarAnalysis failed = new GrammarAnalysis(new Grammar[] {null, grammar("/g/TParser.g4")}, false,
+													 Collections.emptyList(), Collections.singletonList("B undefined"));
+		cache.put("/g/TParser.g4", failed, "lib");
+		assertSame(failed, cache.get("/g/TParser.g4", "lib"));
+		assertNull(failed.getGrammars());
+
+		files.put("/g/TLexer.g4", "lexer grammar TLexer; A : 'a' ; B : 'b' ;");
+		assertNull(cache.get("/g/TParser.g4", "lib"));
+	}
+
+	public void test_grammars_that_cannot_be_parsed_only_depend_on_their_file() {
+		files.put("/g/T.g4", "grammar T; a : ");
+		cache.put("/g/T.g4", new GrammarAnalysis(null, false, Collections.emptyList(), Collections.emptyList()), "lib");
+
+		assertEquals(Collections.singletonList("/g/T.g4"), cache.getDependencies("/g/T.g4"));
+	}
+
+	public void test_previous_analysis_is_kept_for_edits_of_the_grammar_itself() {
+		files.put("/g/TParser.g4", "parser grammar TParser; options { tokenVocab=TLexer; } a : A ;");
+		files.put("/g/TLexer.g4", "lexer grammar TLexer; A : 'a' ;");
+		GrammarAnalysis analysis = analysis(null, grammar("/g/TParser.g4"));
+		cache.put("/g/TParser.g4", analysis, "lib");
+
+		files.put("/g/TParser.g4", "parser grammar TParser; options { tokenVocab=TLexer; } a : A ; // edited");
+		assertNull(cache.get("/g/TParser.g4", "lib"));
+		assertSame(analysis, cache.getPrevious("/g/TParser.g4", "lib"));
+
+		files.put("/g/TLexer.g4", "lexer grammar TLexer; A : 'b' ;");
+		assertNull(cache.getPrevious("/g/TParser.g4", "lib"));
+	}
+
+	public void test_revision_changes_only_when_a_dependency_changes() {
+		files.put("/g/TParser.g4", "parser grammar TParser; options { tokenVocab=TLexer; } a : A ;");
+		files.put("/g/TLexer.g4", "lexer grammar TLexer; A : 'a' ;");
+		cache.put("/g/TParser.g4", analysis(null, grammar("/g/TParser.g4")), "lib");
+		ParsingResultCache.Key revision = cache.getRevision("/g/TParser.g4", "lib");
+		assertNotNull(revision);
+
+		cache.put("/g/TParser.g4", analysis(null, grammar("/g/TParser.g4")), "lib");
+		assertEquals(revision, cache.getRevision("/g/TParser.g4", "lib"));
+		assertNull(cache.getRevision("/g/TParser.g4", "otherlib"));
+
+		files.put("/g/TLexer.g4", "lexer grammar TLexer; A : 'b' ;");
+		assertNull(cache.getRevision("/g/TParser.g4", "lib"));
+		cache.put("/g/TParser.g4", analysis(null, grammar("/g/TParser.g4")), "lib");
+		assertFalse(revision.equals(cache.getRevision("/g/TParser.g4", "lib")));
+	}
+
+	public void test_least_recently_used_grammars_are_evicted() {
+		GrammarObjectCache small = new GrammarObjectCache(files::get, 2);
+		files.put("/g/TLexer.g4", "lexer grammar TLexer; A : 'a' ;");
+		files.put("/g/P1.g4", "parser grammar P1; options { tokenVocab=TLexer; } a : A ;");
+		files.put("/g/P2.g4", "parser grammar P2; b : 'b' ;");
+		small.put("/g/P1.g4", analysis(null, grammar("/g/P1.g4")), "lib");
+		small.put("/g/TLexer.g4", analysis(grammar("/g/TLexer.g4"), null), "lib");
+		assertNotNull(small.get("/g/P1.g4", "lib")); // now TLexer is the least recently used
+
+		small.put("/g/P2.g4", analysis(null, grammar("/g/P2.g4")), "lib");
+
+		assertEquals(2, small.size());
+		assertNull(small.get("/g/TLexer.g4", "lib"));
+		assertNotNull(small.get("/g/P1.g4", "lib"));
+		assertNotNull(small.get("/g/P2.g4", "lib"));
+		assertEquals(Collections.singletonList("/g/P1.g4"), small.getDependents("/g/TLexer.g4"));
+
+		small.put("/g/TLexer.g4", analysis(grammar("/g/TLexer.g4"), null), "lib"); // evicts P1
+		assertNull(small.get("/g/P1.g4", "lib"));
+		assertEquals(Collections.emptyList(), small.getDependents("/g/TLexer.g4"));
+	}
+
+	private static GrammarAnalysis analysis(Grammar lg, Grammar g) {
+		return new GrammarAnalysis(new Grammar[] {lg, g}, true, Collections.emptyList(), Collections.emptyList());
+	}
+
+	private Grammar grammar(String fileName) {
+		Tool antlr = new Tool();
+		Grammar g = antlr.createGrammar(antlr.parseGrammarFromString(files.get(fileName)));
+		g.fileName = fileName;
+		return g;
+	}
+}
@@ -0,0 +1,191 @@
+package org.antlr.intellij.plugin.parsing;
+
+import junit.framework.TestCase;
+import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.tool.LexerGrammar;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class IncrementalLexerTest extends TestCase {
+
+	private static final String LEXER_GRAMMAR =
+		"lexer grammar L;\n" +
+		"ID : [a-z]+ ;\n" +
+		"INT : [0-9]+ ;\n" +
+		"FLOAT : [0-9]+ '.' [0-9]+ ;\n" +
+		"LT : '<' -> pushMode(TAG) ;\n" +
+		"COMMENT : '/*' .*? '*/' -> channel(HIDDEN) ;\n" +
+		"WS : [ \\t\\r\\n]+ -> skip ;\n" +
+		"mode TAG;\n" +
+		"NAME : [a-z]+ ;\n" +
+		"STR : '\"' ~'\"'* '\"' ;\n" +
+		"GT : '>' -> popMode ;\n" +
+		"TWS : [ \\n]+ -> skip ;\n";
+
+	private static final String ALPHABET = "ab1 2.\n<>\"/*x9";
+
+	public void test_tokens_match_a_full_lex_after_random_edits() throws Exception {
+		LexerGrammar lg = new LexerGrammar(LEXER_GRAMMAR);
+		PreviewInterpreterCache interpreterCache = new PreviewInterpreterCache(null, lg);
+		Random random = new Random(42);
+
+		IncrementalLexer incrementalLexer = new IncrementalLexer("input");
+		StringBuilder text = new StringBuilder(randomText(random, 200));
+		tokenize(incrementalLexer, interpreterCache, text.toString());
+
+		for (int i = 0; i<2000; i++) {
+			int edits = 1+random.nextInt(3);
+			for (int j = 0; j<edits; j++) {
+				int offset = random.nextInt(text.length()+1);
+				int oldLength = random.nextInt(Math.min(5, text.length()-offset)+1);
+				String inserted = randomText(random, random.nextInt(5));
+				text.replace(offset, offset+oldLength, inserted);
+				incrementalLexer.inputChanged(offset, oldLength, inserted.length());
+			}
+
+			String expected = tokenize(new IncrementalLexer("input"), interpreterCache, text.toString());
+			String actual = tokenize(incrementalLexer, interpreterCache, text.toString());
+			assertEquals("after edit "+i+" of '"+text+"'", expected, actual);
+		}
+	}
+
+	public void test_edits_made_after_the_text_was_read_are_kept_for_next_time() throws Exception {
+		LexerGrammar lg = new LexerGrammar(LEXER_GRAMMAR);
+		PreviewInterpreterCache interpreterCache = new PreviewInterpreterCache(null, lg);
+
+		IncrementalLexer incrementalLexer = new IncrementalLexer("input");
+		tokenize(incrementalLexer, interpreterCache, "abc 12");
+
+		incrementalLexer.inputChanged(3, 0, 2); // "abc<x 12"
+		int editCount = incrementalLexer.getEditCount();
+		incrementalLexer.inputChanged(5, 0, 1); // "abc<x> 12", arrives while parsing
+
+		String actual = tokenize(incrementalLexer, interpreterCache, "abc<x 12", editCount);
+		assertEquals(tokenize(new IncrementalLexer("input"), interpreterCache, "abc<x 12"), actual);
+
+		actual = tokenize(incrementalLexer, interpreterCache, "abc<x> 12");
+		assertEquals(tokenize(new IncrementalLexer("input"), interpreterCache, "abc<x> 12"), actual);
+	}
+
+	public void test_tokens_of_earlier_calls_keep_their_text() throws Exception {
+		LexerGrammar lg = new LexerGrammar(LEXER_GRAMMAR);
+		PreviewInterpreterCache interpreterCache = new PreviewInterpreterCache(null, lg);
+
+		IncrementalLexer incrementalLexer = new IncrementalLexer("input");
+		CommonTokenStream first = incrementalLexer.tokenize(interpreterCache, CaseChangingStrategy.LEAVE_AS_IS, "abc 12",
+															incrementalLexer.getEditCount(), LexingBudget.UNLIMITED,
+															new SyntaxErrorListener());
+		first.fill();
+		incrementalLexer.inputChanged(0, 3, 3);
+		incrementalLexer.tokenize(interpreterCache, CaseChangingStrategy.LEAVE_AS_IS, "xyz 12",
+								  incrementalLexer.getEditCount(), LexingBudget.UNLIMITED, new SyntaxErrorListener());
+
+		assertEquals("abc", first.get(0).getText());
+		assertEquals("abc12", first.getText()); // WS is skipped
+	}
+
+	public void test_lexing_stops_at_the_token_limit_and_starts_over_next_time() throws Exception {
+		LexerGrammar lg = new LexerGrammar(LEXER_GRAMMAR);
+		PreviewInterpreterCache interpreterCache = new PreviewInterpreterCache(null, lg);
+
+		IncrementalLexer incrementalLexer = new IncrementalLexer("input");
+		String actual = tokenize(incrementalLexer, interpreterCache, "ab cd ef gh", 0, new LexingBudget(2, 0, 0));
+		assertEquals(
+			"0:1:0:0-1:1,0:ab\n" +
+			"1:1:0:3-4:1,3:cd\n" +
+			"2:-1:0:5-4:1,5:<EOF>\n" +
+			"1,5 lexing stopped here, limit of 2 tokens reached; the rest of the input is ignored\n",
+			actual);
+
+		incrementalLexer.inputChanged(11, 0, 3);
+		actual = tokenize(incrementalLexer, interpreterCache, "ab cd ef gh ij");
+		assertEquals(tokenize(new IncrementalLexer("input"), interpreterCache, "ab cd ef gh ij"), actual);
+	}
+
+	public void test_edits_are_recorded_while_tokenizing() throws Exception {
+		LexerGrammar lg = new LexerGrammar(LEXER_GRAMMAR);
+		PreviewInterpreterCache interpreterCache = new PreviewInterpreterCache(null, lg);
+		IncrementalLexer incrementalLexer = new IncrementalLexer("input");
+		tokenize(incrementalLexer, interpreterCache, "abc 12");
+		incrementalLexer.inputChanged(3, 0, 1); // "abc# 12"
+
+		// the error listener is called from within tokenize, like the EDT
+		// typing while a parse runs in the background
+		ExecutorService edt = Executors.newSingleThreadExecutor();
+		try {
+			SyntaxErrorListener listener = new SyntaxErrorListener() {
+				@Override
+				public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+										int charPositionInLine, String msg, RecognitionException e) {
+					super.syntaxError(recognizer, offendingSymbol, line, charPositionInLine, msg, e);
+					Future<Integer> typed = edt.submit(() -> {
+						incrementalLexer.inputChanged(4, 0, 1); // "abc#x 12"
+						return incrementalLexer.getEditCount();
+					});
+					try {
+						assertEquals(2, (int) typed.get(5, TimeUnit.SECONDS));
+					}
+					catch (Exception ex) {
+						throw new AssertionError("edit blocked by tokenize", ex);
+					}
+				}
+			};
+			incrementalLexer.tokenize(interpreterCache, CaseChangingStrategy.LEAVE_AS_IS, "abc# 12", 1,
+									  LexingBudget.UNLIMITED, listener).fill();
+			assertEquals(1, listener.getSyntaxErrors().size());
+		}
+		finally {
+			edt.shutdownNow();
+		}
+
+		String actual = tokenize(incrementalLexer, interpreterCache, "abc#x 12");
+		assertEquals(tokenize(new IncrementalLexer("input"), interpreterCache, "abc#x 12"), actual);
+	}
+
+	private static String tokenize(IncrementalLexer lexer, PreviewInterpreterCache interpreterCache, String text) {
+		return tokenize(lexer, interpreterCache, text, lexer.getEditCount());
+	}
+
+	private static String tokenize(IncrementalLexer lexer, PreviewInterpreterCache interpreterCache, String text,
+								   int editCount) {
+		return tokenize(lexer, interpreterCache, text, editCount, LexingBudget.UNLIMITED);
+	}
+
+	private static String tokenize(IncrementalLexer lexer, PreviewInterpreterCache interpreterCache, String text,
+								   int editCount, LexingBudget budget) {
+		SyntaxErrorListener listener = new SyntaxErrorListener();
+		CommonTokenStream tokens = lexer.tokenize(interpreterCache, CaseChangingStrategy.LEAVE_AS_IS, text,
+												  editCount, budget, listener);
+		tokens.fill();
+		StringBuilder buf = new StringBuilder();
+		List<Token> tokenList = tokens.getTokens();
+		for (Token t : tokenList) {
+			buf.append(t.getTokenIndex()).append(':')
+				.append(t.getType()).append(':')
+				.append(t.getChannel()).append(':')
+				.append(t.getStartIndex()).append('-').append(t.getStopIndex()).append(':')
+				.append(t.getLine()).append(',').append(t.getCharPositionInLine()).append(':')
+				.append(t.getText()).append('\n');
+		}
+		listener.getSyntaxErrors().forEach(e -> buf.append(e.getLine()).append(',')
+			.append(e.getCharPositionInLine()).append(' ').append(e.getMessage()).append('\n'));
+		return buf.toString();
+	}
+
+	private static String randomText(Random random, int length) {
+		StringBuilder buf = new StringBuilder(length);
+		for (int i = 0; i<length; i++) {
+			buf.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return buf.toString();
+	}
+}
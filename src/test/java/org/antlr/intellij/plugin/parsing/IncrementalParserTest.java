@@ -0,0 +1,189 @@
+package org.antlr.intellij.plugin.parsing;
+
+import junit.framework.TestCase;
+import org.antlr.intellij.adaptor.parser.SyntaxError;
+import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.antlr.v4.tool.Grammar;
+
+import java.util.Random;
+
+public class IncrementalParserTest extends TestCase {
+
+	private static final String GRAMMAR =
+		"grammar T;\n" +
+		"prog : stat* EOF ;\n" +
+		"stat : ID '=' expr ';' | 'if' expr block ('else' block)? | block | ';' ;\n" +
+		"block : '{' stat* '}' ;\n" +
+		"expr : expr ('*'|'+') expr | ID | INT | '(' expr ')' ;\n" +
+		"ID : [a-z]+ ;\n" +
+		"INT : [0-9]+ ;\n" +
+		"COMMENT : '#' ~'\\n'* -> channel(HIDDEN) ;\n" +
+		"WS : [ \\n]+ -> skip ;\n";
+
+	private static final String[] SNIPPETS = {
+		"a = 1;", "b = (c + 2) * d;", "if a {", "}", "else", "{", ";", "# note\n",
+		"x", "(", ")", "=", "+", "42", " ", "\n"
+	};
+
+	public void test_tree_and_errors_match_a_full_parse_after_random_edits() throws Exception {
+		Grammar g = new Grammar(GRAMMAR);
+		PreviewInterpreterCache interpreterCache = new PreviewInterpreterCache(g, g.implicitLexer);
+		Random random = new Random(42);
+
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i<40; i++) {
+			text.append(i%5==0 ? "if x { y = 2; } else { z = x * 3; }\n" : "v = (a + 1) * 2;\n");
+		}
+		IncrementalLexer incrementalLexer = new IncrementalLexer("input");
+		IncrementalParser incrementalParser = new IncrementalParser();
+		ParsingResult previous = parse(incrementalLexer, incrementalParser, interpreterCache, g, text.toString());
+
+		for (int i = 0; i<1000; i++) {
+			int offset = random.nextInt(text.length()+1);
+			int oldLength = random.nextInt(Math.min(6, text.length()-offset)+1);
+			String inserted = random.nextBoolean() ? SNIPPETS[random.nextInt(SNIPPETS.length)] : "";
+			text.replace(offset, offset+oldLength, inserted);
+			incrementalLexer.inputChanged(offset, oldLength, inserted.length());
+
+			String previousDump = dump(previous);
+			ParsingResult expected = parseFromScratch(interpreterCache, g, text.toString());
+			ParsingResult actual = parse(incrementalLexer, incrementalParser, interpreterCache, g, text.toString());
+			assertEquals("after edit "+i+" of '"+text+"'", dump(expected), dump(actual));
+			assertEquals("previous tree was modified by edit "+i, previousDump, dump(previous));
+			previous = actual;
+		}
+	}
+
+	public void test_only_the_edited_statement_is_parsed_again() throws Exception {
+		Grammar g = new Grammar(GRAMMAR);
+		PreviewInterpreterCache interpreterCache = new PreviewInterpreterCache(g, g.implicitLexer);
+
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i<2000; i++) {
+			text.append("v = (a + 1) * 2;\n");
+		}
+		IncrementalLexer incrementalLexer = new IncrementalLexer("input");
+		IncrementalParser incrementalParser = new IncrementalParser();
+		parse(incrementalLexer, incrementalParser, interpreterCache, g, text.toString());
+		assertTrue(incrementalParser.getReparsedTokenCount()>=2000*10);
+
+		int offset = 1000*17+4; // "v = (a" of statement 1000
+		text.replace(offset, offset+1, "(b + c)");
+		incrementalLexer.inputChanged(offset, 1, 7);
+		ParsingResult actual = parse(incrementalLexer, incrementalParser, interpreterCache, g, text.toString());
+
+		assertEquals(dump(parseFromScratch(interpreterCache, g, text.toString())), dump(actual));
+		assertTrue(incrementalParser.getReparsedTokenCount()<50);
+	}
+
+	public void test_subtrees_before_the_edit_are_shared_with_the_previous_tree() throws Exception {
+		Grammar g = new Grammar(GRAMMAR);
+		PreviewInterpreterCache interpreterCache = new PreviewInterpreterCache(g, g.implicitLexer);
+
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i<2000; i++) {
+			text.append("v = (a + 1) * 2;\n");
+		}
+		IncrementalLexer incrementalLexer = new IncrementalLexer("input");
+		IncrementalParser incrementalParser = new IncrementalParser();
+		ParsingResult previous = parse(incrementalLexer, incrementalParser, interpreterCache, g, text.toString());
+		String previousDump = dump(previous);
+
+		int offset = 1000*17+4; // "v = (a" of statement 1000
+		text.replace(offset, offset+1, "(b + c)");
+		incrementalLexer.inputChanged(offset, 1, 7);
+		ParsingResult actual = parse(incrementalLexer, incrementalParser, interpreterCache, g, text.toString());
+
+		assertEquals(dump(parseFromScratch(interpreterCache, g, text.toString())), dump(actual));
+		assertEquals(previousDump, dump(previous));
+		assertSame(previous.tree.getChild(999), actual.tree.getChild(999));
+		assertNotSame(previous.tree.getChild(1500), actual.tree.getChild(1500));
+	}
+
+	public void test_starts_over_when_another_rule_is_parsed() throws Exception {
+		Grammar g = new Grammar(GRAMMAR);
+		PreviewInterpreterCache interpreterCache = new PreviewInterpreterCache(g, g.implicitLexer);
+
+		IncrementalLexer incrementalLexer = new IncrementalLexer("input");
+		IncrementalParser incrementalParser = new IncrementalParser();
+		parse(incrementalLexer, incrementalParser, interpreterCache, g, "a = 1; b = 2; c = 3;");
+
+		incrementalLexer.inputChanged(19, 0, 1);
+		SyntaxErrorListener listener = new SyntaxErrorListener();
+		CompactTokenStream tokens = incrementalLexer.tokenize(interpreterCache, CaseChangingStrategy.LEAVE_AS_IS,
+															  "a = 1; b = 2; c = 3;;", incrementalLexer.getEditCount(),
+															  LexingBudget.UNLIMITED, listener);
+		ParsingResult actual = incrementalParser.parse(interpreterCache, g.getRule("stat"), incrementalLexer, tokens, listener);
+
+		assertEquals("(stat:1 a = (expr:3 1) ;)", actual.tree.toStringTree(actual.parser));
+	}
+
+	private static ParsingResult parse(IncrementalLexer incrementalLexer, IncrementalParser incrementalParser,
+									   PreviewInterpreterCache interpreterCache, Grammar g, String text) {
+		SyntaxErrorListener listener = new SyntaxErrorListener();
+		CompactTokenStream tokens = incrementalLexer.tokenize(interpreterCache, CaseChangingStrategy.LEAVE_AS_IS, text,
+															  incrementalLexer.getEditCount(), LexingBudget.UNLIMITED,
+															  listener);
+		return incrementalParser.parse(interpreterCache, g.getRule("prog"), incrementalLexer, tokens, listener);
+	}
+
+	private static ParsingResult parseFromScratch(PreviewInterpreterCache interpreterCache, Grammar g, String text) {
+		SyntaxErrorListener listener = new SyntaxErrorListener();
+		CompactTokenStream tokens = new IncrementalLexer("input").tokenize(interpreterCache, CaseChangingStrategy.LEAVE_AS_IS,
+																			 text, 0, LexingBudget.UNLIMITED, listener);
+		PreviewParser parser = interpreterCache.createParser(tokens);
+		parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+		parser.removeErrorListeners();
+		parser.addErrorListener(listener);
+		ParseTree tree = parser.parse(g.getRule("prog").index);
+		return new ParsingResult(parser, tree, listener);
+	}
+
+	/** Tree with token positions, errors and ATN state of each token */
+	private static String dump(ParsingResult result) {
+		StringBuilder buf = new StringBuilder();
+		dump(result.tree, buf);
+		for (SyntaxError error : result.syntaxErrorListener.getSyntaxErrors()) {
+			buf.append('\n').append(error.getLine()).append(':').append(error.getCharPositionInLine())
+				.append(' ').append(error.getMessage()).append(" at ").append(token(error.getOffendingSymbol()));
+		}
+		buf.append('\n');
+		PreviewParser parser = (PreviewParser) result.parser;
+		TokenStream tokens = parser.getInputStream();
+		for (int i = 0; i<tokens.size(); i++) {
+			buf.append(parser.inputTokenToStateMap.get(tokens.get(i))).append(' ');
+		}
+		return buf.toString();
+	}
+
+	private static void dump(ParseTree tree, StringBuilder buf) {
+		if ( tree instanceof TerminalNode ) {
+			buf.append(tree instanceof ErrorNode ? " !" : " ").append(token(((TerminalNode) tree).getSymbol()));
+			return;
+		}
+		PreviewInterpreterRuleContext ctx = (PreviewInterpreterRuleContext) tree;
+		buf.append(" (").append(ctx.getRuleIndex()).append('/').append(ctx.getOuterAltNum())
+			.append(' ').append(token(ctx.start)).append(' ').append(token(ctx.stop));
+		if ( ctx.exception!=null ) {
+			buf.append(" exception");
+		}
+		for (int i = 0; i<ctx.getChildCount(); i++) {
+			dump(ctx.getChild(i), buf);
+		}
+		buf.append(')');
+	}
+
+	private static String token(Token t) {
+		if ( t==null ) {
+			return "null";
+		}
+		return "'"+t.getText()+"'#"+t.getTokenIndex()+"@"+t.getStartIndex()+":"+t.getStopIndex()+
+			   "@"+t.getLine()+":"+t.getCharPositionInLine();
+	}
+}
@@ -0,0 +1,104 @@
+package org.antlr.intellij.plugin.parsing;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import junit.framework.TestCase;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class MappedFileCharStreamTest extends TestCase {
+
+	public void test_same_chars_as_a_code_point_stream() throws Exception {
+		StringBuilder buf = new StringBuilder();
+		Random random = new Random(42);
+		String[] pieces = {"a", "bc ", "\n", "\u00e9", "\u20ac", "\ud83d\ude00", "x = 1;"};
+		while ( buf.length()<20000 ) {
+			buf.append(pieces[random.nextInt(pieces.length)]);
+		}
+		String text = buf.toString();
+
+		CharStream expected = CharStreams.fromString(text);
+		CharStream actual = open(text, StandardCharsets.UTF_8);
+		assertEquals(expected.size(), actual.size());
+
+		for (int i = 0; i<=expected.size(); i++) {
+			assertEquals(expected.LA(1), actual.LA(1));
+			assertEquals(expected.LA(-1), actual.LA(-1));
+			assertEquals(expected.LA(3), actual.LA(3));
+			if ( expected.LA(1)!=IntStream.EOF ) {
+				expected.consume();
+				actual.consume();
+			}
+		}
+
+		for (int i = 0; i<200; i++) {
+			int index = random.nextInt(expected.size());
+			expected.seek(index);
+			actual.seek(index);
+			assertEquals(expected.LA(1), actual.LA(1));
+			Interval interval = Interval.of(index, index+random.nextInt(10000));
+			assertEquals(expected.getText(interval), actual.getText(interval));
+		}
+	}
+
+	public void test_bom_and_malformed_bytes() throws Exception {
+		File file = File.createTempFile("mapped", ".txt");
+		file.deleteOnExit();
+		Files.write(file.toPath(), new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'a', (byte) 0xC3, 'b', (byte) 0xFF});
+		CharStream input = MappedFileCharStream.open(file, StandardCharsets.UTF_8);
+		assertEquals("a\ufffdb\ufffd", input.getText(Interval.of(0, input.size()-1)));
+	}
+
+	public void test_latin1() throws Exception {
+		String text = "caf\u00e9\ncr\u00e8me";
+		CharStream input = open(text, StandardCharsets.ISO_8859_1);
+		assertEquals(text.length(), input.size());
+		assertEquals(text, input.getText(Interval.of(0, input.size()-1)));
+	}
+
+	public void test_copies_have_their_own_position() throws Exception {
+		MappedFileCharStream input = open("hello", StandardCharsets.UTF_8);
+		input.consume();
+		input.consume();
+		MappedFileCharStream copy = input.copy();
+		assertEquals('l', input.LA(1));
+		assertEquals('h', copy.LA(1));
+		assertEquals(0, copy.index());
+	}
+
+	public void test_opening_can_be_cancelled() throws Exception {
+		StringBuilder buf = new StringBuilder();
+		while ( buf.length()<4*1024*1024 ) {
+			buf.append("x = \u00e9t\u00e9;\n");
+		}
+		File file = File.createTempFile("mapped", ".txt");
+		file.deleteOnExit();
+		Files.write(file.toPath(), buf.toString().getBytes(StandardCharsets.UTF_8));
+
+		ProgressIndicator indicator = new EmptyProgressIndicator();
+		indicator.cancel();
+		try {
+			MappedFileCharStream.open(file, StandardCharsets.UTF_8, indicator);
+			fail("opening should have been cancelled");
+		}
+		catch (ProcessCanceledException e) {
+			// expected
+		}
+	}
+
+	private static MappedFileCharStream open(String text, Charset charset) throws Exception {
+		File file = File.createTempFile("mapped", ".txt");
+		file.deleteOnExit();
+		Files.write(file.toPath(), text.getBytes(charset));
+		return MappedFileCharStream.open(file, charset);
+	}
+}
@@ -0,0 +1,136 @@
+package org.antlr.intellij.plugin.parsing;
+
+import junit.framework.TestCase;
+import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserInterpreter;
+import org.antlr.v4.Tool;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.LexerGrammar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class ParsingResultCacheTest extends TestCase {
+
+	public void test_same_parts_give_the_same_key() {
+		assertEquals(ParsingResultCache.key("grammar", "a b c", null), ParsingResultCache.key("grammar", "a b c", null));
+		assertFalse(ParsingResultCache.key("grammar", "a b c").equals(ParsingResultCache.key("grammar", "a b d")));
+		assertFalse(ParsingResultCache.key("ab", "c").equals(ParsingResultCache.key("a", "bc")));
+		assertFalse(ParsingResultCache.key("a", null).equals(ParsingResultCache.key("a", "")));
+	}
+
+	public void test_long_texts_are_digested_whole() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i<10000; i++) {
+			text.append("\u00e9t\u00e9 ");
+		}
+		String edited = text.substring(0, text.length()-1)+"!";
+
+		assertEquals(ParsingResultCache.key(text.toString()), ParsingResultCache.key(text));
+		assertFalse(ParsingResultCache.key(text).equals(ParsingResultCache.key(edited)));
+	}
+
+	public void test_key_changes_when_a_grammar_imported_by_the_lexer_changes() throws Exception {
+		File dir = Files.createTempDirectory("antlr").toFile();
+		try {
+			write(new File(dir, "L.g4"), "lexer grammar L;\nimport Base;\nA : 'a' ;\n");
+			write(new File(dir, "Base.g4"), "lexer grammar Base;\nB : 'b' ;\n");
+			Grammar g = new Grammar("parser grammar P;\noptions { tokenVocab=L; }\ns : A B ;\n");
+			LexerGrammar lg = loadLexer(dir);
+
+			write(new File(dir, "Base.g4"), "lexer grammar Base;\nB : 'bb' ;\n");
+			LexerGrammar reloaded = loadLexer(dir);
+
+			assertEquals(lg.text, reloaded.text);
+			assertFalse(ParsingResultCache.key(ParsingResultCache.grammarTexts(g, lg).toArray(new CharSequence[0])).equals(
+				ParsingResultCache.key(ParsingResultCache.grammarTexts(g, reloaded).toArray(new CharSequence[0]))));
+		}
+		finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	public void test_size_estimate_grows_with_the_parse_tree() throws Exception {
+		Grammar g = new Grammar(
+			"grammar T;\n" +
+			"prog : stat* ;\n" +
+			"stat : ID '=' expr ';' ;\n" +
+			"expr : INT | '-' expr ;\n" +
+			"ID : [a-z]+ ;\n" +
+			"INT : [0-9]+ ;\n" +
+			"WS : [ \\n]+ -> skip ;\n");
+		// same number of tokens, more nested rules
+		ParsingResult flat = parse(g, "a = 1; b = 2; c = 3; d = 4; e = 5; f = 6;\n");
+		ParsingResult nested = parse(g, "a = - - - - - - - - - - - - - - - - - - - - 1;\n");
+		assertEquals(flat.parser.getInputStream().size(), nested.parser.getInputStream().size());
+
+		long flatSize = ParsingResultCache.estimateSize(flat, 42);
+		long nestedSize = ParsingResultCache.estimateSize(nested, 42);
+		assertTrue(nestedSize>flatSize);
+		// computed once
+		assertEquals(nestedSize, ParsingResultCache.estimateSize(nested));
+	}
+
+	private static ParsingResult parse(Grammar g, String input) {
+		ParserInterpreter parser = g.createParserInterpreter(
+			new CommonTokenStream(g.createLexerInterpreter(CharStreams.fromString(input))));
+		SyntaxErrorListener errors = new SyntaxErrorListener();
+		parser.removeErrorListeners();
+		parser.addErrorListener(errors);
+		return new ParsingResult(parser, parser.parse(g.getRule("prog").index), errors);
+	}
+
+	public void test_hits_and_misses_are_counted() {
+		ParsingResultCache cache = new ParsingResultCache(100);
+		ParsingResult result = new ParsingResult(null, null, null);
+
+		assertNull(cache.get(ParsingResultCache.key("x")));
+		cache.put(ParsingResultCache.key("x"), result, 42, 10);
+		ParsingResultCache.Entry entry = cache.get(ParsingResultCache.key("x"));
+		assertSame(result, entry.result);
+		assertEquals(42, entry.parseDuration);
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	public void test_least_recently_used_results_are_evicted_over_the_size_limit() {
+		ParsingResultCache cache = new ParsingResultCache(100);
+		cache.put(ParsingResultCache.key("a"), new ParsingResult(null, null, null), 0, 40);
+		cache.put(ParsingResultCache.key("b"), new ParsingResult(null, null, null), 0, 40);
+		cache.get(ParsingResultCache.key("a")); // b is now the least recently used
+		cache.put(ParsingResultCache.key("c"), new ParsingResult(null, null, null), 0, 40);
+
+		assertEquals(2, cache.size());
+		assertEquals(80, cache.getSizeInBytes());
+		assertNotNull(cache.get(ParsingResultCache.key("a")));
+		assertNull(cache.get(ParsingResultCache.key("b")));
+		assertNotNull(cache.get(ParsingResultCache.key("c")));
+	}
+
+	public void test_results_bigger_than_the_cache_are_not_kept() {
+		ParsingResultCache cache = new ParsingResultCache(100);
+		cache.put(ParsingResultCache.key("a"), new ParsingResult(null, null, null), 0, 40);
+		cache.put(ParsingResultCache.key("huge"), new ParsingResult(null, null, null), 0, 200);
+
+		assertEquals(1, cache.size());
+		assertNotNull(cache.get(ParsingResultCache.key("a")));
+	}
+
+	private static LexerGrammar loadLexer(File dir) {
+		Tool antlr = new Tool();
+		antlr.libDirectory = dir.getPath();
+		return (LexerGrammar) antlr.loadGrammar(new File(dir, "L.g4").getPath());
+	}
+
+	private static void write(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+	}
+}
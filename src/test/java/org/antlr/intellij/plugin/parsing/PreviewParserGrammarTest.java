@@ -0,0 +1,100 @@
+package org.antlr.intellij.plugin.parsing;
+
+import junit.framework.TestCase;
+import org.antlr.v4.Tool;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.LexerGrammar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class PreviewParserGrammarTest extends TestCase {
+
+	private File libDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		libDir = Files.createTempDirectory("vocab").toFile();
+		// as generated before C was renamed to B
+		Files.write(new File(libDir, "L.tokens").toPath(), "A=1\nC=2\n".getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		new File(libDir, "L.tokens").delete();
+		libDir.delete();
+	}
+
+	public void test_token_types_come_from_the_lexer_grammar_in_memory() throws Exception {
+		Tool antlr = tool();
+		LexerGrammar lg = (LexerGrammar) PreviewParserGrammar.create(antlr, antlr.parseGrammarFromString("lexer grammar L; B : 'b' ; A : 'a' ;"));
+		antlr.process(lg, false);
+		Grammar g = parser(antlr);
+		g.importVocab(lg);
+		antlr.process(g, false);
+
+		assertEquals(0, antlr.getNumErrors());
+		assertEquals(lg.getTokenType("A"), g.getTokenType("A"));
+		assertEquals(lg.getTokenType("B"), g.getTokenType("B"));
+		assertEquals(Token.INVALID_TYPE, g.getTokenType("C"));
+	}
+
+	public void test_token_types_come_from_the_tokens_file_without_a_lexer() throws IOException {
+		Tool antlr = tool();
+		Grammar g = parser(antlr);
+		antlr.process(g, false);
+
+		assertEquals(1, g.getTokenType("A"));
+		assertEquals(2, g.getTokenType("C"));
+	}
+
+	public void test_tokens_file_is_read_once_for_all_grammars_using_it() {
+		TokensFileCache tokensFiles = new TokensFileCache(f -> 1);
+		Grammar g1 = parser(tool(), tokensFiles);
+		Grammar g2 = parser(tool(), tokensFiles);
+		g1.tool.process(g1, false);
+		g2.tool.process(g2, false);
+
+		assertEquals(2, g1.getTokenType("C"));
+		assertEquals(2, g2.getTokenType("C"));
+		assertEquals(1, tokensFiles.getMissCount());
+		assertEquals(1, tokensFiles.getHitCount());
+	}
+
+	public void test_tokens_file_is_read_again_once_it_changed() throws IOException {
+		long[] stamp = {1};
+		TokensFileCache tokensFiles = new TokensFileCache(f -> stamp[0]);
+		Grammar g = parser(tool(), tokensFiles);
+		g.tool.process(g, false);
+
+		Files.write(new File(libDir, "L.tokens").toPath(), "A=1\nB=2\n".getBytes(StandardCharsets.UTF_8));
+		g = parser(tool(), tokensFiles);
+		g.tool.process(g, false);
+		assertEquals(2, g.getTokenType("C")); // the VFS didn't see the change yet
+
+		stamp[0] = 2;
+		g = parser(tool(), tokensFiles);
+		g.tool.process(g, false);
+		assertEquals(2, g.getTokenType("B"));
+		assertEquals(Token.INVALID_TYPE, g.getTokenType("C"));
+	}
+
+	private Tool tool() {
+		Tool antlr = new Tool();
+		antlr.libDirectory = libDir.getPath();
+		return antlr;
+	}
+
+	private static Grammar parser(Tool antlr) {
+		return parser(antlr, null);
+	}
+
+	private static Grammar parser(Tool antlr, TokensFileCache tokensFiles) {
+		Grammar g = PreviewParserGrammar.create(antlr, antlr.parseGrammarFromString("parser grammar P; options { tokenVocab=L; } a : A B ;"), tokensFiles);
+		assertTrue(g instanceof PreviewParserGrammar);
+		return g;
+	}
+}
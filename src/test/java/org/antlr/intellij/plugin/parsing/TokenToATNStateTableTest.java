@@ -0,0 +1,58 @@
+package org.antlr.intellij.plugin.parsing;
+
+import junit.framework.TestCase;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.Token;
+
+public class TokenToATNStateTableTest extends TestCase {
+
+	public void test_returns_the_state_of_each_matched_token() {
+		TokenToATNStateTable table = new TokenToATNStateTable();
+
+		table.put(token(0), 0);
+		table.put(token(1000), 42);
+
+		assertEquals(Integer.valueOf(0), table.get(token(0)));
+		assertEquals(Integer.valueOf(42), table.get(token(1000)));
+		assertNull(table.get(token(1)));
+		assertNull(table.get(token(100000)));
+	}
+
+	public void test_ignores_tokens_outside_of_the_stream() {
+		TokenToATNStateTable table = new TokenToATNStateTable();
+
+		table.put(token(-1), 3);
+
+		assertNull(table.get(token(-1)));
+	}
+
+	public void test_copies_a_range_of_states_moved_by_a_delta() {
+		TokenToATNStateTable other = new TokenToATNStateTable();
+		other.put(token(1), 5);
+		other.put(token(2), 6);
+		other.put(token(300), 7);
+		TokenToATNStateTable table = new TokenToATNStateTable();
+
+		table.putAll(other, 2, 301, 1000);
+
+		assertNull(table.get(token(1)));
+		assertNull(table.get(token(2)));
+		assertEquals(Integer.valueOf(6), table.get(token(1002)));
+		assertEquals(Integer.valueOf(7), table.get(token(1300)));
+	}
+
+	public void test_clear() {
+		TokenToATNStateTable table = new TokenToATNStateTable();
+		table.put(token(3), 7);
+
+		table.clear();
+
+		assertNull(table.get(token(3)));
+	}
+
+	private static Token token(int index) {
+		CommonToken t = new CommonToken(1, "x");
+		t.setTokenIndex(index);
+		return t;
+	}
+}
@@ -0,0 +1,49 @@
+package org.antlr.intellij.plugin.preview;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.util.Alarm;
+import junit.framework.TestCase;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PreviewParsingSchedulerTest extends TestCase {
+
+	public void test_only_the_newest_parse_is_shown_when_results_come_out_of_order() {
+		PreviewParsingScheduler scheduler = new PreviewParsingScheduler(Mockito.mock(Alarm.class));
+		Document input = Mockito.mock(Document.class);
+		List<String> shown = new ArrayList<>();
+
+		Mockito.when(input.getModificationStamp()).thenReturn(1L);
+		PreviewParsingScheduler.Ticket older = scheduler.parseStarted(input);
+		Mockito.when(input.getModificationStamp()).thenReturn(2L);
+		PreviewParsingScheduler.Ticket newer = scheduler.parseStarted(input);
+
+		// the newer parse finishes first, then the slow older one
+		if ( scheduler.parseCompleted(newer) ) {
+			shown.add("newer");
+		}
+		if ( scheduler.parseCompleted(older) ) {
+			shown.add("older");
+		}
+
+		assertEquals(1, shown.size());
+		assertEquals("newer", shown.get(0));
+		assertEquals(1, scheduler.getCompletedCount());
+		assertEquals(1, scheduler.getCancelledCount());
+	}
+
+	public void test_a_result_is_shown_once() {
+		PreviewParsingScheduler scheduler = new PreviewParsingScheduler(Mockito.mock(Alarm.class));
+		Document input = Mockito.mock(Document.class);
+
+		PreviewParsingScheduler.Ticket ticket = scheduler.parseStarted(input);
+
+		assertTrue(scheduler.parseCompleted(ticket));
+		assertFalse(scheduler.parseCompleted(ticket));
+		scheduler.parseCancelled();
+		assertEquals(1, scheduler.getCompletedCount());
+		assertEquals(0, scheduler.getCancelledCount());
+	}
+}
@@ -0,0 +1,55 @@
+package org.antlr.intellij.plugin.preview;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import junit.framework.TestCase;
+import org.antlr.intellij.plugin.parsing.ParsingResult;
+import org.mockito.Mockito;
+
+public class PreviewResultRetentionTest extends TestCase {
+
+	public void test_results_of_grammars_not_previewed_recently_are_dropped() {
+		PreviewResultRetention retention = new PreviewResultRetention(2);
+		PreviewState a = parsed("/g/A.g4");
+		PreviewState b = parsed("/g/B.g4");
+		PreviewState c = parsed("/g/C.g4");
+		PreviewState d = parsed("/g/D.g4");
+
+		retention.previewed(a);
+		retention.previewed(b);
+		retention.previewed(c);
+		retention.previewed(a); // a is the most recent again
+		retention.previewed(d);
+
+		assertNull(b.getSnapshot().parsingResult);
+		assertNotNull(a.getSnapshot().parsingResult);
+		assertNotNull(c.getSnapshot().parsingResult);
+		assertNotNull(d.getSnapshot().parsingResult);
+		assertEquals(3, retention.getRetainedCount());
+		assertEquals("start rule is kept", "s", b.getSnapshot().startRuleName);
+	}
+
+	public void test_closed_grammars_are_forgotten() {
+		PreviewResultRetention retention = new PreviewResultRetention(1);
+		PreviewState a = parsed("/g/A.g4");
+		PreviewState b = parsed("/g/B.g4");
+		PreviewState c = parsed("/g/C.g4");
+
+		retention.previewed(a);
+		retention.previewed(b);
+		retention.remove(a);
+		retention.previewed(c);
+
+		assertFalse(retention.isRetained(a));
+		assertNotNull(a.getSnapshot().parsingResult);
+		assertNotNull(b.getSnapshot().parsingResult);
+		assertEquals(2, retention.getRetainedCount());
+	}
+
+	private static PreviewState parsed(String path) {
+		VirtualFile file = Mockito.mock(VirtualFile.class);
+		Mockito.when(file.getPath()).thenReturn(path);
+		PreviewState state = new PreviewState(null, file);
+		state.updateSnapshot(s -> s.withStartRuleName("s").withParsingResult(new ParsingResult(null, null, null)));
+		return state;
+	}
+}
@@ -0,0 +1,86 @@
+package org.antlr.intellij.plugin.validation;
+
+import junit.framework.TestCase;
+import org.antlr.v4.Tool;
+import org.antlr.v4.tool.ANTLRMessage;
+import org.antlr.v4.tool.ANTLRToolListener;
+import org.antlr.v4.tool.Grammar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class IssueMessageRendererTest extends TestCase {
+
+    public void test_messages_are_rendered_like_a_new_tool_does() {
+        List<ANTLRMessage> messages = issuesOf("grammar T; a : B | B ; b : 'x' {} ; B : 'b' ; C : 'b' ;");
+        assertFalse(messages.isEmpty());
+
+        for (ANTLRMessage msg : messages) {
+            Tool antlr = new Tool();
+            String expected = antlr.errMgr.getMessageTemplate(msg).render();
+            if ( antlr.errMgr.formatWantsSingleLineMessage() ) {
+                expected = expected.replace('\n', ' ');
+            }
+            assertEquals(expected, IssueMessageRenderer.render(msg));
+        }
+    }
+
+    public void test_messages_can_be_rendered_concurrently() throws Exception {
+        List<ANTLRMessage> messages = issuesOf("grammar T; a : B | B ; b : 'x' {} ; B : 'b' ; C : 'b' ;");
+        List<String> expected = new ArrayList<>();
+        for (ANTLRMessage msg : messages) {
+            expected.add(IssueMessageRenderer.render(msg));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<String>>> results = new ArrayList<>();
+            for (int i = 0; i<32; i++) {
+                results.add(executor.submit(() -> {
+                    List<String> rendered = new ArrayList<>();
+                    for (int j = 0; j<50; j++) {
+                        rendered.clear();
+                        for (ANTLRMessage msg : messages) {
+                            rendered.add(IssueMessageRenderer.render(msg));
+                        }
+                    }
+                    return rendered;
+                }));
+            }
+            for (Future<List<String>> result : results) {
+                assertEquals(expected, result.get());
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<ANTLRMessage> issuesOf(String grammar) {
+        List<ANTLRMessage> messages = new ArrayList<>();
+        Tool antlr = new Tool();
+        antlr.removeListeners();
+        antlr.addListener(new ANTLRToolListener() {
+            @Override
+            public void info(String msg) {
+            }
+
+            @Override
+            public void error(ANTLRMessage msg) {
+                messages.add(msg);
+            }
+
+            @Override
+            public void warning(ANTLRMessage msg) {
+                messages.add(msg);
+            }
+        });
+        Grammar g = antlr.createGrammar(antlr.parseGrammarFromString(grammar));
+        g.fileName = "T.g4";
+        antlr.process(g, false);
+        return messages;
+    }
+}